@@ -0,0 +1,124 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Minimal benchmark harness in the spirit of JMH (which is not available to this build): each
+ * benchmark runs its operation in a tight loop on a number of threads, first for a few warm-up
+ * iterations whose results are discarded, then for a few measured iterations of fixed duration.
+ * Throughput is reported as the mean over the measured iterations, with the spread between the
+ * slowest and fastest iteration, and as the average time per operation on each thread.
+ *
+ * Results of operations should be passed to consume, so that the JIT compiler cannot eliminate
+ * the work that produced them.
+ */
+public class Bench {
+
+    /** An operation being measured. */
+    public interface Operation {
+
+        /** Runs the operation once.
+         *
+         * @param thread    Index of the thread running the operation.
+         * @param iteration Number of operations this thread ran before this one.
+         * @throws Exception If the operation fails, which aborts the benchmark.
+         */
+        void run(int thread, long iteration) throws Exception;
+    }
+
+    private static volatile long sink;
+
+    private final int warmupIterations;
+    private final int measuredIterations;
+    private final long iterationMillis;
+
+    public Bench(int warmupIterations, int measuredIterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.measuredIterations = measuredIterations;
+        this.iterationMillis = iterationMillis;
+    }
+
+    /** Keeps a value alive, as a JMH Blackhole does. */
+    public static void consume(long value) {
+        if (value == sink)
+            sink = value + 1;
+    }
+
+    public static void consume(Object value) {
+        consume(value == null ? 0 : System.identityHashCode(value));
+    }
+
+    public static void printHeader() {
+        System.out.printf("%-36s %7s %14s %12s %12s%n", "Benchmark", "Threads", "Score (ops/s)", "Error (+/-)",
+                "ns/op");
+    }
+
+    /** Runs a benchmark and prints its result.
+     *
+     * @param name      Name of the benchmark.
+     * @param threads   Number of threads running the operation concurrently.
+     * @param operation Operation to be measured.
+     * @throws Exception If the operation fails.
+     */
+    public void run(String name, int threads, Operation operation) throws Exception {
+        long[] iterationCounts = new long[threads];
+        for (int i = 0; i < warmupIterations; i++)
+            runIteration(threads, operation, iterationCounts);
+        double[] scores = new double[measuredIterations];
+        for (int i = 0; i < measuredIterations; i++) {
+            long ops = runIteration(threads, operation, iterationCounts);
+            scores[i] = ops * 1000.0 / iterationMillis;
+        }
+        double mean = 0, min = Double.MAX_VALUE, max = 0;
+        for (double score : scores) {
+            mean += score / scores.length;
+            min = Math.min(min, score);
+            max = Math.max(max, score);
+        }
+        double nanosPerOp = mean == 0 ? Double.NaN : TimeUnit.SECONDS.toNanos(1) * threads / mean;
+        System.out.printf("%-36s %7d %14.0f %12.0f %12.1f%n", name, threads, mean, (max - min) / 2, nanosPerOp);
+    }
+
+    // runs the operation on every thread for one iteration and returns the number of operations
+    private long runIteration(int threads, Operation operation, long[] iterationCounts) throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        long[] counts = new long[threads];
+        Exception[] failures = new Exception[threads];
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            Thread worker = new Thread(() -> {
+                long iteration = iterationCounts[thread];
+                long ops = 0;
+                try {
+                    start.await();
+                    while (running.get()) {
+                        operation.run(thread, iteration++);
+                        ops++;
+                    }
+                } catch (Exception e) {
+                    failures[thread] = e;
+                }
+                counts[thread] = ops;
+                iterationCounts[thread] = iteration;
+            }, "bench-" + t);
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        Thread.sleep(iterationMillis);
+        running.set(false);
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            workers.get(t).join();
+            if (failures[t] != null)
+                throw failures[t];
+            total += counts[t];
+        }
+        return total;
+    }
+}
@@ -0,0 +1,205 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Micro- and end-to-end benchmarks of the resolver's hot paths:
+ *
+ * <ul>
+ * <li>codec: decoding captured-style responses (a large root referral with NS, A and AAAA glue,
+ * a CNAME chain, a long answer set, all name-compressed) and encoding queries;</li>
+ * <li>cache: lookups and mixed lookups and insertions (90/10) on one and many threads;</li>
+ * <li>resolve: full resolutions through the in-process FakeNameServers, of new names (one
+ * query to the authoritative server each, the zone cut being cached) and of cached names;</li>
+ * <li>lookups: bursts of concurrent resolutions of new names, through an authoritative server
+ * that takes LOOKUP_DELAY ms to reply, run on a pool of platform threads and on virtual threads
+ * (a platform thread per lookup before Java 21) with a much higher cap (see LookupExecutor).</li>
+ * </ul>
+ *
+ * Usage: Benchmarks [group or benchmark name prefix ...]. Runs every benchmark by default.
+ */
+public class Benchmarks {
+
+    private static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final int CACHE_NODES = 1 << 16;
+    private static final int BURST = 256;
+    private static final int LOOKUP_DELAY = 20;
+    private static final int PLATFORM_POOL = 64;
+
+    private final Bench bench = new Bench(3, 5, 1000);
+    private final String[] filters;
+
+    private Benchmarks(String[] filters) {
+        this.filters = filters;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Benchmarks benchmarks = new Benchmarks(args);
+        Bench.printHeader();
+        benchmarks.codec();
+        benchmarks.cache();
+        benchmarks.resolve();
+        benchmarks.lookups();
+        System.exit(0);
+    }
+
+    private boolean selected(String name) {
+        if (filters.length == 0)
+            return true;
+        for (String filter : filters)
+            if (name.startsWith(filter))
+                return true;
+        return false;
+    }
+
+    private void run(String name, int threads, Bench.Operation operation) throws Exception {
+        if (selected(name))
+            bench.run(name, threads, operation);
+    }
+
+    private void codec() throws Exception {
+        byte[] referral = rootReferral();
+        byte[] cnameChain = cnameChain();
+        byte[] largeAnswer = largeAnswer();
+        run("codec.decode.referral", 1, (t, i) -> decode(referral));
+        run("codec.decode.cnameChain", 1, (t, i) -> decode(cnameChain));
+        run("codec.decode.largeAnswer", 1, (t, i) -> decode(largeAnswer));
+
+        DNSNode[] nodes = new DNSNode[256];
+        for (int i = 0; i < nodes.length; i++)
+            nodes[i] = new DNSNode("host" + i + ".example.com", RecordType.A);
+        DNSQueryEncoder encoder = DNSQueryEncoder.getInstance();
+        run("codec.encode.query", 1, (t, i) -> {
+            DNSQuery query = new DNSQuery(nodes[(int) (i & 255)], (int) i & 0xffff, true);
+            Bench.consume(query.toBytes());
+        });
+        run("codec.encode.pooled", 1, (t, i) -> {
+            ByteBuffer buffer = encoder.encode(nodes[(int) (i & 255)], (int) i & 0xffff, true);
+            Bench.consume(buffer.remaining());
+            encoder.release(buffer);
+        });
+    }
+
+    private static void decode(byte[] packet) throws Exception {
+        DNSResponse response = new DNSResponse();
+        response.decode(packet, packet.length);
+        Bench.consume(response.answers.size() + response.nameServers.size() + response.additional.size());
+    }
+
+    private void cache() throws Exception {
+        DNSCache cache = DNSCache.getInstance();
+        DNSNode[] nodes = new DNSNode[CACHE_NODES];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new DNSNode("node" + i + ".cache.bench", RecordType.A);
+            cache.addResult(new ResourceRecord(nodes[i].getHostName(), RecordType.A, 3600, inet(i)));
+        }
+        for (int threads : new int[]{1, THREADS}) {
+            run("cache.read", threads, (t, i) ->
+                    Bench.consume(cache.getCachedResults(nodes[ThreadLocalRandom.current().nextInt(CACHE_NODES)])));
+            run("cache.mixed90r10w", threads, (t, i) -> {
+                int n = ThreadLocalRandom.current().nextInt(CACHE_NODES);
+                if (n % 10 == 0)
+                    cache.addResult(new ResourceRecord(nodes[n].getHostName(), RecordType.A, 3600, inet(n)));
+                else
+                    Bench.consume(cache.getCachedResults(nodes[n]));
+            });
+        }
+    }
+
+    private void resolve() throws Exception {
+        if (!selected("resolve"))
+            return;
+        try (FakeNameServers servers = new FakeNameServers();
+             Resolver resolver = new Resolver(servers.getRootAddress(), DNSCache.getInstance(), THREADS,
+                     Resolver.DEFAULT_TIMEOUT, servers.getPort())) {
+            DNSNode cached = new DNSNode("cached." + FakeNameServers.ZONE, RecordType.A);
+            if (resolver.getResults(cached).isEmpty())
+                throw new IllegalStateException("Fake name servers did not answer");
+            for (int threads : new int[]{1, THREADS * 4}) {
+                run("resolve.miss", threads, (t, i) -> Bench.consume(resolver.getResults(
+                        new DNSNode("t" + t + "-" + i + "-" + threads + "." + FakeNameServers.ZONE, RecordType.A))));
+                run("resolve.cached", threads, (t, i) -> Bench.consume(resolver.getResults(cached)));
+            }
+        }
+    }
+
+    private void lookups() throws Exception {
+        if (!selected("lookups"))
+            return;
+        try (FakeNameServers servers = new FakeNameServers()) {
+            servers.setAuthoritativeDelay(LOOKUP_DELAY);
+            lookups(servers, "lookups.platform", LookupExecutor.Mode.PLATFORM, PLATFORM_POOL);
+            lookups(servers, "lookups.virtual", LookupExecutor.Mode.VIRTUAL, BURST * 4);
+        }
+    }
+
+    // one operation is a burst of BURST lookups of new names, all submitted at once
+    private void lookups(FakeNameServers servers, String name, LookupExecutor.Mode mode, int maxLookups)
+            throws Exception {
+        try (Resolver resolver = new Resolver(servers.getRootAddress(), DNSCache.getInstance(), maxLookups,
+                Resolver.DEFAULT_TIMEOUT, servers.getPort(), mode)) {
+            if (mode == LookupExecutor.Mode.VIRTUAL && !resolver.getLookupExecutor().isVirtual())
+                System.out.println("# no virtual threads on this JVM, " + name + " runs a platform thread per lookup");
+            CompletableFuture<?>[] burst = new CompletableFuture<?>[BURST];
+            run(name + ".burst" + BURST, 1, (t, i) -> {
+                for (int n = 0; n < BURST; n++)
+                    burst[n] = resolver.resolveAsync(
+                            new DNSNode(name + "-" + i + "-" + n + "." + FakeNameServers.ZONE, RecordType.A));
+                CompletableFuture.allOf(burst).join();
+            });
+        }
+    }
+
+    // a root server referral for a .com name: 13 name servers with IPv4 and IPv6 glue
+    static byte[] rootReferral() {
+        PacketBuilder builder = new PacketBuilder(0x1234, PacketBuilder.FLAGS_RESPONSE)
+                .question("www.example.com", RecordType.A);
+        for (char c = 'a'; c <= 'm'; c++)
+            builder.name(1, "com", RecordType.NS, 172800, c + ".gtld-servers.net");
+        for (char c = 'a'; c <= 'm'; c++)
+            builder.address(2, c + ".gtld-servers.net", 172800, new byte[]{(byte) 192, 5, 6, (byte) (c - 'a' + 30)});
+        for (char c = 'a'; c <= 'm'; c++) {
+            byte[] address = new byte[16];
+            address[0] = 0x20;
+            address[1] = 0x01;
+            address[2] = 0x05;
+            address[3] = 0x03;
+            address[15] = (byte) (c - 'a' + 0x30);
+            builder.address(2, c + ".gtld-servers.net", 172800, address);
+        }
+        return builder.build();
+    }
+
+    // a CDN-style answer: three CNAMEs followed by the addresses of the final target
+    static byte[] cnameChain() {
+        PacketBuilder builder = new PacketBuilder(0x2345, PacketBuilder.FLAGS_RESPONSE)
+                .question("www.shop.example.com", RecordType.A)
+                .name(0, "www.shop.example.com", RecordType.CNAME, 300, "shop.example.com.cdn.example.net")
+                .name(0, "shop.example.com.cdn.example.net", RecordType.CNAME, 60, "edge.cdn.example.net")
+                .name(0, "edge.cdn.example.net", RecordType.CNAME, 20, "e1234.a.cdn.example.net");
+        for (int i = 0; i < 4; i++)
+            builder.address(0, "e1234.a.cdn.example.net", 20, address(i));
+        return builder.build();
+    }
+
+    // an authoritative answer with many address records, as sent over TCP or with EDNS
+    static byte[] largeAnswer() {
+        PacketBuilder builder = new PacketBuilder(0x3456, PacketBuilder.FLAGS_RESPONSE | PacketBuilder.FLAGS_AUTHORITATIVE)
+                .question("pool.example.org", RecordType.A);
+        for (int i = 0; i < 64; i++)
+            builder.address(0, "pool.example.org", 300, address(i));
+        return builder.name(1, "example.org", RecordType.NS, 3600, "ns1.example.org")
+                .name(1, "example.org", RecordType.NS, 3600, "ns2.example.org")
+                .build();
+    }
+
+    private static byte[] address(int i) {
+        return new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+    }
+
+    private static InetAddress inet(int i) throws Exception {
+        return InetAddress.getByAddress(address(i));
+    }
+}
@@ -0,0 +1,153 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** In-process name servers for end-to-end benchmarks, listening on the same ephemeral UDP port
+ * of two loopback addresses. The root server (127.0.0.1) refers every question to the zone
+ * bench.test, with glue; the authoritative server (127.0.0.2) answers every question with an
+ * address record derived from the question, so any number of distinct names can be resolved.
+ * The authoritative server can be made to reply after a delay, like a distant server, without
+ * holding up the replies to other queries.
+ */
+public class FakeNameServers implements Closeable {
+
+    public static final String ZONE = "bench.test";
+
+    private static final byte[] AUTHORITATIVE_ADDRESS = {127, 0, 0, 2};
+    // bursts of concurrent lookups must not overflow the servers' sockets
+    private static final int RECEIVE_BUFFER_SIZE = 4 << 20;
+
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    private final ScheduledExecutorService delayedReplies = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "fake-delayed-replies");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int port;
+    private volatile long authoritativeDelay = 0;
+
+    public FakeNameServers() throws IOException {
+        IOException failure = null;
+        for (int attempt = 0; attempt < 10; attempt++) {
+            DatagramChannel root = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+            int candidate = ((InetSocketAddress) root.getLocalAddress()).getPort();
+            try {
+                DatagramChannel authoritative = DatagramChannel.open()
+                        .bind(new InetSocketAddress("127.0.0.2", candidate));
+                root.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+                authoritative.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+                channels.add(root);
+                channels.add(authoritative);
+                this.port = candidate;
+                start(root, true);
+                start(authoritative, false);
+                return;
+            } catch (IOException e) {
+                root.close();
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    public InetAddress getRootAddress() throws IOException {
+        return InetAddress.getByName("127.0.0.1");
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /** @param millis Time the authoritative server waits before replying, 0 to reply at once. */
+    public void setAuthoritativeDelay(long millis) {
+        this.authoritativeDelay = millis;
+    }
+
+    private void start(DatagramChannel channel, boolean root) {
+        Thread thread = new Thread(() -> serve(channel, root), root ? "fake-root" : "fake-authoritative");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void serve(DatagramChannel channel, boolean root) {
+        ByteBuffer buffer = ByteBuffer.allocate(65535);
+        try {
+            while (true) {
+                buffer.clear();
+                SocketAddress client = channel.receive(buffer);
+                buffer.flip();
+                byte[] reply = reply(buffer, root);
+                long delay = root ? 0 : authoritativeDelay;
+                if (reply != null && delay > 0)
+                    delayedReplies.schedule(() -> send(channel, reply, client), delay, TimeUnit.MILLISECONDS);
+                else if (reply != null)
+                    channel.send(ByteBuffer.wrap(reply), client);
+            }
+        } catch (IOException e) {
+            // channel closed
+        }
+    }
+
+    private static void send(DatagramChannel channel, byte[] reply, SocketAddress client) {
+        try {
+            channel.send(ByteBuffer.wrap(reply), client);
+        } catch (IOException e) {
+            // channel closed
+        }
+    }
+
+    // builds the reply to a query, or returns null if the query cannot be parsed
+    private static byte[] reply(ByteBuffer query, boolean root) {
+        if (query.remaining() < 17)
+            return null;
+        int id = query.getShort(0) & 0xffff;
+        StringBuilder name = new StringBuilder();
+        int position = 12;
+        for (int length; (length = query.get(position) & 0xff) != 0; position += length + 1) {
+            if (length > 63 || position + length + 5 > query.limit())
+                return null;
+            if (name.length() > 0)
+                name.append('.');
+            for (int i = 1; i <= length; i++)
+                name.append((char) query.get(position + i));
+        }
+        RecordType type = RecordType.getByCode(query.getShort(position + 1) & 0xffff);
+        String host = name.toString();
+
+        if (root) {
+            return new PacketBuilder(id, PacketBuilder.FLAGS_RESPONSE)
+                    .question(host, type)
+                    .name(1, ZONE, RecordType.NS, 3600, "ns1." + ZONE)
+                    .address(2, "ns1." + ZONE, 3600, AUTHORITATIVE_ADDRESS)
+                    .build();
+        }
+        PacketBuilder builder = new PacketBuilder(id, PacketBuilder.FLAGS_RESPONSE | PacketBuilder.FLAGS_AUTHORITATIVE)
+                .question(host, type);
+        if (type == RecordType.A) {
+            int hash = host.hashCode();
+            builder.address(0, host, 300, new byte[]{10, (byte) (hash >> 16), (byte) (hash >> 8), (byte) hash});
+        } else {
+            builder.soa(1, ZONE, 300, 60);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delayedReplies.shutdownNow();
+        for (DatagramChannel channel : channels)
+            channel.close();
+    }
+}
@@ -0,0 +1,108 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Builds DNS messages the way name servers do, compressing every name against the names
+ * already written, so that benchmarks decode realistic packets. Records must be added in
+ * section order (answers, then authority, then additional).
+ */
+public class PacketBuilder {
+
+    public static final int FLAGS_RESPONSE = 0x8000;
+    public static final int FLAGS_AUTHORITATIVE = 0x0400;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(65535);
+    private final Map<String, Integer> names = new HashMap<>();
+    private final int[] counts = new int[4];
+
+    public PacketBuilder(int id, int flags) {
+        buffer.putShort((short) id).putShort((short) flags).putLong(0);
+    }
+
+    public PacketBuilder question(String name, RecordType type) {
+        writeName(name);
+        buffer.putShort((short) type.getCode()).putShort((short) 1);
+        counts[0]++;
+        return this;
+    }
+
+    public PacketBuilder address(int section, String name, int ttl, byte[] address) {
+        startRecord(section, name, address.length == 4 ? RecordType.A : RecordType.AAAA, ttl);
+        buffer.putShort((short) address.length).put(address);
+        return this;
+    }
+
+    public PacketBuilder name(int section, String name, RecordType type, int ttl, String target) {
+        startRecord(section, name, type, ttl);
+        int lengthOffset = buffer.position();
+        buffer.putShort((short) 0);
+        writeName(target);
+        buffer.putShort(lengthOffset, (short) (buffer.position() - lengthOffset - 2));
+        return this;
+    }
+
+    public PacketBuilder soa(int section, String zone, int ttl, int minimum) {
+        startRecord(section, zone, RecordType.SOA, ttl);
+        int lengthOffset = buffer.position();
+        buffer.putShort((short) 0);
+        writeName("ns1." + zone);
+        writeName("hostmaster." + zone);
+        buffer.putInt(1).putInt(3600).putInt(600).putInt(86400).putInt(minimum);
+        buffer.putShort(lengthOffset, (short) (buffer.position() - lengthOffset - 2));
+        return this;
+    }
+
+    /** Finishes the message, truncating it (and setting the TC bit) if it is longer than the
+     * given UDP payload size.
+     */
+    public byte[] build(int maxLength) {
+        for (int i = 0; i < 4; i++)
+            buffer.putShort(4 + 2 * i, (short) counts[i]);
+        int length = buffer.position();
+        if (length > maxLength) {
+            buffer.putShort(2, (short) (buffer.getShort(2) | 0x0200));
+            for (int i = 1; i < 4; i++)
+                buffer.putShort(4 + 2 * i, (short) 0);
+            length = questionEnd;
+        }
+        return Arrays.copyOf(buffer.array(), length);
+    }
+
+    public byte[] build() {
+        return build(65535);
+    }
+
+    private int questionEnd = -1;
+
+    private void startRecord(int section, String name, RecordType type, int ttl) {
+        if (questionEnd < 0)
+            questionEnd = buffer.position();
+        counts[section + 1]++;
+        writeName(name);
+        buffer.putShort((short) type.getCode()).putShort((short) 1).putInt(ttl);
+    }
+
+    private void writeName(String name) {
+        if (name.endsWith("."))
+            name = name.substring(0, name.length() - 1);
+        while (!name.isEmpty()) {
+            Integer pointer = names.get(name.toLowerCase());
+            if (pointer != null) {
+                buffer.putShort((short) (0xC000 | pointer));
+                return;
+            }
+            if (buffer.position() < 0x3FFF)
+                names.put(name.toLowerCase(), buffer.position());
+            int dot = name.indexOf('.');
+            String label = dot < 0 ? name : name.substring(0, dot);
+            buffer.put((byte) label.length());
+            for (int i = 0; i < label.length(); i++)
+                buffer.put((byte) label.charAt(i));
+            name = dot < 0 ? "" : name.substring(dot + 1);
+        }
+        buffer.put((byte) 0);
+    }
+}
@@ -0,0 +1,126 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/** Resolves a stream of host names with bounded concurrency. Each input line has the same
+ * format as the arguments of the lookup command (a host name, optionally followed by a record
+ * type; anything after a '#' is ignored). Results are printed in the same format as lookup,
+ * either in input order or as soon as each resolution completes.
+ *
+ * Input is read only as fast as results are produced: at most maxInFlight names are being
+ * resolved or waiting to be printed at any time, so memory use does not depend on the size of
+ * the input. Names are resolved with Resolver.resolveAsync, so the resolver's thread mode,
+ * maximum number of concurrent lookups and lookup deadline apply to batches as well.
+ */
+public class BatchLookup {
+
+    public static final int DEFAULT_IN_FLIGHT = 256;
+
+    private final Resolver resolver;
+    private final int maxInFlight;
+    private final boolean ordered;
+
+    private long names = 0;
+    private long invalid = 0;
+
+    public BatchLookup(Resolver resolver, int maxInFlight, boolean ordered) {
+        this.resolver = resolver;
+        this.maxInFlight = maxInFlight;
+        this.ordered = ordered;
+    }
+
+    /** Resolves every name read from the input and prints the results.
+     *
+     * @param in  Source of host names, one per line.
+     * @param out Destination of the results.
+     * @throws IOException If the input cannot be read.
+     */
+    public void run(BufferedReader in, PrintStream out) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (ordered)
+                runOrdered(in, out);
+            else
+                runUnordered(in, out);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.err.printf("Resolved %d names in %d ms (%d invalid lines)\n", names,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), invalid);
+    }
+
+    // results are kept in a window of maxInFlight lookups and printed from its head
+    private void runOrdered(BufferedReader in, PrintStream out) throws IOException, InterruptedException {
+        Deque<Future<Set<ResourceRecord>>> window = new ArrayDeque<>();
+        Deque<DNSNode> nodes = new ArrayDeque<>();
+        DNSNode node;
+        while ((node = nextNode(in)) != null) {
+            if (window.size() >= maxInFlight)
+                printHead(window, nodes, out);
+            window.add(resolver.resolveAsync(node));
+            nodes.add(node);
+        }
+        while (!window.isEmpty())
+            printHead(window, nodes, out);
+    }
+
+    private void printHead(Deque<Future<Set<ResourceRecord>>> window, Deque<DNSNode> nodes, PrintStream out)
+            throws InterruptedException {
+        DNSNode node = nodes.poll();
+        try {
+            DNSLookupService.printResults(out, node, window.poll().get());
+        } catch (ExecutionException e) {
+            DNSLookupService.printResults(out, node, Collections.emptySet());
+        }
+    }
+
+    // a permit is taken for each lookup and given back once its results are printed
+    private void runUnordered(BufferedReader in, PrintStream out) throws IOException, InterruptedException {
+        Semaphore permits = new Semaphore(maxInFlight);
+        DNSNode node;
+        while ((node = nextNode(in)) != null) {
+            permits.acquire();
+            DNSNode lookupNode = node;
+            resolver.resolveAsync(node).whenComplete((results, failure) -> {
+                try {
+                    synchronized (out) {
+                        DNSLookupService.printResults(out, lookupNode,
+                                failure == null ? results : Collections.<ResourceRecord>emptySet());
+                    }
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+        permits.acquire(maxInFlight);
+    }
+
+    // next valid host name and type from the input, or null at the end of the input
+    private DNSNode nextNode(BufferedReader in) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim().split("#", 2)[0].trim();
+            if (line.isEmpty())
+                continue;
+            String[] fields = line.split("\\s+");
+            try {
+                if (fields.length > 2)
+                    throw new IllegalArgumentException();
+                RecordType type = fields.length == 2 ? RecordType.valueOf(fields[1].toUpperCase()) : RecordType.A;
+                names++;
+                return new DNSNode(fields[0], type);
+            } catch (IllegalArgumentException e) {
+                invalid++;
+                System.err.println("Invalid line ignored: " + line);
+            }
+        }
+        return null;
+    }
+}
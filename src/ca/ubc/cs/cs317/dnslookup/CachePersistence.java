@@ -0,0 +1,74 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** Keeps a DNS cache persisted to a snapshot file. When started, an existing snapshot is mapped
+ * and attached to the cache, so the cache is warm right away and nodes are loaded lazily as they
+ * are requested. The cache is then saved periodically, when persistence is closed, and when the
+ * JVM shuts down. After each save the new snapshot replaces the one attached to the cache.
+ */
+public class CachePersistence implements Closeable {
+
+    private final DNSCache cache;
+    private final Path file;
+    private final ScheduledExecutorService scheduler;
+    private final Thread shutdownHook;
+
+    public CachePersistence(DNSCache cache, Path file, long intervalSeconds) throws IOException {
+        this.cache = cache;
+        this.file = file;
+        if (Files.exists(file))
+            cache.attachSnapshot(CacheSnapshot.open(file));
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-cache-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::saveQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        shutdownHook = new Thread(this::saveQuietly, "dns-cache-snapshot-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /** Writes a snapshot of the cache now, and attaches it in place of the previous one.
+     *
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public synchronized void save() throws IOException {
+        CacheSnapshot previous = cache.getSnapshot();
+        CacheSnapshot.write(cache, previous, file);
+        cache.attachSnapshot(CacheSnapshot.open(file));
+        if (previous != null)
+            previous.close();
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException e) {
+            System.err.println("Cannot save cache snapshot to " + file + " (" + e.getMessage() + ").");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdownNow();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // already shutting down, the hook saves the cache
+            return;
+        }
+        save();
+    }
+}
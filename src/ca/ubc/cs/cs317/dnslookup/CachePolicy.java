@@ -0,0 +1,180 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Size accounting and eviction policy of the DNS cache (W-TinyLFU). Nodes are kept in
+ * least-recently-used order together with their estimated size in bytes, in two parts: a small
+ * admission window (WINDOW_PERCENT of the maximum number of entries) that every new node enters,
+ * and the main part holding the rest. A node pushed out of the window is only admitted into the
+ * main part, once the cache is full, if it has been requested more often than the least
+ * recently used node there, which is evicted instead; otherwise the node itself is evicted.
+ * This keeps one-off names of a crawl from flushing popular names out of the cache, while
+ * records that were just written (e.g. the answer and glue of a response a resolution is
+ * processing) stay in the cache for a while no matter how often they were requested.
+ *
+ * Reads only update the LRU order when the policy lock is free, so lookups never wait on it.
+ * Dropping a few reorderings under contention only makes the order slightly approximate.
+ */
+class CachePolicy {
+
+    /** Size of the admission window, in percent of the maximum number of entries. */
+    static final int WINDOW_PERCENT = 1;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<DNSNode, Integer> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<DNSNode, Integer> main = new LinkedHashMap<>(16, 0.75f, true);
+
+    private volatile FrequencySketch sketch;
+    private long maxEntries;
+    private long maxBytes;
+    private long totalWeight = 0;
+
+    CachePolicy(long maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.sketch = new FrequencySketch(maxEntries);
+    }
+
+    /** Case-insensitive hash of a node, consistent with DNSNode.equals and compareTo, with its
+     * high bits spread into the low ones. It is stable across runs, as snapshot files rely on it.
+     *
+     * @param node Node to be hashed.
+     * @return Hash of the node.
+     */
+    static int hash(DNSNode node) {
+        int hash = node.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    // estimated number of recent accesses to a node (saturates at 15)
+    int frequency(DNSNode node) {
+        return sketch.frequency(hash(node));
+    }
+
+    void recordAccess(DNSNode node) {
+        sketch.increment(hash(node));
+        if (lock.tryLock()) {
+            try {
+                if (window.get(node) == null)
+                    main.get(node);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Records that a node was inserted or its record set replaced.
+     *
+     * @param node   Node that was written.
+     * @param weight Estimated size of the node's records, in bytes.
+     * @return Nodes that should be removed from the cache to stay within its limits.
+     */
+    List<DNSNode> recordWrite(DNSNode node, int weight) {
+        lock.lock();
+        try {
+            Integer oldWeight = main.containsKey(node) ? main.put(node, weight) : window.put(node, weight);
+            totalWeight += weight - (oldWeight == null ? 0 : oldWeight);
+            return evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void recordRemoval(DNSNode node) {
+        lock.lock();
+        try {
+            Integer oldWeight = window.remove(node);
+            if (oldWeight == null)
+                oldWeight = main.remove(node);
+            if (oldWeight != null)
+                totalWeight -= oldWeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Changes the limits of the cache.
+     *
+     * @param maxEntries Maximum number of nodes kept in the cache.
+     * @param maxBytes   Maximum estimated size of all cached records, in bytes.
+     * @return Nodes that should be removed from the cache to stay within the new limits.
+     */
+    List<DNSNode> setLimits(long maxEntries, long maxBytes) {
+        lock.lock();
+        try {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+            this.sketch = new FrequencySketch(maxEntries);
+            return evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getMaxEntries() {
+        return maxEntries;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return window.size() + main.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long weightedSize() {
+        lock.lock();
+        try {
+            return totalWeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // must be called with the lock held
+    private List<DNSNode> evict() {
+        long windowSize = Math.max(1, maxEntries * WINDOW_PERCENT / 100);
+        List<DNSNode> evicted = Collections.emptyList();
+        while (!(window.isEmpty() && main.isEmpty())
+                && (window.size() + main.size() > maxEntries || totalWeight > maxBytes)) {
+            LinkedHashMap<DNSNode, Integer> from;
+            if (main.isEmpty()) {
+                from = window;
+            } else if (window.size() > windowSize) {
+                // the window's eldest node competes with the main part's victim; ties go to the victim
+                DNSNode candidate = window.keySet().iterator().next();
+                DNSNode victim = main.keySet().iterator().next();
+                if (sketch.frequency(hash(candidate)) > sketch.frequency(hash(victim))) {
+                    main.put(candidate, window.remove(candidate));
+                    from = main;
+                } else {
+                    from = window;
+                }
+            } else {
+                from = main;
+            }
+            Iterator<Map.Entry<DNSNode, Integer>> lru = from.entrySet().iterator();
+            Map.Entry<DNSNode, Integer> removed = lru.next();
+            totalWeight -= removed.getValue();
+            lru.remove();
+            if (evicted.isEmpty())
+                evicted = new ArrayList<>();
+            evicted.add(removed.getKey());
+        }
+        // while the cache is not full, nodes leaving the window are admitted without competing
+        while (window.size() > windowSize) {
+            Iterator<Map.Entry<DNSNode, Integer>> eldest = window.entrySet().iterator();
+            Map.Entry<DNSNode, Integer> admitted = eldest.next();
+            eldest.remove();
+            main.put(admitted.getKey(), admitted.getValue());
+        }
+        return evicted;
+    }
+}
@@ -0,0 +1,360 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/** Compact binary snapshot of the DNS cache, used to warm up the cache after a restart.
+ *
+ * Records are stored with their absolute expiration time, so TTLs remain correct no matter how
+ * long the process was down, and expired records are simply skipped. The file starts with an
+ * open-addressing hash table of node offsets, followed by one entry per node:
+ *
+ * <pre>
+ * header:  int magic, int version, int slot count, int node count, long time written
+ * slots:   int offset of the node entry in the file, or 0 for an empty slot
+ * node:    short name length, canonical name bytes, short type code, short record count, records
+ * record:  long expiration time (ms since epoch), int original TTL (s),
+ *          byte kind (0 = text, 4 = IPv4, 6 = IPv6), short data length,
+ *          data (text bytes or raw address)
+ * </pre>
+ *
+ * Opening a snapshot only maps the file into memory and checks its header, so it takes the same
+ * time regardless of its size. Nodes are then decoded one at a time, when the cache misses them
+ * (see DNSCache.attachSnapshot).
+ */
+public class CacheSnapshot implements Closeable {
+
+    private static final int MAGIC = 0x444e5343; // "DNSC"
+    private static final int VERSION = 3;
+    private static final int HEADER_LENGTH = 24;
+
+    private static final byte KIND_TEXT = 0;
+    private static final byte KIND_IPV4 = 4;
+    private static final byte KIND_IPV6 = 6;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private final int nodeCount;
+    private final long writtenAt;
+
+    private CacheSnapshot(FileChannel channel, MappedByteBuffer buffer) throws IOException {
+        this.channel = channel;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_LENGTH || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException("Not a DNS cache snapshot");
+        this.slots = buffer.getInt(8);
+        this.nodeCount = buffer.getInt(12);
+        this.writtenAt = buffer.getLong(16);
+        // the slot table must fit in the file, with room for the entries of the nodes it counts
+        long entries = buffer.capacity() - (HEADER_LENGTH + 4L * slots);
+        if (slots <= 0 || Integer.bitCount(slots) != 1 || entries < 0
+                || nodeCount < 0 || nodeCount >= slots || (nodeCount > 0 && entries == 0))
+            throw new IOException("Corrupt DNS cache snapshot");
+    }
+
+    /** Maps a snapshot file into memory.
+     *
+     * @param file Snapshot file previously written by write.
+     * @return The snapshot, to be closed when no longer needed.
+     * @throws IOException If the file cannot be read or is not a snapshot.
+     */
+    public static CacheSnapshot open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Snapshot too large to map");
+            return new CacheSnapshot(channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public long getWrittenAt() {
+        return writtenAt;
+    }
+
+    /** Returns the unexpired records stored for a node.
+     *
+     * @param node Host name and record type to be looked up.
+     * @return A potentially empty list of records.
+     * @throws UncheckedIOException If the entries of the snapshot are found to be corrupt.
+     */
+    public List<ResourceRecord> getRecords(DNSNode node) {
+        int mask = slots - 1;
+        try {
+            for (int i = 0, slot = CachePolicy.hash(node) & mask; i < slots; i++, slot = (slot + 1) & mask) {
+                int offset = entryOffset(slot);
+                if (offset == 0)
+                    return Collections.emptyList();
+                if (matches(offset, node))
+                    return readRecords(offset, node, null);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw corrupt(e);
+        }
+        return Collections.emptyList();
+    }
+
+    /** Decodes every node of the snapshot with its unexpired records. Meant for merging an old
+     * snapshot into a new one, not for lookups.
+     *
+     * @param consumer Action performed for each node and its records.
+     * @throws UncheckedIOException If the entries of the snapshot are found to be corrupt.
+     */
+    public void forEachNode(BiConsumer<DNSNode, List<ResourceRecord>> consumer) {
+        for (int slot = 0; slot < slots; slot++) {
+            DNSNode[] node = new DNSNode[1];
+            List<ResourceRecord> records;
+            try {
+                int offset = entryOffset(slot);
+                if (offset == 0)
+                    continue;
+                records = readRecords(offset, null, node);
+            } catch (IndexOutOfBoundsException e) {
+                throw corrupt(e);
+            }
+            if (!records.isEmpty())
+                consumer.accept(node[0], records);
+        }
+    }
+
+    // offset of the node entry in a slot, or 0 for an empty slot; entries lie after the slot table
+    private int entryOffset(int slot) {
+        int offset = buffer.getInt(HEADER_LENGTH + 4 * slot);
+        if (offset != 0 && (offset < HEADER_LENGTH + 4 * slots || offset >= buffer.capacity()))
+            throw new IndexOutOfBoundsException("Node entry at " + offset);
+        return offset;
+    }
+
+    private static UncheckedIOException corrupt(IndexOutOfBoundsException e) {
+        return new UncheckedIOException(new IOException("Corrupt DNS cache snapshot", e));
+    }
+
+    // compares the name and type of the node entry at an offset with a node
+    private boolean matches(int offset, DNSNode node) {
+        int nameLength = buffer.getShort(offset) & 0xffff;
+        String name = node.getCanonicalName();
+        if (nameLength != name.length())
+            return false;
+        for (int i = 0; i < nameLength; i++)
+            if ((buffer.get(offset + 2 + i) & 0xff) != name.charAt(i))
+                return false;
+        return (buffer.getShort(offset + 2 + nameLength) & 0xffff) == node.getType().getCode();
+    }
+
+    // decodes the records of the node entry at an offset; the node is decoded too if not given
+    private List<ResourceRecord> readRecords(int offset, DNSNode node, DNSNode[] decodedNode) {
+        int nameLength = buffer.getShort(offset) & 0xffff;
+        if (node == null) {
+            byte[] name = new byte[nameLength];
+            for (int i = 0; i < nameLength; i++)
+                name[i] = buffer.get(offset + 2 + i);
+            node = new DNSNode(new String(name, StandardCharsets.ISO_8859_1),
+                    RecordType.getByCode(buffer.getShort(offset + 2 + nameLength) & 0xffff));
+            decodedNode[0] = node;
+        }
+        int position = offset + 2 + nameLength + 2;
+        int count = buffer.getShort(position) & 0xffff;
+        position += 2;
+
+        long now = System.currentTimeMillis();
+        List<ResourceRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long expirationTime = buffer.getLong(position);
+            int ttl = buffer.getInt(position + 8);
+            byte kind = buffer.get(position + 12);
+            int length = buffer.getShort(position + 13) & 0xffff;
+            byte[] data = new byte[length];
+            for (int j = 0; j < length; j++)
+                data[j] = buffer.get(position + 15 + j);
+            position += 15 + length;
+            if (expirationTime <= now)
+                continue;
+            try {
+                if (kind == KIND_TEXT)
+                    records.add(new ResourceRecord(node, ttl, expirationTime, new String(data, StandardCharsets.ISO_8859_1)));
+                else
+                    records.add(new ResourceRecord(node, ttl, expirationTime, data));
+            } catch (IllegalArgumentException e) {
+                // invalid address length, skip the record
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /** Writes a snapshot of the unexpired contents of a cache. Nodes of a previous snapshot that
+     * were never loaded into the cache are carried over, so a snapshot written shortly after a
+     * restart does not lose them. The file is written next to the target and then atomically
+     * renamed, so readers never see a partial snapshot.
+     *
+     * Node entries are streamed to the file as they are read: first the nodes of the cache, each
+     * merged with its records in the previous snapshot, then, in one sequential scan, the nodes
+     * of the previous snapshot that the cache does not hold. Only the offset and hash of each
+     * node are kept in memory until the slot table is written. A node loaded into the cache from
+     * the previous snapshot while the snapshot is written may be left out; it is written with
+     * the rest of the cache the next time.
+     *
+     * @param cache    Cache to be saved.
+     * @param previous Snapshot the cache was started from, or null.
+     * @param file     Destination file.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public static void write(DNSCache cache, CacheSnapshot previous, Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            NodeWriter writer = new NodeWriter(channel);
+            try {
+                cache.forEachNode((node, records) -> {
+                    List<ResourceRecord> current = new ArrayList<>(records);
+                    List<ResourceRecord> old = previous == null ? Collections.emptyList() : previous.getRecords(node);
+                    writer.write(node, old.isEmpty() ? current : newest(old, current));
+                });
+                if (previous != null)
+                    previous.forEachNode((node, records) -> {
+                        if (!cache.containsNode(node))
+                            writer.write(node, records);
+                    });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.finish();
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Streams node entries into a snapshot file, keeping only the offset and hash of each. The
+     * entries are written from the start of the file, since the size of the slot table is only
+     * known at the end; they are then moved behind the header and slot table.
+     */
+    private static class NodeWriter {
+
+        private final FileChannel channel;
+        private final DataOutputStream out;
+        private int[] offsets = new int[1024];
+        private int[] hashes = new int[1024];
+        private int count = 0;
+        private long length = 0;
+
+        NodeWriter(FileChannel channel) {
+            this.channel = channel;
+            this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        }
+
+        void write(DNSNode node, List<ResourceRecord> records) {
+            if (length > Integer.MAX_VALUE)
+                throw new UncheckedIOException(new IOException("Cache too large for a snapshot"));
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                hashes = Arrays.copyOf(hashes, count * 2);
+            }
+            offsets[count] = (int) length;
+            hashes[count] = CachePolicy.hash(node);
+            count++;
+            try {
+                length += writeNode(out, node, records);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void finish() throws IOException {
+            out.flush();
+            int slots = Integer.highestOneBit(Math.max(16, count * 2) - 1) << 1;
+            int base = HEADER_LENGTH + 4 * slots;
+            if (base + length > Integer.MAX_VALUE)
+                throw new IOException("Cache too large for a snapshot");
+            moveEntries(base);
+
+            int[] table = new int[slots];
+            for (int i = 0; i < count; i++) {
+                int slot = hashes[i] & (slots - 1);
+                while (table[slot] != 0)
+                    slot = (slot + 1) & (slots - 1);
+                table[slot] = base + offsets[i];
+            }
+            ByteBuffer header = ByteBuffer.allocate(base);
+            header.putInt(MAGIC).putInt(VERSION).putInt(slots).putInt(count).putLong(System.currentTimeMillis());
+            for (int slotOffset : table)
+                header.putInt(slotOffset);
+            header.flip();
+            channel.position(0);
+            while (header.hasRemaining())
+                channel.write(header);
+            channel.force(false);
+        }
+
+        // moves the entries a distance towards the end of the file, last chunk first
+        private void moveEntries(int distance) throws IOException {
+            ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+            for (long end = length; end > 0; ) {
+                long start = Math.max(0, end - chunk.capacity());
+                chunk.clear().limit((int) (end - start));
+                while (chunk.hasRemaining())
+                    if (channel.read(chunk, start + chunk.position()) < 0)
+                        throw new EOFException("Snapshot truncated while written");
+                chunk.flip();
+                while (chunk.hasRemaining())
+                    channel.write(chunk, start + distance + chunk.position());
+                end = start;
+            }
+        }
+    }
+
+    // writes one node entry and returns its length in bytes
+    private static int writeNode(DataOutputStream out, DNSNode node, List<ResourceRecord> records) throws IOException {
+        int start = out.size();
+        byte[] name = node.getCanonicalName().getBytes(StandardCharsets.ISO_8859_1);
+        out.writeShort(name.length);
+        out.write(name);
+        out.writeShort(node.getType().getCode());
+        out.writeShort(Math.min(records.size(), 0xffff));
+        for (ResourceRecord record : records.subList(0, Math.min(records.size(), 0xffff))) {
+            byte[] data = record.getAddress();
+            byte kind;
+            if (data != null) {
+                kind = data.length == 4 ? KIND_IPV4 : KIND_IPV6;
+            } else {
+                data = record.getTextResult().getBytes(StandardCharsets.ISO_8859_1);
+                kind = KIND_TEXT;
+            }
+            out.writeLong(record.getExpirationTime());
+            out.writeInt(record.getOriginalTTL());
+            out.writeByte(kind);
+            out.writeShort(data.length);
+            out.write(data);
+        }
+        return out.size() - start;
+    }
+
+    // records of the cache replace those of an older snapshot, unless the snapshot's last longer
+    private static List<ResourceRecord> newest(List<ResourceRecord> previous, List<ResourceRecord> current) {
+        Map<ResourceRecord, ResourceRecord> merged = new LinkedHashMap<>();
+        for (ResourceRecord record : previous)
+            merged.put(record, record);
+        for (ResourceRecord record : current) {
+            ResourceRecord old = merged.get(record);
+            if (old == null || old.expiresBefore(record))
+                merged.put(record, record);
+        }
+        return new ArrayList<>(merged.values());
+    }
+}
@@ -1,92 +1,621 @@
-package ca.ubc.cs.cs317.dnslookup;
-
-import java.util.*;
-import java.util.function.BiConsumer;
-
-/** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
- * to a set of resource records (results). Cached results are only maintained for the duration
- * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
- * the user.
- */
-public class DNSCache {
-
-    private static DNSCache instance = new DNSCache();
-
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
-
-    /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
-     * method returns the single DNS cache instance.
-     *
-     * @return Instance of a DNS cache.
-     */
-    public static DNSCache getInstance() {
-        return instance;
-    }
-
-    /** Returns a set of resource records already cached for a particular query. If no results
-     * are cached for the specified query, returns an empty set. Expired results are removed
-     * from the cache before being returned. This method does not perform the query itself, it
-     * only returns previously cached results.
-     *
-     * @param node DNS query (host name and record type) to obtain cached results.
-     * @return A potentially empty set of resources associated to the query.
-     */
-    public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
-        if (results == null)
-            return Collections.emptySet();
-
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
-    }
-
-    /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
-     * resource record, the existing record is replaced if the new one expires after the existing
-     * record, otherwise the existing record is maintained.
-     *
-     * @param record Resource record, possibly obtained from a DNS server, containing the result
-     *               of a DNS query.
-     */
-    public void addResult(ResourceRecord record) {
-
-        if (!record.isStillValid()) return;
-
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
-        }
-
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
-    }
-
-    /** Perform a specific action for each query and its set of cached records. This action can
-     * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
-     *
-     * @param consumer Action to be performed for each query and set of records.
-     */
-    public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
-        }
-    }
-
-    /** Perform a specific action for each query and individual record. This action can be
-     * specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
-     *
-     * @param consumer Action to be performed for each query and record.
-     */
-    public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
-        }
-    }
-
-}
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
+ * to a set of resource records (results). Cached results are only maintained for the duration
+ * of the TTL (time-to-live) returned by the server.
+ *
+ * The cache is safe to share between concurrent resolutions. The record set of each node is
+ * immutable and replaced as a whole when it changes, so reads never lock. Writes to the same
+ * node are serialized by one of a fixed number of lock stripes. Expired records are never
+ * removed by readers (they are simply skipped); a background reaper thread removes them once
+ * their expiration time is reached, or once the stale window after it has passed. Each stripe
+ * keeps its own expiration schedule, with at most one pending expiration per node (the earliest
+ * one), which is dropped when the node is evicted, so writers of different stripes never
+ * contend and the schedule never outgrows the cache. Records in
+ * their stale window are only returned by getStaleResults, for serving stale answers when
+ * upstream servers fail (RFC 8767).
+ *
+ * Negative answers (a name that does not exist, or has no records of a type) are cached too, for
+ * the TTL given by the SOA record of the answer (RFC 2308). A negative entry takes the place of
+ * the node's record set, so it shares the eviction and expiration of ordinary entries, and reads
+ * as an empty set.
+ *
+ * The cache is bounded both by number of nodes and by the estimated size of its records. Which
+ * nodes are evicted when a limit is reached is decided by a CachePolicy (LRU eviction behind an
+ * admission window, with frequency-based admission). Hit, miss, eviction and expiration counts are kept for sizing.
+ *
+ * Listeners can be told whenever the record set of a node changes or leaves the cache, so that
+ * copies of it kept elsewhere (such as the encoded responses of a ResponseCache) are dropped.
+ */
+public class DNSCache {
+
+    private static final int STRIPES = 64;
+    public static final long DEFAULT_MAX_ENTRIES = 500_000;
+    public static final long DEFAULT_MAX_BYTES = 128L * 1024 * 1024;
+
+    private static DNSCache instance = new DNSCache();
+
+    private final ConcurrentNavigableMap<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults =
+            new ConcurrentSkipListMap<>();
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final CachePolicy policy = new CachePolicy(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final List<Consumer<DNSNode>> changeListeners = new CopyOnWriteArrayList<>();
+
+    private volatile CacheSnapshot snapshot;
+    private volatile long staleWindow = 0;
+    // time the reaper sleeps until; Long.MAX_VALUE while it scans the stripes
+    private volatile long nextReap = Long.MAX_VALUE;
+    private final Thread reaper;
+
+    private DNSCache() {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+        reaper = new Thread(this::reap, "dns-cache-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
+     * method returns the single DNS cache instance.
+     *
+     * @return Instance of a DNS cache.
+     */
+    public static DNSCache getInstance() {
+        return instance;
+    }
+
+    /** Returns a set of resource records already cached for a particular query. If no results
+     * are cached for the specified query, returns an empty set. Expired results are left out
+     * of the returned set. This method does not perform the query itself, it only returns
+     * previously cached results.
+     *
+     * @param node DNS query (host name and record type) to obtain cached results.
+     * @return A potentially empty set of resources associated to the query.
+     */
+    public Set<ResourceRecord> getCachedResults(DNSNode node) {
+        policy.recordAccess(node);
+        Map<ResourceRecord, ResourceRecord> results = getOrLoad(node);
+        Set<ResourceRecord> valid = results == null ? Collections.emptySet() : validRecords(results);
+        if (results instanceof NegativeEntry && ((NegativeEntry) results).isStillValid())
+            negativeHits.increment();
+        else if (valid.isEmpty())
+            misses.increment();
+        else
+            hits.increment();
+        return valid;
+    }
+
+    /** Returns the unexpired records cached for a query, like getCachedResults, but without
+     * counting the access as a hit or miss. Meant for internal lookups of the resolver (e.g.
+     * probing for delegations) that would otherwise distort the hit ratio.
+     *
+     * @param node DNS query (host name and record type) to obtain cached results.
+     * @return A potentially empty set of resources associated to the query.
+     */
+    public Set<ResourceRecord> peekCachedResults(DNSNode node) {
+        policy.recordAccess(node);
+        Map<ResourceRecord, ResourceRecord> results = getOrLoad(node);
+        return results == null ? Collections.emptySet() : validRecords(results);
+    }
+
+    /** Returns true if the cache holds unexpired records for a query. Unlike the lookups, this
+     * neither loads the query from the attached snapshot nor counts as an access.
+     *
+     * @param node DNS query (host name and record type).
+     * @return true if records are cached for the query.
+     */
+    public boolean containsNode(DNSNode node) {
+        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
+        return results != null && !validRecords(results).isEmpty();
+    }
+
+    /** Returns true if the cache holds an unexpired negative answer for a query, i.e., the
+     * name is known not to exist, or to have no records of the query's type.
+     *
+     * @param node DNS query (host name and record type).
+     * @return true if a negative answer is cached for the query.
+     */
+    public boolean isNegativelyCached(DNSNode node) {
+        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
+        return results instanceof NegativeEntry && ((NegativeEntry) results).isStillValid();
+    }
+
+    /** Returns true if the cache holds an unexpired negative answer for a query because its
+     * name does not exist (NXDOMAIN), as opposed to having no records of the query's type.
+     *
+     * @param node DNS query (host name and record type).
+     * @return true if an NXDOMAIN answer is cached for the query.
+     */
+    public boolean isNxDomain(DNSNode node) {
+        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
+        return results instanceof NegativeEntry && ((NegativeEntry) results).isStillValid()
+                && ((NegativeEntry) results).nxDomain;
+    }
+
+    /** Caches a negative answer for a query. Unexpired records already cached for the query
+     * are kept, and the negative answer is ignored; a negative answer is replaced by the first
+     * record added for the query.
+     *
+     * @param node     DNS query (host name and record type) that has no results.
+     * @param ttl      Time the negative answer may be cached, in seconds.
+     * @param nxDomain true if the name does not exist (NXDOMAIN), false if it only has no
+     *                 records of this type (NODATA).
+     */
+    public void addNegativeResult(DNSNode node, long ttl, boolean nxDomain) {
+        if (ttl <= 0)
+            return;
+        NegativeEntry entry = new NegativeEntry(System.currentTimeMillis() + ttl * 1000, nxDomain);
+        Stripe stripe = stripeFor(node);
+        synchronized (stripe) {
+            Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
+            if (results != null && !validRecords(results).isEmpty())
+                return;
+            cachedResults.put(node, entry);
+            schedule(stripe, node, entry.expirationTime);
+        }
+        changed(node);
+        evict(policy.recordWrite(node, NegativeEntry.WEIGHT + 2 * node.getCanonicalName().length()));
+    }
+
+    /** Returns the records of a query that have expired, but less than the stale window ago.
+     * These are kept only to be served when a fresh answer cannot be obtained in time. The
+     * access is not counted as a hit or miss.
+     *
+     * @param node DNS query (host name and record type) to obtain stale results.
+     * @return A potentially empty set of expired resources associated to the query.
+     */
+    public Set<ResourceRecord> getStaleResults(DNSNode node) {
+        long window = staleWindow;
+        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
+        if (results == null || window == 0)
+            return Collections.emptySet();
+        long now = System.currentTimeMillis();
+        Set<ResourceRecord> stale = null;
+        for (ResourceRecord record : results.keySet()) {
+            long expirationTime = record.getExpirationTime();
+            if (expirationTime <= now && expirationTime > now - window) {
+                if (stale == null)
+                    stale = new HashSet<>();
+                stale.add(record);
+            }
+        }
+        return stale == null ? Collections.emptySet() : Collections.unmodifiableSet(stale);
+    }
+
+    /** Changes how long expired records are kept to be served stale.
+     *
+     * @param staleWindow Time to keep records after they expire, in milliseconds (0 to remove
+     *                    them as soon as they expire).
+     */
+    public void setStaleWindow(long staleWindow) {
+        if (staleWindow < 0)
+            throw new IllegalArgumentException("Negative stale window");
+        this.staleWindow = staleWindow;
+    }
+
+    public long getStaleWindow() {
+        return staleWindow;
+    }
+
+    /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
+     * resource record, the existing record is replaced if the new one expires after the existing
+     * record, otherwise the existing record is maintained.
+     *
+     * @param record Resource record, possibly obtained from a DNS server, containing the result
+     *               of a DNS query.
+     */
+    public void addResult(ResourceRecord record) {
+
+        if (!record.isStillValid()) return;
+
+        DNSNode node = record.getNode();
+        int weight;
+        Stripe stripe = stripeFor(node);
+        synchronized (stripe) {
+            Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
+            ResourceRecord oldRecord = results == null ? null : results.get(record);
+            if (oldRecord != null && !oldRecord.expiresBefore(record))
+                return;
+
+            Map<ResourceRecord, ResourceRecord> newResults =
+                    results == null ? new HashMap<>() : new HashMap<>(results);
+            // remove first: put would keep the old key, which is what readers iterate over
+            newResults.remove(record);
+            newResults.put(record, record);
+            cachedResults.put(node, Collections.unmodifiableMap(newResults));
+            weight = estimateSize(newResults.keySet());
+            schedule(stripe, node, record.getExpirationTime() + staleWindow);
+        }
+        changed(node);
+        evict(policy.recordWrite(node, weight));
+    }
+
+    /** Counts a hit for a node that was answered from a copy of its records kept outside the
+     * cache (e.g. by a ResponseCache), so that the node stays as popular as if the cache had
+     * served it.
+     *
+     * @param node Host name and record type that was looked up.
+     */
+    public void recordHit(DNSNode node) {
+        policy.recordAccess(node);
+        hits.increment();
+    }
+
+    /** Registers an action run (on the thread making the change) whenever the record set of a
+     * node is replaced, or removed by expiration or eviction.
+     *
+     * @param listener Action receiving the node that changed.
+     */
+    public void addChangeListener(Consumer<DNSNode> listener) {
+        changeListeners.add(listener);
+    }
+
+    public void removeChangeListener(Consumer<DNSNode> listener) {
+        changeListeners.remove(listener);
+    }
+
+    /** Estimates how often a node was looked up recently. The estimate decays over time and
+     * saturates at 15.
+     *
+     * @param node Host name and record type.
+     * @return Approximate number of recent lookups of the node.
+     */
+    public int getFrequency(DNSNode node) {
+        return policy.frequency(node);
+    }
+
+    /** Attaches a snapshot the cache was saved to earlier. Nodes missing from the cache are
+     * looked up in the snapshot and, if found there with unexpired records, loaded into the
+     * cache on first use. A snapshot found to be corrupt is detached (and closed) when a node is
+     * read from it.
+     *
+     * @param snapshot Snapshot to load nodes from, or null to stop loading from a snapshot.
+     */
+    public synchronized void attachSnapshot(CacheSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public CacheSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /** Changes the maximum size of the cache. Nodes are evicted right away if the cache is
+     * larger than the new limits.
+     *
+     * @param maxEntries Maximum number of nodes (host name and type) kept in the cache.
+     * @param maxBytes   Maximum estimated heap size of all cached records, in bytes.
+     */
+    public void setLimits(long maxEntries, long maxBytes) {
+        evict(policy.setLimits(maxEntries, maxBytes));
+    }
+
+    public long getMaxEntries() {
+        return policy.getMaxEntries();
+    }
+
+    public long getMaxBytes() {
+        return policy.getMaxBytes();
+    }
+
+    /** Number of nodes currently held by the cache, including nodes whose records have
+     * expired but were not reaped yet.
+     */
+    public int getSize() {
+        return policy.size();
+    }
+
+    public long getEstimatedBytes() {
+        return policy.weightedSize();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getExpirationCount() {
+        return expired.sum();
+    }
+
+    /** Number of lookups answered by a cached negative answer. */
+    public long getNegativeHitCount() {
+        return negativeHits.sum();
+    }
+
+    /** Perform a specific action for each query and its set of cached records. This action can
+     * be specified using a lambda expression or method name. Expired records are left out
+     * before the action is performed. Iteration is weakly consistent: it never blocks
+     * concurrent lookups, and may or may not reflect changes made while it runs.
+     *
+     * @param consumer Action to be performed for each query and set of records.
+     */
+    public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
+        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
+            Set<ResourceRecord> results = validRecords(entry.getValue());
+            if (!results.isEmpty())
+                consumer.accept(entry.getKey(), results);
+        }
+    }
+
+    /** Perform a specific action for each query and individual record. This action can be
+     * specified using a lambda expression or method name. Expired records are left out before
+     * the action is performed. Iteration is weakly consistent, as in forEachNode.
+     *
+     * @param consumer Action to be performed for each query and record.
+     */
+    public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
+        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
+            validRecords(entry.getValue()).forEach(record -> consumer.accept(entry.getKey(), record));
+        }
+    }
+
+    // record set of a node, loading the node from the attached snapshot if the cache misses it
+    private Map<ResourceRecord, ResourceRecord> getOrLoad(DNSNode node) {
+        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
+        CacheSnapshot snapshot = this.snapshot;
+        if (results != null || snapshot == null)
+            return results;
+        List<ResourceRecord> records;
+        try {
+            records = snapshot.getRecords(node);
+        } catch (UncheckedIOException e) {
+            // a corrupt snapshot is dropped, rather than failing every lookup that misses
+            detachSnapshot(snapshot);
+            return null;
+        }
+        for (ResourceRecord record : records)
+            addResult(record);
+        return cachedResults.get(node);
+    }
+
+    private synchronized void detachSnapshot(CacheSnapshot corrupt) {
+        if (snapshot != corrupt)
+            return;
+        snapshot = null;
+        try {
+            // the mapping stays valid for readers still using it
+            corrupt.close();
+        } catch (IOException e) {
+            // nothing else to release
+        }
+    }
+
+    // the unexpired records of an (immutable) record set, without copying if all are valid
+    private static Set<ResourceRecord> validRecords(Map<ResourceRecord, ResourceRecord> results) {
+        return recordsExpiringAfter(results, System.currentTimeMillis());
+    }
+
+    // the records of an (immutable) record set that expire after a given time
+    private static Set<ResourceRecord> recordsExpiringAfter(Map<ResourceRecord, ResourceRecord> results, long time) {
+        for (ResourceRecord record : results.keySet()) {
+            if (record.getExpirationTime() <= time) {
+                Set<ResourceRecord> valid = new HashSet<>();
+                for (ResourceRecord r : results.keySet())
+                    if (r.getExpirationTime() > time)
+                        valid.add(r);
+                return Collections.unmodifiableSet(valid);
+            }
+        }
+        return results.keySet();
+    }
+
+    // rough heap footprint of a record set: map and its entries, the node and its name, and the
+    // compact records (address records have no text, and names are usually shared)
+    private static int estimateSize(Set<ResourceRecord> records) {
+        int size = 96;
+        for (ResourceRecord record : records) {
+            size += 80;
+            if (!record.hasAddress())
+                size += 2 * record.getTextResult().length();
+        }
+        if (!records.isEmpty())
+            size += 64 + 2 * records.iterator().next().getHostName().length();
+        return size;
+    }
+
+    private void evict(List<DNSNode> victims) {
+        for (DNSNode victim : victims) {
+            Stripe stripe = stripeFor(victim);
+            synchronized (stripe) {
+                if (cachedResults.remove(victim) == null)
+                    continue;
+                unschedule(stripe, victim);
+                evictions.increment();
+            }
+            changed(victim);
+        }
+    }
+
+    private void changed(DNSNode node) {
+        for (Consumer<DNSNode> listener : changeListeners)
+            listener.accept(node);
+    }
+
+    // stripes are picked with a case-insensitive hash, consistent with DNSNode.compareTo
+    private Stripe stripeFor(DNSNode node) {
+        return stripes[CachePolicy.hash(node) & (STRIPES - 1)];
+    }
+
+    // makes sure the node is reaped no later than a given time, keeping only its earliest
+    // pending expiration. Called with the stripe's lock held.
+    private void schedule(Stripe stripe, DNSNode node, long time) {
+        Expiration pending = stripe.scheduled.get(node);
+        if (pending != null) {
+            if (pending.expirationTime <= time)
+                return;
+            stripe.queue.remove(pending);
+        }
+        Expiration expiration = new Expiration(node, time);
+        stripe.scheduled.put(node, expiration);
+        stripe.queue.add(expiration);
+        if (time < nextReap)
+            LockSupport.unpark(reaper);
+    }
+
+    // called with the stripe's lock held
+    private static void unschedule(Stripe stripe, DNSNode node) {
+        Expiration pending = stripe.scheduled.remove(node);
+        if (pending != null)
+            stripe.queue.remove(pending);
+    }
+
+    // reaper thread: takes the expirations that are due from every stripe, removes the expired
+    // records of their nodes, and sleeps until the earliest pending expiration (or until a
+    // writer schedules an earlier one)
+    private void reap() {
+        List<DNSNode> due = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            nextReap = Long.MAX_VALUE;
+            long now = System.currentTimeMillis();
+            long next = Long.MAX_VALUE;
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    while (!stripe.queue.isEmpty() && stripe.queue.first().expirationTime <= now) {
+                        Expiration expiration = stripe.queue.pollFirst();
+                        stripe.scheduled.remove(expiration.node);
+                        due.add(expiration.node);
+                    }
+                }
+                for (DNSNode node : due)
+                    removeExpired(node);
+                due.clear();
+                synchronized (stripe) {
+                    if (!stripe.queue.isEmpty())
+                        next = Math.min(next, stripe.queue.first().expirationTime);
+                }
+            }
+            nextReap = next;
+            if (next == Long.MAX_VALUE)
+                LockSupport.park(this);
+            else
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(1, next - now)));
+        }
+    }
+
+    private void removeExpired(DNSNode node) {
+        int weight;
+        Stripe stripe = stripeFor(node);
+        synchronized (stripe) {
+            Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
+            if (results == null)
+                return;
+            if (results instanceof NegativeEntry) {
+                if (((NegativeEntry) results).isStillValid()) {
+                    schedule(stripe, node, ((NegativeEntry) results).expirationTime);
+                    return;
+                }
+                cachedResults.remove(node);
+                expired.increment();
+                weight = 0;
+            } else {
+                weight = removeExpiredRecords(stripe, node, results);
+                if (weight < 0)
+                    return;
+            }
+        }
+        changed(node);
+        if (weight == 0)
+            policy.recordRemoval(node);
+        else
+            evict(policy.recordWrite(node, weight));
+    }
+
+    // drops the records of a node past their stale window and schedules the node again for the
+    // first of the remaining records; returns the new weight of the node (0 if it has no records
+    // left), or -1 if nothing changed. Called with the stripe's lock held.
+    private int removeExpiredRecords(Stripe stripe, DNSNode node, Map<ResourceRecord, ResourceRecord> results) {
+        long window = staleWindow;
+        long now = System.currentTimeMillis();
+        Set<ResourceRecord> valid = recordsExpiringAfter(results, now - window);
+        long nextExpiration = Long.MAX_VALUE;
+        for (ResourceRecord record : valid)
+            nextExpiration = Math.min(nextExpiration, record.getExpirationTime() + window);
+        if (nextExpiration != Long.MAX_VALUE)
+            schedule(stripe, node, nextExpiration);
+        if (valid.size() == results.size())
+            return -1;
+        expired.add(results.size() - valid.size());
+        if (valid.isEmpty()) {
+            cachedResults.remove(node);
+            return 0;
+        }
+        Map<ResourceRecord, ResourceRecord> newResults = new HashMap<>();
+        for (ResourceRecord record : valid)
+            newResults.put(record, record);
+        cachedResults.put(node, Collections.unmodifiableMap(newResults));
+        return estimateSize(valid);
+    }
+
+    // a cached negative answer: reads as an empty record set until it expires
+    private static final class NegativeEntry extends AbstractMap<ResourceRecord, ResourceRecord> {
+
+        static final int WEIGHT = 160;
+
+        private final long expirationTime;
+        private final boolean nxDomain;
+
+        NegativeEntry(long expirationTime, boolean nxDomain) {
+            this.expirationTime = expirationTime;
+            this.nxDomain = nxDomain;
+        }
+
+        boolean isStillValid() {
+            return expirationTime > System.currentTimeMillis();
+        }
+
+        @Override
+        public Set<Entry<ResourceRecord, ResourceRecord>> entrySet() {
+            return Collections.emptySet();
+        }
+    }
+
+    // lock of a stripe of nodes, and the pending expirations of those nodes, by time and by node
+    private static final class Stripe {
+
+        private final TreeSet<Expiration> queue = new TreeSet<>();
+        private final Map<DNSNode, Expiration> scheduled = new HashMap<>();
+    }
+
+    // a node that has a record expiring at a given time
+    private static final class Expiration implements Comparable<Expiration> {
+
+        private final DNSNode node;
+        private final long expirationTime;
+
+        Expiration(DNSNode node, long expirationTime) {
+            this.node = node;
+            this.expirationTime = expirationTime;
+        }
+
+        @Override
+        public int compareTo(Expiration o) {
+            int byTime = Long.compare(expirationTime, o.expirationTime);
+            return byTime != 0 ? byTime : node.compareTo(o.node);
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 
 // Generic DNS Header for both query and response
@@ -75,14 +74,14 @@ public class DNSHeader {
     }
 
 
-    // DeSerialize Object from input datastream and set fields for object in order
-    public void deserialize(DataInputStream dataInputStream) throws Exception {
+    // DeSerialize Object from the header of a message and set fields for object in order
+    public void deserialize(DNSMessageReader reader) {
 
-        ID = dataInputStream.readUnsignedShort();
-        setParams(dataInputStream.readUnsignedShort());
-        QDCOUNT = dataInputStream.readUnsignedShort();
-        ANCOUNT = dataInputStream.readUnsignedShort();
-        NSCOUNT = dataInputStream.readUnsignedShort();
-        ARCOUNT = dataInputStream.readUnsignedShort();
+        ID = reader.getID();
+        setParams(reader.getFlags());
+        QDCOUNT = reader.getQDCOUNT();
+        ANCOUNT = reader.getANCOUNT();
+        NSCOUNT = reader.getNSCOUNT();
+        ARCOUNT = reader.getARCOUNT();
     }
 }
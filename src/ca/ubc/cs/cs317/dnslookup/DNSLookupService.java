@@ -1,349 +1,539 @@
-package ca.ubc.cs.cs317.dnslookup;
-
-import java.io.Console;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
-import java.util.*;
-
-public class DNSLookupService {
-
-    private static final int DEFAULT_DNS_PORT = 53;
-    private static final int MAX_INDIRECTION_LEVEL = 10;
-
-    private static int currIndirectionLevel = 0;
-    private static InetAddress rootServer;
-    private static boolean verboseTracing = false;
-    private static DatagramSocket socket;
-    private static boolean querySuccess = true;
-    private static int previousQueryID = -1;
-    private static RecordType currOriginalQueryType;
-
-    private static DNSCache cache = DNSCache.getInstance();
-
-    private static Random random = new Random();
-
-    /**
-     * Main function, called when program is first invoked.
-     *
-     * @param args list of arguments specified in the command line.
-     */
-    public static void main(String[] args) {
-
-        if (args.length != 1) {
-            System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
-            System.err.println(
-                    "where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
-            System.exit(1);
-        }
-
-        try {
-            rootServer = InetAddress.getByName(args[0]);
-            System.out.println("Root DNS server is: " + rootServer.getHostAddress());
-        } catch (UnknownHostException e) {
-            System.err.println("Invalid root server (" + e.getMessage() + ").");
-            System.exit(1);
-        }
-
-        try {
-            socket = new DatagramSocket();
-            socket.setSoTimeout(5000);
-        } catch (SocketException ex) {
-            ex.printStackTrace();
-            System.exit(1);
-        }
-
-        Scanner in = new Scanner(System.in);
-        Console console = System.console();
-        do {
-            // Use console if one is available, or standard input if not.
-            String commandLine;
-            if (console != null) {
-                System.out.print("DNSLOOKUP> ");
-                commandLine = console.readLine();
-            } else
-                try {
-                    commandLine = in.nextLine();
-                } catch (NoSuchElementException ex) {
-                    break;
-                }
-            // If reached end-of-file, leave
-            if (commandLine == null)
-                break;
-
-            // Ignore leading/trailing spaces and anything beyond a comment character
-            commandLine = commandLine.trim().split("#", 2)[0];
-
-            // If no command shown, skip to next command
-            if (commandLine.trim().isEmpty())
-                continue;
-
-            String[] commandArgs = commandLine.split(" ");
-
-            if (commandArgs[0].equalsIgnoreCase("quit") || commandArgs[0].equalsIgnoreCase("exit"))
-                break;
-            else if (commandArgs[0].equalsIgnoreCase("server")) {
-                // SERVER: Change root nameserver
-                if (commandArgs.length == 2) {
-                    try {
-                        rootServer = InetAddress.getByName(commandArgs[1]);
-                        System.out.println("Root DNS server is now: " + rootServer.getHostAddress());
-                    } catch (UnknownHostException e) {
-                        System.out.println("Invalid root server (" + e.getMessage() + ").");
-                        continue;
-                    }
-                } else {
-                    System.out.println("Invalid call. Format:\n\tserver IP");
-                    continue;
-                }
-            } else if (commandArgs[0].equalsIgnoreCase("trace")) {
-                // TRACE: Turn trace setting on or off
-                if (commandArgs.length == 2) {
-                    if (commandArgs[1].equalsIgnoreCase("on"))
-                        verboseTracing = true;
-                    else if (commandArgs[1].equalsIgnoreCase("off"))
-                        verboseTracing = false;
-                    else {
-                        System.err.println("Invalid call. Format:\n\ttrace on|off");
-                        continue;
-                    }
-                    System.out.println("Verbose tracing is now: " + (verboseTracing ? "ON" : "OFF"));
-                } else {
-                    System.err.println("Invalid call. Format:\n\ttrace on|off");
-                    continue;
-                }
-            } else if (commandArgs[0].equalsIgnoreCase("lookup") || commandArgs[0].equalsIgnoreCase("l")) {
-                // LOOKUP: Find and print all results associated to a name.
-                RecordType type;
-                if (commandArgs.length == 2)
-                    type = RecordType.A;
-                else if (commandArgs.length == 3)
-                    try {
-                        type = RecordType.valueOf(commandArgs[2].toUpperCase());
-                    } catch (IllegalArgumentException ex) {
-                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
-                        continue;
-                    }
-                else {
-                    System.err.println("Invalid call. Format:\n\tlookup hostName [type]");
-                    continue;
-                }
-                findAndPrintResults(commandArgs[1], type);
-            } else if (commandArgs[0].equalsIgnoreCase("dump")) {
-                // DUMP: Print all results still cached
-                cache.forEachNode(DNSLookupService::printResults);
-            } else {
-                System.err.println("Invalid command. Valid commands are:");
-                System.err.println("\tlookup fqdn [type]");
-                System.err.println("\ttrace on|off");
-                System.err.println("\tserver IP");
-                System.err.println("\tdump");
-                System.err.println("\tquit");
-                continue;
-            }
-
-        } while (true);
-
-        socket.close();
-        System.out.println("Goodbye!");
-    }
-
-    /**
-     * Finds all results for a host name and type and prints them on the standard
-     * output.
-     *
-     * @param hostName Fully qualified domain name of the host being searched.
-     * @param type     Record type for search.
-     */
-    private static void findAndPrintResults(String hostName, RecordType type) {
-
-        DNSNode node = new DNSNode(hostName, type);
-        currOriginalQueryType = type;
-        printResults(node, getResults(node, 0));
-    }
-
-    /**
-     * Finds all the result for a specific node.
-     *
-     * @param node             Host and record type to be used for search.
-     * @param indirectionLevel Control to limit the number of recursive calls due to
-     *                         CNAME redirection. The initial call should be made
-     *                         with 0 (zero), while recursive calls for regarding
-     *                         CNAME results should increment this value by 1. Once
-     *                         this value reaches MAX_INDIRECTION_LEVEL, the
-     *                         function prints an error message and returns an empty
-     *                         set.
-     * @return A set of resource records corresponding to the specific query
-     *         requested.
-     */
-    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
-        currOriginalQueryType = node.getType();
-        if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
-            System.err.println("Maximum number of indirection levels reached.");
-            return Collections.emptySet();
-        }
-
-        if (cache.getCachedResults(node).isEmpty()) {
-            retrieveResultsFromServer(node, rootServer);
-            // if retrieve got A or AAAA, do nothing
-            if (!cache.getCachedResults(node).isEmpty()) {
-                // do nothing
-            } else {
-                // check for CNAME
-                DNSNode cNameNode = new DNSNode(node.getHostName(), RecordType.CNAME);
-                List<ResourceRecord> cNameResults = new ArrayList<ResourceRecord>(cache.getCachedResults(cNameNode));
-                if (!cNameResults.isEmpty()) {
-                    ResourceRecord cNameResult = cNameResults.get(0);
-                    // got a CNAME for the node
-                    DNSNode newNode = new DNSNode(cNameResult.getTextResult(), currOriginalQueryType);
-                    return getResults(newNode, indirectionLevel + 1);
-                }
-            }
-        }
-        return cache.getCachedResults(node);
-    }
-
-    // check cache and additionals for an IP for the name server
-    private static InetAddress findNameServerAddress(String nsName) {
-        // check the cache (the additionals are already added to the cache)
-        DNSNode ipv4Node = new DNSNode(nsName, RecordType.A);
-        List<ResourceRecord> matches = new ArrayList<ResourceRecord>(cache.getCachedResults(ipv4Node));
-        if (!matches.isEmpty()) {
-            return matches.get(0).getInetResult();
-        } else {
-            return null;
-        }
-    }
-
-    private static void processResponse(DNSResponse response, DNSNode node) {
-        // check size of answers
-        if (!response.answers.isEmpty()) {
-            // Then the answers are already in the cache and will be taken care of
-        } else {
-            // nothing in answers
-            // check nameServers
-            List<ResourceRecord> nsArrAll = new ArrayList<ResourceRecord>(response.nameServers);
-
-            // for each one in nsArr, check cache (since additional is already in cache)
-            // find the first nameServer that has an IP
-            boolean foundNSAddress = false;
-
-            // just NS
-            List<ResourceRecord> nsArr = new ArrayList<ResourceRecord>();
-            for (ResourceRecord rec : nsArrAll) {
-                if (rec.getType() == RecordType.NS) {
-                    nsArr.add(rec);
-                }
-            }
-
-            if (nsArr.isEmpty()) {
-                // done
-                return;
-            }
-            for (ResourceRecord rec : nsArr) {
-                String nsName = rec.getTextResult();
-                InetAddress inetAddress = findNameServerAddress(nsName);
-                if (inetAddress == null) {
-                    continue;
-                } else {
-                    foundNSAddress = true;
-                    // found
-                    retrieveResultsFromServer(node, inetAddress);
-                    break;
-                }
-            }
-            if (!foundNSAddress) {
-                // Search rootServer for first NSAddress
-                ResourceRecord firstNSRec = nsArr.get(0);
-                String nsName = firstNSRec.getTextResult();
-                DNSNode nsResolveNode = new DNSNode(nsName, RecordType.A);
-                // Query root DNS server for the NS
-                retrieveResultsFromServer(nsResolveNode, rootServer);
-                // See if result exists in the cache
-                InetAddress inetAddress = findNameServerAddress(nsName);
-                if (inetAddress == null) {
-                    return;
-                } else {
-                    foundNSAddress = true;
-                    // found
-                    retrieveResultsFromServer(node, inetAddress);
-                    return;
-                }
-            }
-        }
-    }
-
-    /**
-     * Retrieves DNS results from a specified DNS server. Queries are sent in
-     * iterative mode, and the query is repeated with a new server if the provided
-     * one is non-authoritative. Results are stored in the cache.
-     *
-     * @param node   Host name and record type to be used for the query.
-     * @param server Address of the server to be used for the query.
-     */
-    private static void retrieveResultsFromServer(DNSNode node, InetAddress server) {
-        DNSQuery query;
-        if (querySuccess) {
-            query = new DNSQuery(node, random.nextInt(65536));
-        } else {
-            query = new DNSQuery(node, previousQueryID);
-        }
-        DNSResponse response;
-        try {
-            if (verboseTracing) {
-                query.print(server);
-            }
-            query.sendPacket(socket, server);
-            response = DNSResponse.receiveDNS(socket);
-
-            querySuccess = true;
-            previousQueryID = query.queryID;
-            response.addToCache(cache);
-            if (response.dnsHeader.RCODE == 3 || response.dnsHeader.RCODE == 5) {
-                // do not print, and do not process
-                return;
-            }
-
-            if (verboseTracing) {
-                response.print();
-            }
-            processResponse(response, node);
-
-        } catch (SocketTimeoutException e) {
-            if (querySuccess) {
-                previousQueryID = query.queryID;
-                querySuccess = false;
-                retrieveResultsFromServer(node, server);
-            } else {
-                querySuccess = true;
-            }
-        } catch (Exception e) {
-
-        }
-        previousQueryID = query.queryID;
-    }
-
-    private static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
-        if (verboseTracing)
-            System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(), record.getTTL(),
-                    record.getType() == RecordType.OTHER ? rtype : record.getType(), record.getTextResult());
-    }
-
-    /**
-     * Prints the result of a DNS query.
-     *
-     * @param node    Host name and record type used for the query.
-     * @param results Set of results to be printed for the node.
-     */
-    private static void printResults(DNSNode node, Set<ResourceRecord> results) {
-        if (results.isEmpty())
-            System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(), node.getType(), -1, "0.0.0.0");
-        for (ResourceRecord record : results) {
-            System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(), node.getType(), record.getTTL(),
-                    record.getTextResult());
-        }
-    }
-}
+package ca.ubc.cs.cs317.dnslookup;
+
+import javax.management.JMException;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Paths;
+import java.util.*;
+
+/** Interactive client for the DNS resolver. All resolution logic lives in Resolver; this class
+ * only parses commands and prints results.
+ */
+public class DNSLookupService {
+
+    private static Resolver resolver;
+    private static CachePersistence persistence;
+    private static DNSServer server;
+
+    /**
+     * Main function, called when program is first invoked.
+     *
+     * @param args list of arguments specified in the command line.
+     */
+    public static void main(String[] args) {
+
+        if (args.length != 1 && !(args.length >= 3 && args[1].equalsIgnoreCase("batch"))
+                && !(args.length >= 2 && args.length <= 4 && args[1].equalsIgnoreCase("serve"))) {
+            System.err.println("Invalid call. Usage:");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer batch file|- [inFlight] [ordered|unordered]");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer serve [port [address]]");
+            System.err.println(
+                    "where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+            System.exit(1);
+        }
+
+        try {
+            InetAddress rootServer = InetAddress.getByName(args[0]);
+            resolver = new Resolver(rootServer);
+            System.out.println("Root DNS server is: " + rootServer.getHostAddress());
+        } catch (UnknownHostException e) {
+            System.err.println("Invalid root server (" + e.getMessage() + ").");
+            System.exit(1);
+        }
+        try {
+            Metrics.getInstance().registerMBean();
+        } catch (JMException e) {
+            System.err.println("Metrics not available through JMX (" + e.getMessage() + ").");
+        }
+
+        if (args.length > 1 && args[1].equalsIgnoreCase("serve")) {
+            // SERVE mode: answer DNS queries from other processes until killed
+            String[] serveArgs = args.length == 2 ? new String[]{"serve", "53"} : Arrays.copyOfRange(args, 1, args.length);
+            if (!runServer(serveArgs)) {
+                resolver.close();
+                System.exit(1);
+            }
+            try {
+                // the server runs on daemon threads
+                Thread.currentThread().join();
+            } catch (InterruptedException e) {
+                server.close();
+                resolver.close();
+            }
+            return;
+        }
+        if (args.length > 1) {
+            // BATCH mode: resolve a whole file (or standard input) and exit
+            boolean success = runBatch(Arrays.copyOfRange(args, 1, args.length));
+            resolver.close();
+            System.exit(success ? 0 : 1);
+        }
+
+        Scanner in = new Scanner(System.in);
+        Console console = System.console();
+        do {
+            // Use console if one is available, or standard input if not.
+            String commandLine;
+            if (console != null) {
+                System.out.print("DNSLOOKUP> ");
+                commandLine = console.readLine();
+            } else
+                try {
+                    commandLine = in.nextLine();
+                } catch (NoSuchElementException ex) {
+                    break;
+                }
+            // If reached end-of-file, leave
+            if (commandLine == null)
+                break;
+
+            // Ignore leading/trailing spaces and anything beyond a comment character
+            commandLine = commandLine.trim().split("#", 2)[0];
+
+            // If no command shown, skip to next command
+            if (commandLine.trim().isEmpty())
+                continue;
+
+            String[] commandArgs = commandLine.split(" ");
+
+            if (commandArgs[0].equalsIgnoreCase("quit") || commandArgs[0].equalsIgnoreCase("exit"))
+                break;
+            else if (commandArgs[0].equalsIgnoreCase("server")) {
+                // SERVER: Change root nameserver
+                if (commandArgs.length == 2) {
+                    try {
+                        InetAddress rootServer = InetAddress.getByName(commandArgs[1]);
+                        resolver.setRootServer(rootServer);
+                        System.out.println("Root DNS server is now: " + rootServer.getHostAddress());
+                    } catch (UnknownHostException e) {
+                        System.out.println("Invalid root server (" + e.getMessage() + ").");
+                        continue;
+                    }
+                } else {
+                    System.out.println("Invalid call. Format:\n\tserver IP");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("trace")) {
+                // TRACE: Turn trace setting on or off, or change sampling and output
+                if (!runTrace(commandArgs))
+                    continue;
+            } else if (commandArgs[0].equalsIgnoreCase("lookup") || commandArgs[0].equalsIgnoreCase("l")) {
+                // LOOKUP: Find and print all results associated to a name.
+                RecordType type;
+                if (commandArgs.length == 2)
+                    type = RecordType.A;
+                else if (commandArgs.length == 3)
+                    try {
+                        type = RecordType.valueOf(commandArgs[2].toUpperCase());
+                    } catch (IllegalArgumentException ex) {
+                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
+                        continue;
+                    }
+                else {
+                    System.err.println("Invalid call. Format:\n\tlookup hostName [type]");
+                    continue;
+                }
+                findAndPrintResults(commandArgs[1], type);
+            } else if (commandArgs[0].equalsIgnoreCase("dump")) {
+                // DUMP: Print all results still cached
+                resolver.getCache().forEachNode(DNSLookupService::printResults);
+            } else if (commandArgs[0].equalsIgnoreCase("batch")) {
+                // BATCH: Resolve all host names listed in a file
+                if (!runBatch(commandArgs))
+                    continue;
+            } else if (commandArgs[0].equalsIgnoreCase("cache")) {
+                // CACHE: Print cache statistics, or change the size limits of the cache
+                if (commandArgs.length == 1)
+                    printCacheStatistics(resolver.getCache());
+                else if (commandArgs.length == 4 && commandArgs[1].equalsIgnoreCase("limit")) {
+                    try {
+                        resolver.getCache().setLimits(Long.parseLong(commandArgs[2]), Long.parseLong(commandArgs[3]));
+                        printCacheStatistics(resolver.getCache());
+                    } catch (NumberFormatException ex) {
+                        System.err.println("Invalid call. Format:\n\tcache [limit entries bytes]");
+                        continue;
+                    }
+                } else {
+                    System.err.println("Invalid call. Format:\n\tcache [limit entries bytes]");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("refresh")) {
+                // REFRESH: Show or change when popular entries are refreshed before they expire
+                RefreshAhead refreshAhead = resolver.getRefreshAhead();
+                try {
+                    if (commandArgs.length == 2 || commandArgs.length == 3)
+                        refreshAhead.setPolicy(Integer.parseInt(commandArgs[1]),
+                                commandArgs.length == 3 ? Integer.parseInt(commandArgs[2]) : refreshAhead.getMinHits());
+                    else if (commandArgs.length != 1)
+                        throw new IllegalArgumentException();
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid call. Format:\n\trefresh [percent [minHits]]");
+                    continue;
+                }
+                System.out.println("Refreshing entries hit " + refreshAhead.getMinHits() + "+ times in the last "
+                        + refreshAhead.getPercent() + "% of their TTL (0% = off)");
+            } else if (commandArgs[0].equalsIgnoreCase("edns")) {
+                // EDNS: Show or change the UDP payload size advertised in queries
+                DNSQueryEncoder encoder = DNSQueryEncoder.getInstance();
+                try {
+                    if (commandArgs.length == 2)
+                        encoder.setEdnsPayloadSize(Integer.parseInt(commandArgs[1]));
+                    else if (commandArgs.length != 1)
+                        throw new IllegalArgumentException();
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid call. Format:\n\tedns [payloadSize|0]");
+                    continue;
+                }
+                System.out.println("EDNS payload size is: " + (encoder.getEdnsPayloadSize() == 0 ? "OFF"
+                        : encoder.getEdnsPayloadSize() + " bytes"));
+            } else if (commandArgs[0].equalsIgnoreCase("stale")) {
+                // STALE: Show or change how long expired records may be served when servers fail
+                try {
+                    if (commandArgs.length == 2 || commandArgs.length == 3) {
+                        resolver.getCache().setStaleWindow(Long.parseLong(commandArgs[1]) * 1000);
+                        if (commandArgs.length == 3)
+                            resolver.setStaleBudget(Long.parseLong(commandArgs[2]));
+                    } else if (commandArgs.length != 1)
+                        throw new IllegalArgumentException();
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid call. Format:\n\tstale [seconds [budgetMs]]");
+                    continue;
+                }
+                System.out.println("Serving records up to " + resolver.getCache().getStaleWindow() / 1000
+                        + " seconds stale after " + resolver.getStaleBudget() + " ms (0 seconds = off)");
+            } else if (commandArgs[0].equalsIgnoreCase("threads")) {
+                // THREADS: Show or change the threads lookups run on and how many run at once
+                if (!runThreads(commandArgs))
+                    continue;
+            } else if (commandArgs[0].equalsIgnoreCase("deadline")) {
+                // DEADLINE: Show or change how long a lookup may take before it gives up
+                try {
+                    if (commandArgs.length == 2 && Long.parseLong(commandArgs[1]) >= 0)
+                        resolver.setLookupDeadline(Long.parseLong(commandArgs[1]));
+                    else if (commandArgs.length != 1)
+                        throw new IllegalArgumentException();
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid call. Format:\n\tdeadline [ms|0]");
+                    continue;
+                }
+                System.out.println("Lookup deadline is: " + (resolver.getLookupDeadline() == 0 ? "OFF"
+                        : resolver.getLookupDeadline() + " ms"));
+            } else if (commandArgs[0].equalsIgnoreCase("metrics")) {
+                // METRICS: Print the resolver's counters and latency histograms, or clear them
+                if (commandArgs.length == 1)
+                    Metrics.getInstance().print(System.out);
+                else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("reset"))
+                    Metrics.getInstance().reset();
+                else {
+                    System.err.println("Invalid call. Format:\n\tmetrics [reset]");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("serve")) {
+                // SERVE: Answer DNS queries from other processes in the background, or stop
+                if (!runServer(commandArgs))
+                    continue;
+            } else if (commandArgs[0].equalsIgnoreCase("snapshot")) {
+                // SNAPSHOT: Persist the cache to a file, or save it now
+                if (!runSnapshot(commandArgs))
+                    continue;
+            } else {
+                System.err.println("Invalid command. Valid commands are:");
+                System.err.println("\tlookup fqdn [type]");
+                System.err.println("\ttrace on|off|sample percent|format text|json|file path|-");
+                System.err.println("\tserver IP");
+                System.err.println("\tbatch file [inFlight] [ordered|unordered]");
+                System.err.println("\tdump");
+                System.err.println("\tcache [limit entries bytes]");
+                System.err.println("\trefresh [percent [minHits]]");
+                System.err.println("\tedns [payloadSize|0]");
+                System.err.println("\tstale [seconds [budgetMs]]");
+                System.err.println("\tthreads [platform|virtual [maxLookups]]");
+                System.err.println("\tdeadline [ms|0]");
+                System.err.println("\tsnapshot [file [intervalSeconds]]");
+                System.err.println("\tmetrics [reset]");
+                System.err.println("\tserve [port [address]]|stop");
+                System.err.println("\tquit");
+                continue;
+            }
+
+        } while (true);
+
+        if (server != null)
+            server.close();
+        if (persistence != null)
+            try {
+                persistence.close();
+            } catch (IOException e) {
+                System.err.println("Cannot save cache snapshot (" + e.getMessage() + ").");
+            }
+        resolver.close();
+        System.out.println("Goodbye!");
+    }
+
+    /**
+     * Finds all results for a host name and type and prints them on the standard
+     * output.
+     *
+     * @param hostName Fully qualified domain name of the host being searched.
+     * @param type     Record type for search.
+     */
+    private static void findAndPrintResults(String hostName, RecordType type) {
+
+        DNSNode node = new DNSNode(hostName, type);
+        Set<ResourceRecord> results = resolver.getResults(node);
+        // the trace of the lookup comes before its results
+        resolver.getTracer().flush();
+        printResults(node, results);
+    }
+
+    /**
+     * Handles the trace command: turns tracing of every lookup on or off, traces a
+     * sample of the lookups, or changes the format (verbose text or JSON lines) or
+     * destination (a file, or "-" for the standard output) of the trace.
+     *
+     * @param commandArgs Arguments of the trace command.
+     * @return true if the command ran, or false if it was invalid or failed.
+     */
+    private static boolean runTrace(String[] commandArgs) {
+        Tracer tracer = resolver.getTracer();
+        try {
+            if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("on"))
+                tracer.setSampleRate(1);
+            else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off"))
+                tracer.setSampleRate(0);
+            else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("sample"))
+                tracer.setSampleRate(Double.parseDouble(commandArgs[2]) / 100);
+            else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("format"))
+                tracer.setFormat(Tracer.Format.valueOf(commandArgs[2].toUpperCase()));
+            else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("file"))
+                tracer.setOutput(commandArgs[2].equals("-") ? System.out
+                        : new PrintStream(new BufferedOutputStream(new FileOutputStream(commandArgs[2], true))));
+            else
+                throw new IllegalArgumentException();
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Invalid call. Format:\n\ttrace on|off|sample percent|format text|json|file path|-");
+            return false;
+        } catch (IOException ex) {
+            System.err.println("Cannot open trace file (" + ex.getMessage() + ").");
+            return false;
+        }
+        double rate = tracer.getSampleRate();
+        System.out.println("Verbose tracing is now: " + (rate == 0 ? "OFF" : rate == 1 ? "ON"
+                : String.format("%s%% of lookups", rate * 100)) + " (" + tracer.getFormat()
+                + (tracer.getDroppedCount() > 0 ? ", " + tracer.getDroppedCount() + " events dropped" : "") + ")");
+        return true;
+    }
+
+    /**
+     * Handles the snapshot command. With a file name, loads the cache snapshot in
+     * that file (if it exists) and saves the cache to it periodically, by default
+     * every 60 seconds, and on exit. Without arguments, saves the cache right away.
+     *
+     * @param commandArgs Arguments of the snapshot command.
+     * @return true if the command ran, or false if it was invalid or failed.
+     */
+    private static boolean runSnapshot(String[] commandArgs) {
+        try {
+            if (commandArgs.length == 1) {
+                if (persistence == null) {
+                    System.err.println("No snapshot file. Format:\n\tsnapshot file [intervalSeconds]");
+                    return false;
+                }
+                persistence.save();
+                System.out.println("Cache saved to " + persistence.getFile());
+                return true;
+            }
+            if (commandArgs.length > 3) {
+                System.err.println("Invalid call. Format:\n\tsnapshot [file [intervalSeconds]]");
+                return false;
+            }
+            long interval = commandArgs.length == 3 ? Long.parseLong(commandArgs[2]) : 60;
+            if (interval <= 0)
+                throw new NumberFormatException();
+            if (persistence != null)
+                persistence.close();
+            persistence = new CachePersistence(resolver.getCache(), Paths.get(commandArgs[1]), interval);
+            CacheSnapshot snapshot = resolver.getCache().getSnapshot();
+            if (snapshot != null)
+                System.out.println("Loaded snapshot with " + snapshot.getNodeCount() + " names, written "
+                        + new Date(snapshot.getWrittenAt()));
+            System.out.println("Saving cache to " + persistence.getFile() + " every " + interval + " seconds");
+            return true;
+        } catch (NumberFormatException ex) {
+            System.err.println("Invalid call. Format:\n\tsnapshot [file [intervalSeconds]]");
+        } catch (IOException ex) {
+            System.err.println("Cannot use cache snapshot (" + ex.getMessage() + ").");
+        }
+        return false;
+    }
+
+    /**
+     * Handles the serve command. With a port and optionally an address to listen on
+     * (the loopback address by default), starts a DNSServer answering queries from
+     * the resolver's cache, with one UDP receive loop per core. "stop" stops the
+     * server; without arguments, prints its statistics.
+     *
+     * @param commandArgs Arguments of the serve command.
+     * @return true if the command ran, or false if it was invalid or failed.
+     */
+    private static boolean runServer(String[] commandArgs) {
+        if (commandArgs.length == 1 || (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("stop"))) {
+            if (server == null) {
+                System.err.println("No server running. Format:\n\tserve [port [address]]|stop");
+                return false;
+            }
+            System.out.printf("Queries: %d  From cache: %d  Resolved: %d  Errors: %d\n", server.getQueryCount(),
+                    server.getCacheAnswerCount(), server.getResolutionCount(), server.getErrorCount());
+            ResponseCache responses = server.getResponseCache();
+            System.out.printf("Encoded responses: %d  Hits: %d  Misses: %d\n", responses.getSize(),
+                    responses.getHitCount(), responses.getMissCount());
+            if (commandArgs.length == 2) {
+                server.close();
+                server = null;
+                System.out.println("Server stopped");
+            }
+            return true;
+        }
+        if (commandArgs.length > 3) {
+            System.err.println("Invalid call. Format:\n\tserve [port [address]]|stop");
+            return false;
+        }
+        try {
+            int port = Integer.parseInt(commandArgs[1]);
+            InetAddress address = commandArgs.length == 3 ? InetAddress.getByName(commandArgs[2])
+                    : InetAddress.getLoopbackAddress();
+            if (server != null)
+                server.close();
+            server = new DNSServer(resolver, new InetSocketAddress(address, port),
+                    Runtime.getRuntime().availableProcessors());
+            System.out.println("Serving DNS on " + server.getAddress() + " (UDP and TCP, "
+                    + server.getUdpSockets() + " UDP sockets)");
+            return true;
+        } catch (IllegalArgumentException | UnknownHostException ex) {
+            System.err.println("Invalid call. Format:\n\tserve [port [address]]|stop");
+        } catch (IOException ex) {
+            System.err.println("Cannot start server (" + ex.getMessage() + ").");
+        }
+        return false;
+    }
+
+    /**
+     * Handles the threads command. With a mode ("platform" or "virtual") and optionally the
+     * maximum number of lookups running at the same time (the current maximum by default),
+     * switches the resolver to a new LookupExecutor; without arguments, only prints the
+     * current one.
+     *
+     * @param commandArgs Arguments of the threads command.
+     * @return true if the command ran, or false if it was invalid.
+     */
+    private static boolean runThreads(String[] commandArgs) {
+        try {
+            if (commandArgs.length == 2 || commandArgs.length == 3) {
+                LookupExecutor.Mode mode = LookupExecutor.Mode.valueOf(commandArgs[1].toUpperCase());
+                int maxLookups = commandArgs.length == 3 ? Integer.parseInt(commandArgs[2])
+                        : resolver.getLookupExecutor().getMaxConcurrentLookups();
+                resolver.setLookupExecutor(mode, maxLookups);
+            } else if (commandArgs.length != 1)
+                throw new IllegalArgumentException();
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Invalid call. Format:\n\tthreads [platform|virtual [maxLookups]]");
+            return false;
+        }
+        LookupExecutor executor = resolver.getLookupExecutor();
+        System.out.println("Lookups run on " + (executor.isVirtual() ? "virtual threads"
+                : executor.getMode() == LookupExecutor.Mode.VIRTUAL ? "a platform thread each (no virtual threads before Java 21)"
+                : "a pool of platform threads") + ", at most " + executor.getMaxConcurrentLookups() + " at a time");
+        return true;
+    }
+
+    /**
+     * Runs a batch lookup. The first argument is the batch command itself, followed
+     * by the input file ("-" for standard input), optionally the maximum number of
+     * names resolved at the same time, and optionally whether results are printed
+     * in input order (the default) or as they complete.
+     *
+     * @param commandArgs Arguments of the batch command.
+     * @return true if the batch ran, or false if the arguments were invalid.
+     */
+    private static boolean runBatch(String[] commandArgs) {
+        if (commandArgs.length < 2 || commandArgs.length > 4) {
+            System.err.println("Invalid call. Format:\n\tbatch file [inFlight] [ordered|unordered]");
+            return false;
+        }
+        int inFlight = BatchLookup.DEFAULT_IN_FLIGHT;
+        boolean ordered = true;
+        try {
+            if (commandArgs.length > 2)
+                inFlight = Integer.parseInt(commandArgs[2]);
+            if (commandArgs.length > 3) {
+                if (commandArgs[3].equalsIgnoreCase("unordered"))
+                    ordered = false;
+                else if (!commandArgs[3].equalsIgnoreCase("ordered"))
+                    throw new IllegalArgumentException();
+            }
+            if (inFlight < 1)
+                throw new IllegalArgumentException();
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Invalid call. Format:\n\tbatch file [inFlight] [ordered|unordered]");
+            return false;
+        }
+
+        BatchLookup batch = new BatchLookup(resolver, inFlight, ordered);
+        try (BufferedReader in = commandArgs[1].equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in))
+                : new BufferedReader(new FileReader(commandArgs[1]))) {
+            batch.run(in, System.out);
+        } catch (IOException ex) {
+            System.err.println("Cannot read " + commandArgs[1] + " (" + ex.getMessage() + ").");
+            return false;
+        }
+        System.out.flush();
+        return true;
+    }
+
+    /**
+     * Prints the size, limits and hit/miss/eviction counters of the cache.
+     *
+     * @param cache Cache whose statistics are printed.
+     */
+    private static void printCacheStatistics(DNSCache cache) {
+        System.out.printf("Entries: %d/%d  Bytes: %d/%d\n", cache.getSize(), cache.getMaxEntries(),
+                cache.getEstimatedBytes(), cache.getMaxBytes());
+        System.out.printf("Hits: %d  Negative hits: %d  Misses: %d  Evictions: %d  Expirations: %d\n",
+                cache.getHitCount(), cache.getNegativeHitCount(), cache.getMissCount(), cache.getEvictionCount(),
+                cache.getExpirationCount());
+    }
+
+    /**
+     * Prints the result of a DNS query.
+     *
+     * @param node    Host name and record type used for the query.
+     * @param results Set of results to be printed for the node.
+     */
+    private static void printResults(DNSNode node, Set<ResourceRecord> results) {
+        printResults(System.out, node, results);
+    }
+
+    /**
+     * Prints the result of a DNS query on a specific stream.
+     *
+     * @param out     Stream the results are printed on.
+     * @param node    Host name and record type used for the query.
+     * @param results Set of results to be printed for the node.
+     */
+    static void printResults(PrintStream out, DNSNode node, Set<ResourceRecord> results) {
+        if (results.isEmpty())
+            out.printf("%-30s %-5s %-8d %s\n", node.getHostName(), node.getType(), -1, "0.0.0.0");
+        for (ResourceRecord record : results) {
+            if (record.isStillValid())
+                out.printf("%-30s %-5s %-8d %s\n", node.getHostName(), node.getType(), record.getTTL(),
+                        record.getTextResult());
+            else
+                out.printf("%-30s %-5s %-8d %s (stale)\n", node.getHostName(), node.getType(), 0,
+                        record.getTextResult());
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/** Flyweight decoder for a DNS message held in a ByteBuffer. Header fields are read by offset
+ * directly from the buffer, and resource records are visited one at a time with a cursor
+ * (nextRecord) that only records where each field starts. Nothing is allocated until a caller
+ * asks for a name or address, so callers that only need the ID, flags or record types never
+ * create any objects.
+ *
+ * Compression pointers are followed by index instead of by recursion. A pointer must point to
+ * an earlier offset than the label it replaces and a name may not be longer than 255 bytes, so
+ * malicious pointer cycles are rejected instead of looping forever.
+ *
+ * The reader does not copy the buffer; the buffer must not be modified while it is in use.
+ * Offsets are relative to the position of the buffer when the reader was created.
+ */
+public class DNSMessageReader {
+
+    public static final int HEADER_LENGTH = 12;
+    private static final int MAX_NAME_LENGTH = 255;
+
+    public static final int SECTION_ANSWER = 0;
+    public static final int SECTION_AUTHORITY = 1;
+    public static final int SECTION_ADDITIONAL = 2;
+
+    public static final int TYPE_OPT = 41;
+
+    private final ByteBuffer buffer;
+    private final int base;
+    private final int length;
+
+    private int position;
+    private int recordIndex = -1;
+    private int recordNameOffset;
+    private int recordType;
+    private int recordClass;
+    private long recordTTL;
+    private int rdataOffset;
+    private int rdataLength;
+
+    public DNSMessageReader(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.base = buffer.position();
+        this.length = buffer.remaining();
+        if (length < HEADER_LENGTH)
+            throw new IllegalArgumentException("DNS message shorter than its header");
+    }
+
+    public int getID() {
+        return readUnsignedShort(0);
+    }
+
+    public int getFlags() {
+        return readUnsignedShort(2);
+    }
+
+    public boolean isResponse() {
+        return (getFlags() >>> 15) == 1;
+    }
+
+    public boolean isAuthoritative() {
+        return ((getFlags() >>> 10) & 1) == 1;
+    }
+
+    public boolean isTruncated() {
+        return ((getFlags() >>> 9) & 1) == 1;
+    }
+
+    public int getRCODE() {
+        return getFlags() & 0b1111;
+    }
+
+    public int getQDCOUNT() {
+        return readUnsignedShort(4);
+    }
+
+    public int getANCOUNT() {
+        return readUnsignedShort(6);
+    }
+
+    public int getNSCOUNT() {
+        return readUnsignedShort(8);
+    }
+
+    public int getARCOUNT() {
+        return readUnsignedShort(10);
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /** Offset of the name of the first question, or -1 if the message has no question. */
+    public int getQuestionNameOffset() {
+        return getQDCOUNT() == 0 ? -1 : HEADER_LENGTH;
+    }
+
+    public int getQuestionType() {
+        return readUnsignedShort(skipName(HEADER_LENGTH));
+    }
+
+    public int getQuestionClass() {
+        return readUnsignedShort(skipName(HEADER_LENGTH) + 2);
+    }
+
+    /** Moves the cursor to the next resource record of the answer, authority or additional
+     * section. The first call positions the cursor on the first record after the questions.
+     *
+     * @return true if the cursor is on a record, or false if there are no more records.
+     */
+    public boolean nextRecord() {
+        if (recordIndex < 0) {
+            position = HEADER_LENGTH;
+            for (int i = 0; i < getQDCOUNT(); i++)
+                position = skipName(position) + 4;
+        } else {
+            position = rdataOffset + rdataLength;
+        }
+        if (recordIndex + 1 >= getANCOUNT() + getNSCOUNT() + getARCOUNT())
+            return false;
+
+        recordIndex++;
+        recordNameOffset = position;
+        int offset = skipName(position);
+        recordType = readUnsignedShort(offset);
+        recordClass = readUnsignedShort(offset + 2);
+        recordTTL = readUnsignedInt(offset + 4);
+        rdataLength = readUnsignedShort(offset + 8);
+        rdataOffset = offset + 10;
+        if (rdataOffset + rdataLength > length)
+            throw new IllegalArgumentException("Resource record data past the end of the message");
+        return true;
+    }
+
+    /** Section of the record under the cursor (SECTION_ANSWER, SECTION_AUTHORITY or
+     * SECTION_ADDITIONAL). */
+    public int getRecordSection() {
+        if (recordIndex < getANCOUNT())
+            return SECTION_ANSWER;
+        if (recordIndex < getANCOUNT() + getNSCOUNT())
+            return SECTION_AUTHORITY;
+        return SECTION_ADDITIONAL;
+    }
+
+    public int getRecordNameOffset() {
+        return recordNameOffset;
+    }
+
+    public int getRecordType() {
+        return recordType;
+    }
+
+    public int getRecordClass() {
+        return recordClass;
+    }
+
+    public long getRecordTTL() {
+        return recordTTL;
+    }
+
+    public int getRDataOffset() {
+        return rdataOffset;
+    }
+
+    public int getRDataLength() {
+        return rdataLength;
+    }
+
+    public String getRecordName() {
+        return readName(recordNameOffset);
+    }
+
+    /** Decodes the RDATA of the record under the cursor as a domain name (NS and CNAME). */
+    public String getRDataName() {
+        return readName(rdataOffset);
+    }
+
+    /** Decodes the RDATA of the record under the cursor as an IPv4 or IPv6 address (A and AAAA).
+     *
+     * @param hostName Host name associated to the address.
+     * @return The address contained in the record.
+     * @throws UnknownHostException If the RDATA is not 4 or 16 bytes long.
+     */
+    public InetAddress getRDataAddress(String hostName) throws UnknownHostException {
+        return InetAddress.getByAddress(hostName, getRData());
+    }
+
+    /** Decodes the RDATA of the record under the cursor as an SOA record, in presentation
+     * format: MNAME RNAME SERIAL REFRESH RETRY EXPIRE MINIMUM.
+     */
+    public String getRDataSOA() {
+        int offset = rdataOffset;
+        String mname = readName(offset);
+        offset = skipName(offset);
+        String rname = readName(offset);
+        offset = skipName(offset);
+        if (offset + 20 != rdataOffset + rdataLength)
+            throw new IllegalArgumentException("Invalid SOA record at offset " + rdataOffset);
+        StringBuilder soa = new StringBuilder(mname).append(' ').append(rname);
+        for (int i = 0; i < 5; i++)
+            soa.append(' ').append(readUnsignedInt(offset + 4 * i));
+        return soa.toString();
+    }
+
+    /** Returns the MINIMUM field of the SOA record under the cursor, which bounds the TTL of
+     * negative answers (RFC 2308). */
+    public long getRDataSOAMinimum() {
+        if (rdataLength < 22)
+            throw new IllegalArgumentException("Invalid SOA record at offset " + rdataOffset);
+        return readUnsignedInt(rdataOffset + rdataLength - 4);
+    }
+
+    /** Returns a copy of the raw RDATA of the current record. */
+    public byte[] getRData() {
+        byte[] rdata = new byte[rdataLength];
+        for (int i = 0; i < rdataLength; i++)
+            rdata[i] = buffer.get(base + rdataOffset + i);
+        return rdata;
+    }
+
+    /** Returns the offset just past the (possibly compressed) name starting at an offset. */
+    public int skipName(int offset) {
+        while (true) {
+            int len = readUnsignedByte(offset);
+            if (len == 0)
+                return offset + 1;
+            if ((len >>> 6) == 3)
+                return offset + 2;
+            if ((len >>> 6) != 0)
+                throw new IllegalArgumentException("Unsupported label type at offset " + offset);
+            offset += len + 1;
+        }
+    }
+
+    /** Decodes the name starting at an offset, following compression pointers. The name is
+     * returned without the trailing dot, and is empty for the root.
+     *
+     * @param offset Offset of the first label of the name.
+     * @return The decoded name.
+     */
+    public String readName(int offset) {
+        StringBuilder name = new StringBuilder(32);
+        int nameLength = 0;
+        int limit = offset;
+        while (true) {
+            int len = readUnsignedByte(offset);
+            if (len == 0)
+                break;
+            if ((len >>> 6) == 3) {
+                int pointer = readUnsignedShort(offset) & 0x3FFF;
+                // only jump backwards, so that a chain of pointers always terminates
+                if (pointer >= limit)
+                    throw new IllegalArgumentException("Compression pointer loop at offset " + offset);
+                offset = limit = pointer;
+                continue;
+            }
+            if ((len >>> 6) != 0)
+                throw new IllegalArgumentException("Unsupported label type at offset " + offset);
+            nameLength += len + 1;
+            if (nameLength > MAX_NAME_LENGTH)
+                throw new IllegalArgumentException("Name longer than " + MAX_NAME_LENGTH + " bytes");
+            if (name.length() > 0)
+                name.append('.');
+            for (int i = 1; i <= len; i++)
+                name.append((char) readUnsignedByte(offset + i));
+            offset += len + 1;
+        }
+        return name.toString();
+    }
+
+    public int readUnsignedByte(int offset) {
+        checkBounds(offset, 1);
+        return buffer.get(base + offset) & 0xff;
+    }
+
+    public int readUnsignedShort(int offset) {
+        checkBounds(offset, 2);
+        return buffer.getShort(base + offset) & 0xffff;
+    }
+
+    public long readUnsignedInt(int offset) {
+        checkBounds(offset, 4);
+        return buffer.getInt(base + offset) & 0xffffffffL;
+    }
+
+    private void checkBounds(int offset, int size) {
+        if (offset < 0 || offset + size > length)
+            throw new IllegalArgumentException("Read past the end of the message at offset " + offset);
+    }
+}
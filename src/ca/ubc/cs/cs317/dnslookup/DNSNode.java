@@ -1,57 +1,70 @@
-package ca.ubc.cs.cs317.dnslookup;
-
-import java.io.Serializable;
-
-/** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
- * Each node represents a fully-qualified domain name (represented by hostName) and a record
- * type. Two nodes with the same host name and type are considered equal.
- */
-public class DNSNode implements Comparable<DNSNode>, Serializable {
-
-    private String hostName;
-    private RecordType type;
-
-    public DNSNode(String hostName, RecordType type) {
-        this.hostName = hostName;
-        this.type = type;
-    }
-
-    public String getHostName() {
-        return hostName;
-    }
-
-    public RecordType getType() {
-        return type;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-
-        DNSNode dnsNode = (DNSNode) o;
-
-        if (!hostName.equals(dnsNode.hostName)) return false;
-        return type == dnsNode.type;
-    }
-
-    @Override
-    public int hashCode() {
-        int result = hostName.hashCode();
-        result = 31 * result + type.hashCode();
-        return result;
-    }
-
-    @Override
-    public String toString() {
-        return hostName + " (" + type + ")";
-    }
-
-    @Override
-    public int compareTo(DNSNode o) {
-        if (!hostName.equalsIgnoreCase(o.hostName))
-            return hostName.compareToIgnoreCase(o.hostName);
-        else
-            return type.compareTo(o.type);
-    }
-}
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Serializable;
+
+/** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
+ * Each node represents a fully-qualified domain name (represented by hostName) and a record
+ * type. Two nodes with the same host name and type are considered equal; host names are
+ * compared without regard to case or to a trailing dot, through their canonical form in the
+ * NameTable, and the hash code is computed once.
+ */
+public class DNSNode implements Comparable<DNSNode>, Serializable {
+
+    private final String hostName;
+    private final String canonicalName;
+    private final RecordType type;
+    private final int hash;
+
+    public DNSNode(String hostName, RecordType type) {
+        this.canonicalName = NameTable.getInstance().canonicalize(hostName);
+        // the name as given is only kept if it differs from the canonical one
+        this.hostName = hostName.equals(canonicalName) ? canonicalName : hostName;
+        this.type = type;
+        this.hash = 31 * canonicalName.hashCode() + type.getCode();
+    }
+
+    public String getHostName() {
+        return hostName;
+    }
+
+    /** The host name in lowercase without a trailing dot, shared by all nodes of this name. */
+    public String getCanonicalName() {
+        return canonicalName;
+    }
+
+    public RecordType getType() {
+        return type;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        DNSNode dnsNode = (DNSNode) o;
+
+        if (hash != dnsNode.hash || type != dnsNode.type) return false;
+        // canonical names are shared, except for deserialized nodes
+        return canonicalName == dnsNode.canonicalName || canonicalName.equals(dnsNode.canonicalName);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return hostName + " (" + type + ")";
+    }
+
+    @Override
+    public int compareTo(DNSNode o) {
+        if (canonicalName != o.canonicalName) {
+            int result = canonicalName.compareTo(o.canonicalName);
+            if (result != 0)
+                return result;
+        }
+        return type.compareTo(o.type);
+    }
+}
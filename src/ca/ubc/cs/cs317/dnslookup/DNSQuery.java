@@ -1,7 +1,6 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import java.io.PrintStream;
 import java.net.*;
 
 // DNSQuery combines DNSHeader and DNSQues to create a query
@@ -9,28 +8,31 @@ public class DNSQuery {
 
     private static final int DEFAULT_DNS_PORT = 53;
     public final int queryID;
+    public final DNSNode node;
+    // false for queries repeated without EDNS to a server that does not support it
+    public final boolean edns;
 
     public DNSHeader dnsHeader;
     public DNSQues dnsQuestion;
 
     public DNSQuery(DNSNode node, int queryID) {
+        this(node, queryID, true);
+    }
+
+    public DNSQuery(DNSNode node, int queryID, boolean edns) {
         // fixed values for this assignment
         this.queryID = queryID;
-        dnsHeader = new DNSHeader(queryID, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0);
+        this.node = node;
+        this.edns = edns;
+        dnsHeader = new DNSHeader(queryID, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, edns ? 1 : 0);
 
         dnsQuestion = new DNSQues(node.getHostName(), node.getType().getCode());
     }
 
-    // combine DNSHeader and DNSQues to a bytes array of query
+    // combine DNSHeader and DNSQues to a bytes array of query (built from the encoder's template)
     public byte[] toBytes() throws Exception {
 
-        ByteArrayOutputStream byteArrayOS = new ByteArrayOutputStream();
-        DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOS);
-
-        dnsHeader.serialize(dataOutputStream);
-        dnsQuestion.serialize(dataOutputStream);
-
-        return byteArrayOS.toByteArray();
+        return DNSQueryEncoder.getInstance().toBytes(node, queryID, edns);
     }
 
     // uses this.toBytes() to create a packet and sends to a server
@@ -40,11 +42,11 @@ public class DNSQuery {
         socket.send(packet);
     }
 
-    public void print(InetAddress server) {
+    public void print(PrintStream out, InetAddress server) {
 
-        System.out.println();
-        System.out.println();
-        System.out.println("Query ID     " + dnsHeader.ID + " " + dnsQuestion.NAME + "  " +
+        out.println();
+        out.println();
+        out.println("Query ID     " + dnsHeader.ID + " " + dnsQuestion.NAME + "  " +
                 RecordType.getByCode(dnsQuestion.TYPE) + " --> " + server.getHostAddress());
     }
 
@@ -0,0 +1,145 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** Encodes queries into pooled, pre-sized direct buffers. The wire format of a query (header and
+ * question) only depends on the node being queried and on the query ID, so the encoded form of
+ * each node is built once and kept as a template. Encoding a query is then a single copy of
+ * the template followed by patching the 16-bit ID.
+ *
+ * Queries advertise EDNS(0) (RFC 6891) by default: an OPT record in the additional section tells
+ * servers how large a UDP reply the resolver accepts, so large referrals and answers are not
+ * truncated at 512 bytes. The OPT record is appended to the template when a query is encoded.
+ *
+ * Buffers returned by encode must be given back with release once the query has been sent.
+ */
+public class DNSQueryEncoder {
+
+    // header, a name of at most 255 bytes, the question type and class, and an OPT record
+    public static final int MAX_QUERY_LENGTH = 512;
+    private static final int MAX_TEMPLATES = 65536;
+    private static final int MAX_POOLED_BUFFERS = 256;
+    // RFC 6891: root name, type OPT, class = UDP payload size, TTL = extended RCODE and flags, no RDATA
+    private static final int OPT_LENGTH = 11;
+    private static final int ARCOUNT_OFFSET = 10;
+    // large enough for most replies, small enough to avoid IP fragmentation (DNS flag day 2020)
+    public static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1232;
+    public static final int MIN_EDNS_PAYLOAD_SIZE = 512;
+
+    private static DNSQueryEncoder instance = new DNSQueryEncoder();
+
+    private final Map<DNSNode, byte[]> templates = new ConcurrentHashMap<>();
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private volatile int ednsPayloadSize = DEFAULT_EDNS_PAYLOAD_SIZE;
+
+    /** Returns the encoder shared by all queries.
+     *
+     * @return Instance of the query encoder.
+     */
+    public static DNSQueryEncoder getInstance() {
+        return instance;
+    }
+
+    public int getEdnsPayloadSize() {
+        return ednsPayloadSize;
+    }
+
+    /** Changes the UDP payload size advertised in the OPT record of queries.
+     *
+     * @param ednsPayloadSize Payload size in bytes, at least 512, or 0 to send queries without
+     *                        an OPT record.
+     */
+    public void setEdnsPayloadSize(int ednsPayloadSize) {
+        if (ednsPayloadSize != 0 && (ednsPayloadSize < MIN_EDNS_PAYLOAD_SIZE || ednsPayloadSize > 65535))
+            throw new IllegalArgumentException("Invalid EDNS payload size " + ednsPayloadSize);
+        this.ednsPayloadSize = ednsPayloadSize;
+    }
+
+    /** Encodes a query for a node into a pooled buffer, ready to be sent (positioned at the
+     * start of the query, with the limit at its end).
+     *
+     * @param node    Host name and record type to be queried.
+     * @param queryID ID of the query.
+     * @param edns    true to add an OPT record, unless EDNS is disabled.
+     * @return A buffer containing the encoded query, to be released after use.
+     */
+    public ByteBuffer encode(DNSNode node, int queryID, boolean edns) {
+        byte[] template = getTemplate(node);
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(MAX_QUERY_LENGTH);
+        buffer.clear();
+        buffer.put(template);
+        buffer.putShort(0, (short) queryID);
+        int payloadSize = ednsPayloadSize;
+        if (edns && payloadSize > 0) {
+            buffer.putShort(ARCOUNT_OFFSET, (short) 1);
+            buffer.put((byte) 0).putShort((short) DNSMessageReader.TYPE_OPT).putShort((short) payloadSize).putInt(0).putShort((short) 0);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Encodes a query for a node into a new byte array.
+     *
+     * @param node    Host name and record type to be queried.
+     * @param queryID ID of the query.
+     * @param edns    true to add an OPT record, unless EDNS is disabled.
+     * @return The encoded query.
+     */
+    public byte[] toBytes(DNSNode node, int queryID, boolean edns) {
+        byte[] template = getTemplate(node);
+        int payloadSize = ednsPayloadSize;
+        boolean withOpt = edns && payloadSize > 0;
+        ByteBuffer bytes = ByteBuffer.allocate(template.length + (withOpt ? OPT_LENGTH : 0));
+        bytes.put(template);
+        bytes.putShort(0, (short) queryID);
+        if (withOpt) {
+            bytes.putShort(ARCOUNT_OFFSET, (short) 1);
+            bytes.put((byte) 0).putShort((short) DNSMessageReader.TYPE_OPT).putShort((short) payloadSize).putInt(0).putShort((short) 0);
+        }
+        return bytes.array();
+    }
+
+    /** Returns a buffer obtained from encode to the pool.
+     *
+     * @param buffer Buffer no longer in use.
+     */
+    public void release(ByteBuffer buffer) {
+        if (pool.size() < MAX_POOLED_BUFFERS)
+            pool.offer(buffer);
+    }
+
+    private byte[] getTemplate(DNSNode node) {
+        byte[] template = templates.get(node);
+        if (template == null) {
+            template = buildTemplate(node);
+            // start over rather than keep the names of a long crawl forever
+            if (templates.size() >= MAX_TEMPLATES)
+                templates.clear();
+            templates.put(node, template);
+        }
+        return template;
+    }
+
+    // encode header and question with a zero ID, using the regular serialization
+    private static byte[] buildTemplate(DNSNode node) {
+        try {
+            ByteArrayOutputStream byteArrayOS = new ByteArrayOutputStream(MAX_QUERY_LENGTH);
+            DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOS);
+
+            new DNSHeader(0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0).serialize(dataOutputStream);
+            new DNSQues(node.getHostName(), node.getType().getCode()).serialize(dataOutputStream);
+
+            return byteArrayOS.toByteArray();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Cannot encode query for " + node, e);
+        }
+    }
+}
@@ -1,8 +1,6 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.DataOutputStream;
-import java.io.DataInputStream;
-import java.io.ByteArrayInputStream;
 
 
 // DNS Question for both query and response
@@ -23,12 +21,21 @@ public class DNSQues {
     // write the Question to the output stream in the right format
     public void serialize(DataOutputStream dataOutputStream) throws Exception {
 
-        // write the domain name as labels
-        String[] labels = NAME.split("\\.");
-        for(String label: labels) {
-
-            dataOutputStream.writeByte(label.length());
-            dataOutputStream.writeBytes(label);
+        // write the domain name as labels (empty labels, e.g. a trailing dot, are skipped)
+        int start = 0;
+        while (start < NAME.length()) {
+            int end = NAME.indexOf('.', start);
+            if (end < 0)
+                end = NAME.length();
+            int length = end - start;
+            if (length > 63)
+                throw new IllegalArgumentException("Label longer than 63 characters in " + NAME);
+            if (length > 0) {
+                dataOutputStream.writeByte(length);
+                for (int i = start; i < end; i++)
+                    dataOutputStream.writeByte(NAME.charAt(i));
+            }
+            start = end + 1;
         }
         dataOutputStream.writeByte(0);
 
@@ -38,64 +45,16 @@ public class DNSQues {
     }
 
 
-    public void deserialize(DataInputStream dataInputStream, byte[] buffer, int length) throws Exception {
-
-        NAME = this.labelsToNameRec(dataInputStream, buffer, length);
-        // Remove "." after the name caused due to looping
-        NAME = NAME.substring(0, NAME.length() - 1);
-
-        TYPE = dataInputStream.readShort();
-        CLASS = dataInputStream.readShort();
-    }
-
-
-
-    public static String labelsToNameRec(DataInputStream dataInputStream, byte[] buffer, int length) throws Exception {
-
-        String result = "";
-
-        // Reset buf 2 places for re-read
-        dataInputStream.mark(2);
-
-        int lengthOfSplit = dataInputStream.readByte();
-        lengthOfSplit = lengthOfSplit & 0xff;
-
-
-        while (lengthOfSplit != 0) {
+    // read the first Question of a message, if it has one
+    public void deserialize(DNSMessageReader reader) {
 
-            // Compression condition
-            if ((lengthOfSplit >>> 6) == 3) {
-
-                dataInputStream.reset();
-
-                int pointer = dataInputStream.readUnsignedShort();
-                pointer = pointer & 0x3FFF;
-
-                // create new stream to append to name
-                ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(buffer, pointer, length - pointer);
-                DataInputStream newDataInputStream = new DataInputStream(byteArrayInputStream);
-
-                result += labelsToNameRec(newDataInputStream, buffer, length);
-
-                break;
-
-            } else {
-
-                byte[] split = new byte[lengthOfSplit];
-                dataInputStream.read(split, 0, lengthOfSplit);
-
-
-                result += (new String(split));
-                result += ".";
-
-                dataInputStream.mark(2);
-
-                lengthOfSplit = dataInputStream.readByte();
-                lengthOfSplit = lengthOfSplit & 0xff;
-            }
-        }
+        int offset = reader.getQuestionNameOffset();
+        if (offset < 0)
+            return;
 
-        return result;
+        NAME = reader.readName(offset);
+        TYPE = reader.getQuestionType();
+        CLASS = reader.getQuestionClass();
     }
 
-}
\ No newline at end of file
+}
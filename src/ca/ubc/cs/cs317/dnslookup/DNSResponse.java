@@ -1,11 +1,8 @@
 package ca.ubc.cs.cs317.dnslookup;
 
+import java.io.PrintStream;
 import java.net.*;
-import java.io.DataOutputStream;
-import java.net.DatagramSocket;
-import java.io.DataInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class DNSResponse {
@@ -15,64 +12,66 @@ public class DNSResponse {
     public Set<ResourceRecord> answers = new HashSet<>();
     public Set<ResourceRecord> nameServers = new HashSet<>();
     public Set<ResourceRecord> additional = new HashSet<>();
+    // TTL of a negative answer: the smaller of the TTL and MINIMUM of the authority SOA (RFC
+    // 2308), or -1 if the response has no SOA in its authority section
+    public long negativeTTL = -1;
 
     public void decode(byte[] buffer, int length) throws Exception {
+        decode(ByteBuffer.wrap(buffer, 0, length));
+    }
 
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(buffer, 0, length);
-        DataInputStream dataInputStream = new DataInputStream(byteArrayInputStream);
+    // decode the message between the position and the limit of the buffer
+    public void decode(ByteBuffer buffer) throws Exception {
 
-        dnsHeader.deserialize(dataInputStream);
-        dnsQuestion.deserialize(dataInputStream, buffer, length);
-        for (int i = 0; i < (dnsHeader.ANCOUNT + dnsHeader.ARCOUNT + dnsHeader.NSCOUNT); i++) {
+        DNSMessageReader reader = new DNSMessageReader(buffer);
+        long now = System.currentTimeMillis();
+        DNSNode node = null;
 
-            // Deserealize Name, Type, Class
-            DNSQues dnsResponseQues = new DNSQues();
-            dnsResponseQues.deserialize(dataInputStream, buffer, length);
+        dnsHeader.deserialize(reader);
+        dnsQuestion.deserialize(reader);
+        while (reader.nextRecord()) {
 
-            // Deserealize TTL
-            long TTL = dataInputStream.readInt();
-            TTL = TTL & 0xffffffff;
+            // the OPT pseudo-record only describes the message (RFC 6891)
+            if (reader.getRecordType() == DNSMessageReader.TYPE_OPT)
+                continue;
 
-            // Deserealize RDLENGTH
-            int RDLENGTH = dataInputStream.readShort();
-            RDLENGTH = RDLENGTH & 0xffff;
+            // records of the same RRset share one node
+            String name = reader.getRecordName();
+            RecordType rt = RecordType.getByCode(reader.getRecordType());
+            if (node == null || node.getType() != rt || !node.getHostName().equals(name))
+                node = new DNSNode(name, rt);
 
-            // Read RDATA as per given RDLENGTH
-            byte[] RDATA = new byte[RDLENGTH];
-            dataInputStream.read(RDATA, 0, RDLENGTH);
+            // TTLs with the most significant bit set are treated as zero (RFC 2181)
+            long TTL = reader.getRecordTTL();
+            if (TTL > Integer.MAX_VALUE)
+                TTL = 0;
 
             // Generate the resource record to be stored
             ResourceRecord resourceRecord;
 
-            RecordType rt = RecordType.getByCode(dnsResponseQues.TYPE);
-            if (rt == RecordType.A) {
-                resourceRecord = new ResourceRecord(dnsResponseQues.NAME, rt, TTL,
-                        Inet4Address.getByAddress(dnsResponseQues.NAME, RDATA));
-            } else if (rt == RecordType.AAAA) {
-                resourceRecord = new ResourceRecord(dnsResponseQues.NAME, rt, TTL,
-                        Inet6Address.getByAddress(dnsResponseQues.NAME, RDATA));
+            long expirationTime = now + TTL * 1000;
+            if (rt == RecordType.A || rt == RecordType.AAAA) {
+                resourceRecord = new ResourceRecord(node, (int) TTL, expirationTime, reader.getRData());
             } else if (rt == RecordType.NS || rt == RecordType.CNAME) {
-
-                ByteArrayInputStream newByteArrayInputStream = new ByteArrayInputStream(RDATA, 0, RDLENGTH);
-                DataInputStream newDataInputStream = new DataInputStream(newByteArrayInputStream);
-
-                // resolve hostname
-                String hostName = DNSQues.labelsToNameRec(newDataInputStream, buffer, length);
-
-                resourceRecord = new ResourceRecord(dnsResponseQues.NAME, RecordType.getByCode(dnsResponseQues.TYPE),
-                        TTL, hostName.substring(0, hostName.length() - 1));
+                resourceRecord = new ResourceRecord(node, (int) TTL, expirationTime, reader.getRDataName());
+            } else if (rt == RecordType.SOA) {
+                resourceRecord = new ResourceRecord(node, (int) TTL, expirationTime, reader.getRDataSOA());
+                if (reader.getRecordSection() == DNSMessageReader.SECTION_AUTHORITY)
+                    negativeTTL = Math.min(TTL, reader.getRDataSOAMinimum());
             } else {
-                resourceRecord = new ResourceRecord(dnsResponseQues.NAME, RecordType.getByCode(dnsResponseQues.TYPE),
-                        TTL, "----");
+                resourceRecord = new ResourceRecord(node, (int) TTL, expirationTime, "----");
             }
 
             // add records to the correct set
-            if (i < dnsHeader.ANCOUNT) {
-                answers.add(resourceRecord);
-            } else if (i < dnsHeader.ANCOUNT + dnsHeader.NSCOUNT) {
-                nameServers.add(resourceRecord);
-            } else {
-                additional.add(resourceRecord);
+            switch (reader.getRecordSection()) {
+                case DNSMessageReader.SECTION_ANSWER:
+                    answers.add(resourceRecord);
+                    break;
+                case DNSMessageReader.SECTION_AUTHORITY:
+                    nameServers.add(resourceRecord);
+                    break;
+                default:
+                    additional.add(resourceRecord);
             }
         }
 
@@ -94,6 +93,25 @@ public class DNSResponse {
         return dnsResponse;
     }
 
+    /** Drops the records whose owner name is not at or below the zone of the servers that sent
+     * the response (out of bailiwick), so that a server cannot plant records, such as a
+     * delegation with glue, for zones it has no authority over.
+     *
+     * @param zone Zone of the servers the query was sent to ("" for the root servers).
+     */
+    public void dropOutOfBailiwick(String zone) {
+        String lowerZone = zone.toLowerCase(Locale.ROOT);
+        String canonicalZone = lowerZone.endsWith(".") ? lowerZone.substring(0, lowerZone.length() - 1) : lowerZone;
+        if (canonicalZone.isEmpty())
+            return;
+        String suffix = "." + canonicalZone;
+        for (Set<ResourceRecord> section : Arrays.asList(answers, nameServers, additional))
+            section.removeIf(record -> {
+                String owner = record.getNode().getCanonicalName();
+                return !owner.equals(canonicalZone) && !owner.endsWith(suffix);
+            });
+    }
+
     // cache answers and additional which will have IP addresses
     public void addToCache(DNSCache cache) {
 
@@ -110,27 +128,27 @@ public class DNSResponse {
         }
     }
 
-    public void print() {
+    public void print(PrintStream out) {
 
-        System.out.println("Response ID: " + dnsHeader.ID + " " + "Authoritative = " + (dnsHeader.AA == 1));
+        out.println("Response ID: " + dnsHeader.ID + " " + "Authoritative = " + (dnsHeader.AA == 1));
 
-        PrintResourceRecordSet("Answers", this.answers);
-        PrintResourceRecordSet("Nameservers", this.nameServers);
-        PrintResourceRecordSet("Additional Information", this.additional);
+        PrintResourceRecordSet(out, "Answers", this.answers);
+        PrintResourceRecordSet(out, "Nameservers", this.nameServers);
+        PrintResourceRecordSet(out, "Additional Information", this.additional);
     }
 
-    private void PrintResourceRecordSet(String recordType, Set<ResourceRecord> resourceRecords) {
+    private void PrintResourceRecordSet(PrintStream out, String recordType, Set<ResourceRecord> resourceRecords) {
 
-        System.out.println("  " + recordType + " " + "(" + resourceRecords.size() + ")");
+        out.println("  " + recordType + " " + "(" + resourceRecords.size() + ")");
 
         for (ResourceRecord record : resourceRecords) {
-            PrintResourceRecord(record, record.getType().getCode());
+            PrintResourceRecord(out, record, record.getType().getCode());
         }
     }
 
-    private void PrintResourceRecord(ResourceRecord record, int rtype) {
+    private void PrintResourceRecord(PrintStream out, ResourceRecord record, int rtype) {
 
-        System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(), record.getTTL(), record.getType(),
+        out.format("       %-30s %-10d %-4s %s\n", record.getHostName(), record.getTTL(), record.getType(),
                 record.getTextResult());
     }
 
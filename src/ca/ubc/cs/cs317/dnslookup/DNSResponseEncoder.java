@@ -0,0 +1,170 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/** Encodes the response of the DNSServer to one client query. The question of the query is
+ * copied verbatim (so the client sees its own capitalization), names are compressed against the
+ * names already written, and answers that would make the response longer than the client
+ * accepts are left out and the response is marked truncated, so the client repeats the query
+ * over TCP.
+ *
+ * Records are written with their remaining TTL; stale records (see DNSCache.setStaleWindow) are
+ * written with a TTL of STALE_TTL seconds, as RFC 8767 recommends.
+ */
+public class DNSResponseEncoder {
+
+    public static final int STALE_TTL = 30;
+
+    private static final int ARCOUNT_OFFSET = 10;
+    private static final int OPT_LENGTH = 11;
+
+    private final ByteBuffer buffer;
+    private final int maxLength;
+    private final int ednsPayloadSize;
+    private final Map<String, Integer> names = new HashMap<>();
+    private final int questionEnd;
+    private int answerCount = 0;
+    private int[] ttlOffsets = new int[8];
+    // offset of the TTL of the record being written
+    private int ttlOffset;
+    private boolean truncated = false;
+
+    /** Starts a response with the header and question of a query.
+     *
+     * @param query           Header of the query.
+     * @param question        Question section of the query, as received.
+     * @param questionName    Canonical name of the question.
+     * @param maxLength       Largest response the client accepts.
+     * @param ednsPayloadSize Payload size to advertise in an OPT record, or 0 if the query had
+     *                        no OPT record.
+     */
+    public DNSResponseEncoder(DNSHeader query, byte[] question, String questionName, int maxLength,
+                              int ednsPayloadSize) {
+        this.maxLength = maxLength;
+        this.ednsPayloadSize = ednsPayloadSize;
+        this.buffer = ByteBuffer.allocate(Math.min(maxLength, 65535));
+        int flags = 0x8000 | (query.OPCODE << 11) | (query.RD << 8) | 0x0080;
+        buffer.putShort((short) query.ID).putShort((short) flags).putShort((short) (question.length > 0 ? 1 : 0))
+                .putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        buffer.put(question);
+        if (question.length > 0)
+            names.put(questionName, DNSMessageReader.HEADER_LENGTH);
+        this.questionEnd = buffer.position();
+    }
+
+    /** Adds a record to the answer section, unless the response is already truncated.
+     *
+     * @param record Record to be added.
+     * @return false if the record did not fit and the response is now truncated.
+     */
+    public boolean addAnswer(ResourceRecord record) {
+        if (truncated)
+            return false;
+        int start = buffer.position();
+        try {
+            writeRecord(record);
+            if (buffer.position() + (ednsPayloadSize > 0 ? OPT_LENGTH : 0) <= maxLength) {
+                if (answerCount == ttlOffsets.length)
+                    ttlOffsets = Arrays.copyOf(ttlOffsets, 2 * answerCount);
+                ttlOffsets[answerCount++] = ttlOffset;
+                return true;
+            }
+        } catch (BufferOverflowException e) {
+            // too long for the client either way
+        }
+        // names registered by the record would point past the end of the response
+        names.values().removeIf(offset -> offset >= start);
+        buffer.position(questionEnd);
+        answerCount = 0;
+        truncated = true;
+        return false;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /** Offsets of the TTLs of the answers added so far, in the order they were added. */
+    public int[] getTtlOffsets() {
+        return Arrays.copyOf(ttlOffsets, answerCount);
+    }
+
+    /** Finishes the response.
+     *
+     * @param rcode Response code.
+     * @return The encoded response.
+     */
+    public byte[] finish(int rcode) {
+        buffer.putShort(2, (short) ((buffer.getShort(2) & 0xfff0) | (truncated ? 0x0200 : 0) | (rcode & 0xf)));
+        buffer.putShort(6, (short) answerCount);
+        if (ednsPayloadSize > 0) {
+            buffer.putShort(ARCOUNT_OFFSET, (short) 1);
+            buffer.put((byte) 0).putShort((short) DNSMessageReader.TYPE_OPT).putShort((short) ednsPayloadSize)
+                    .putInt(0).putShort((short) 0);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private void writeRecord(ResourceRecord record) {
+        writeName(record.getHostName());
+        ttlOffset = buffer.position() + 4;
+        long ttl = record.isStillValid() ? record.getTTL() : STALE_TTL;
+        buffer.putShort((short) record.getType().getCode()).putShort((short) 1).putInt((int) ttl);
+        int lengthOffset = buffer.position();
+        buffer.putShort((short) 0);
+        switch (record.getType()) {
+            case A:
+            case AAAA:
+                buffer.put(record.getAddress());
+                break;
+            case NS:
+            case CNAME:
+                writeName(record.getTextResult());
+                break;
+            case SOA:
+                String[] fields = record.getTextResult().split(" ");
+                if (fields.length != 7)
+                    throw new IllegalArgumentException("Invalid SOA record " + record.getTextResult());
+                writeName(fields[0]);
+                writeName(fields[1]);
+                for (int i = 2; i < 7; i++)
+                    buffer.putInt((int) Long.parseLong(fields[i]));
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot encode " + record.getType() + " records");
+        }
+        buffer.putShort(lengthOffset, (short) (buffer.position() - lengthOffset - 2));
+    }
+
+    // writes a name as labels, ending with a pointer to the longest suffix already written
+    private void writeName(String name) {
+        if (name.endsWith("."))
+            name = name.substring(0, name.length() - 1);
+        String canonical = name.toLowerCase(Locale.ROOT);
+        int start = 0;
+        while (start < name.length()) {
+            Integer pointer = names.get(canonical.substring(start));
+            if (pointer != null) {
+                buffer.putShort((short) (0xC000 | pointer));
+                return;
+            }
+            int end = name.indexOf('.', start);
+            if (end < 0)
+                end = name.length();
+            if (end - start > 63 || end == start)
+                throw new IllegalArgumentException("Invalid label in " + name);
+            if (buffer.position() < 0x3FFF)
+                names.put(canonical.substring(start), buffer.position());
+            buffer.put((byte) (end - start));
+            for (int i = start; i < end; i++)
+                buffer.put((byte) name.charAt(i));
+            start = end + 1;
+        }
+        buffer.put((byte) 0);
+    }
+}
@@ -0,0 +1,406 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Caching recursive name server in front of a Resolver, so that every process of a host can
+ * share one warm cache. Client queries arrive over UDP and TCP (RFC 1035, RFC 7766) and are
+ * parsed with DNSHeader and DNSQues; answers are encoded with a DNSResponseEncoder.
+ *
+ * UDP is served by one receive loop per core. Where the platform supports SO_REUSEPORT, each
+ * loop has its own socket bound to the same address, and the kernel spreads clients over the
+ * sockets, so the loops never contend; elsewhere, the loops share one socket. A loop answers
+ * queries it can answer from the cache (including negative answers) right away, and hands the
+ * others to the resolver's thread pool, whose threads send the response once the resolution
+ * finishes, so a slow resolution never holds up the loop. At most MAX_PENDING_RESOLUTIONS
+ * queries are being resolved at a time; queries beyond that get SERVFAIL.
+ *
+ * Positive answers are also kept encoded in a ResponseCache, from which the next queries for the
+ * same node are answered by patching a copy of the bytes.
+ *
+ * TCP connections are served by a thread each, up to MAX_TCP_CONNECTIONS, and are closed after
+ * TCP_IDLE_TIMEOUT milliseconds without a query.
+ *
+ * Only standard queries (opcode QUERY) of class IN for A, AAAA, NS, CNAME and SOA records are
+ * answered; other queries get NOTIMP, and malformed ones FORMERR.
+ */
+public class DNSServer implements AutoCloseable {
+
+    public static final int MAX_PENDING_RESOLUTIONS = 4096;
+    public static final int MAX_TCP_CONNECTIONS = 256;
+    public static final int TCP_IDLE_TIMEOUT = 10000;
+
+    private static final int MAX_UDP_LENGTH = 512;
+    private static final int MAX_TCP_LENGTH = 65535;
+    private static final int RCODE_FORMERR = 1;
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int RCODE_NOTIMP = 4;
+
+    private final Resolver resolver;
+    private final ResponseCache responseCache;
+    private final List<DatagramChannel> udpChannels = new ArrayList<>();
+    private final ServerSocket tcpSocket;
+    private final List<Thread> threads = new ArrayList<>();
+    private final Set<Socket> tcpConnections = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Semaphore pendingResolutions = new Semaphore(MAX_PENDING_RESOLUTIONS);
+    private final InetSocketAddress address;
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder cacheAnswers = new LongAdder();
+    private final LongAdder resolutions = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    private volatile boolean running = true;
+
+    /** Starts serving on an address.
+     *
+     * @param resolver Resolver (and cache) queries are answered with.
+     * @param address  Address and port to listen on; port 0 picks a free port.
+     * @param loops    Number of UDP receive loops, e.g. one per core.
+     * @throws IOException If the address cannot be bound.
+     */
+    public DNSServer(Resolver resolver, InetSocketAddress address, int loops) throws IOException {
+        this.resolver = resolver;
+        this.responseCache = new ResponseCache(resolver.getCache(), resolver.getRefreshAhead(),
+                ResponseCache.DEFAULT_MAX_ENTRIES);
+        try {
+            DatagramChannel first = openUdpChannel(address, loops > 1);
+            udpChannels.add(first);
+            this.address = new InetSocketAddress(address.getAddress(),
+                    ((InetSocketAddress) first.getLocalAddress()).getPort());
+            boolean reusePort = first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            for (int i = 1; i < loops && reusePort; i++)
+                udpChannels.add(openUdpChannel(this.address, true));
+
+            tcpSocket = new ServerSocket();
+            tcpSocket.setReuseAddress(true);
+            tcpSocket.bind(this.address);
+        } catch (IOException e) {
+            closeChannels();
+            responseCache.close();
+            throw e;
+        }
+
+        for (int i = 0; i < loops; i++) {
+            DatagramChannel channel = udpChannels.get(i % udpChannels.size());
+            start(() -> receiveLoop(channel), "dns-server-udp-" + i);
+        }
+        start(this::acceptLoop, "dns-server-tcp");
+    }
+
+    private static DatagramChannel openUdpChannel(InetSocketAddress address, boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open(address.getAddress() instanceof Inet6Address
+                ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+        try {
+            if (reusePort && channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channel.bind(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private void start(Runnable loop, String name) {
+        Thread thread = new Thread(loop, name);
+        thread.setDaemon(true);
+        thread.start();
+        threads.add(thread);
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /** Number of UDP sockets, which is the number of loops if SO_REUSEPORT is supported. */
+    public int getUdpSockets() {
+        return udpChannels.size();
+    }
+
+    public long getQueryCount() {
+        return queries.sum();
+    }
+
+    public long getCacheAnswerCount() {
+        return cacheAnswers.sum();
+    }
+
+    public long getResolutionCount() {
+        return resolutions.sum();
+    }
+
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    private void receiveLoop(DatagramChannel channel) {
+        ByteBuffer packet = ByteBuffer.allocateDirect(MAX_TCP_LENGTH);
+        while (running) {
+            try {
+                packet.clear();
+                SocketAddress client = channel.receive(packet);
+                packet.flip();
+                Request request = Request.parse(packet, MAX_UDP_LENGTH);
+                if (request == null)
+                    continue;
+                queries.increment();
+                if (request.rcode != 0) {
+                    send(channel, client, request.respond(Collections.emptySet(), request.rcode));
+                    continue;
+                }
+                byte[] encoded = request.answerFrom(responseCache);
+                if (encoded != null) {
+                    cacheAnswers.increment();
+                    send(channel, client, encoded);
+                    continue;
+                }
+                Set<ResourceRecord> results = resolver.getCachedResults(request.node);
+                if (results != null) {
+                    cacheAnswers.increment();
+                    send(channel, client, answer(request, results));
+                } else if (!pendingResolutions.tryAcquire()) {
+                    send(channel, client, request.respond(Collections.emptySet(), RCODE_SERVFAIL));
+                } else {
+                    resolutions.increment();
+                    resolver.resolveAsync(request.node).whenComplete((resolved, e) -> {
+                        pendingResolutions.release();
+                        send(channel, client, e != null ? request.respond(Collections.emptySet(), RCODE_SERVFAIL)
+                                : answer(request, resolved));
+                    });
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                // a broken packet or client must not stop the loop
+                errors.increment();
+            }
+        }
+    }
+
+    private void send(DatagramChannel channel, SocketAddress client, byte[] response) {
+        try {
+            channel.send(ByteBuffer.wrap(response), client);
+        } catch (IOException e) {
+            errors.increment();
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = tcpSocket.accept();
+                if (tcpConnections.size() >= MAX_TCP_CONNECTIONS) {
+                    socket.close();
+                    continue;
+                }
+                tcpConnections.add(socket);
+                start(() -> serveConnection(socket), "dns-server-tcp-connection");
+            } catch (IOException e) {
+                if (tcpSocket.isClosed())
+                    return;
+                errors.increment();
+            }
+        }
+    }
+
+    // answers length-prefixed queries one after the other until the client goes away
+    private void serveConnection(Socket socket) {
+        try {
+            socket.setSoTimeout(TCP_IDLE_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            while (running) {
+                byte[] message = new byte[in.readUnsignedShort()];
+                in.readFully(message);
+                Request request = Request.parse(ByteBuffer.wrap(message), MAX_TCP_LENGTH);
+                if (request == null)
+                    return;
+                queries.increment();
+                byte[] response;
+                if (request.rcode != 0) {
+                    response = request.respond(Collections.emptySet(), request.rcode);
+                } else if ((response = request.answerFrom(responseCache)) != null) {
+                    cacheAnswers.increment();
+                } else {
+                    Set<ResourceRecord> results = resolver.getCachedResults(request.node);
+                    if (results != null) {
+                        cacheAnswers.increment();
+                    } else {
+                        resolutions.increment();
+                        results = resolver.getResults(request.node);
+                    }
+                    response = answer(request, results);
+                }
+                out.writeShort(response.length);
+                out.write(response);
+                out.flush();
+            }
+        } catch (EOFException | SocketTimeoutException e) {
+            // client closed the connection, or kept it idle for too long
+        } catch (IOException e) {
+            errors.increment();
+        } finally {
+            tcpConnections.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    // response to a query the resolver returned results for; no results are an error, unless
+    // the cache knows the name does not exist or has no records of the type. Positive answers
+    // are also encoded into the response cache for the next queries.
+    private byte[] answer(Request request, Set<ResourceRecord> results) {
+        DNSCache cache = resolver.getCache();
+        int rcode = 0;
+        if (results.isEmpty())
+            rcode = cache.isNxDomain(request.node) ? RCODE_NXDOMAIN
+                    : cache.isNegativelyCached(request.node) ? 0 : RCODE_SERVFAIL;
+        try {
+            byte[] response = request.respond(results, rcode);
+            responseCache.put(request.node, request.question, results);
+            return response;
+        } catch (RuntimeException e) {
+            errors.increment();
+            return request.respond(Collections.emptySet(), RCODE_SERVFAIL);
+        }
+    }
+
+    private void closeChannels() {
+        for (DatagramChannel channel : udpChannels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing else to release
+            }
+        }
+    }
+
+    /** Stops serving. Resolutions in progress finish, but their responses are not sent. */
+    @Override
+    public void close() {
+        running = false;
+        closeChannels();
+        responseCache.close();
+        try {
+            tcpSocket.close();
+        } catch (IOException e) {
+            // nothing else to release
+        }
+        for (Socket socket : tcpConnections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // a parsed client query, with the parts of it its response needs
+    private static final class Request {
+
+        private final DNSHeader header;
+        private final byte[] question;
+        private final DNSNode node;
+        private final int maxLength;
+        private final int ednsPayloadSize;
+        // response code of a query that cannot be answered, or 0
+        private final int rcode;
+
+        private Request(DNSHeader header, byte[] question, DNSNode node, int maxLength, int ednsPayloadSize,
+                        int rcode) {
+            this.header = header;
+            this.question = question;
+            this.node = node;
+            this.maxLength = maxLength;
+            this.ednsPayloadSize = ednsPayloadSize;
+            this.rcode = rcode;
+        }
+
+        // parses a query, or returns null for anything that deserves no response at all
+        static Request parse(ByteBuffer packet, int maxLength) {
+            DNSMessageReader reader;
+            DNSHeader header = new DNSHeader();
+            try {
+                reader = new DNSMessageReader(packet);
+                header.deserialize(reader);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            if (header.QR == 1)
+                return null;
+            byte[] question = new byte[0];
+            try {
+                DNSQues ques = new DNSQues();
+                ques.deserialize(reader);
+                if (header.QDCOUNT != 1 || ques.NAME == null)
+                    return new Request(header, question, null, maxLength, 0, RCODE_FORMERR);
+                int questionEnd = reader.skipName(reader.getQuestionNameOffset()) + 4;
+                question = new byte[questionEnd - DNSMessageReader.HEADER_LENGTH];
+                for (int i = 0; i < question.length; i++)
+                    question[i] = (byte) reader.readUnsignedByte(DNSMessageReader.HEADER_LENGTH + i);
+
+                // the client's UDP payload size, from its OPT record (RFC 6891)
+                int ednsPayloadSize = 0;
+                while (reader.nextRecord())
+                    if (reader.getRecordType() == DNSMessageReader.TYPE_OPT)
+                        ednsPayloadSize = Math.max(MAX_UDP_LENGTH, reader.getRecordClass());
+                if (ednsPayloadSize > 0 && maxLength < MAX_TCP_LENGTH)
+                    maxLength = Math.min(ednsPayloadSize, DNSQueryEncoder.DEFAULT_EDNS_PAYLOAD_SIZE);
+                int advertised = ednsPayloadSize > 0 ? DNSQueryEncoder.DEFAULT_EDNS_PAYLOAD_SIZE : 0;
+
+                RecordType type = RecordType.getByCode(ques.TYPE);
+                DNSNode node = new DNSNode(ques.NAME, type);
+                boolean supported = header.OPCODE == 0 && ques.CLASS == 1
+                        && type != RecordType.OTHER && type != RecordType.MX;
+                return new Request(header, question, node, maxLength, advertised, supported ? 0 : RCODE_NOTIMP);
+            } catch (IllegalArgumentException e) {
+                return new Request(header, question, null, maxLength, 0, RCODE_FORMERR);
+            }
+        }
+
+        byte[] answerFrom(ResponseCache responseCache) {
+            return responseCache.answer(node, header.ID, header.RD, question, maxLength, ednsPayloadSize);
+        }
+
+        byte[] respond(Set<ResourceRecord> results, int rcode) {
+            DNSResponseEncoder encoder = new DNSResponseEncoder(header, question,
+                    node == null ? "" : node.getCanonicalName(), maxLength, ednsPayloadSize);
+            for (ResourceRecord record : results)
+                if (!encoder.addAnswer(record))
+                    break;
+            return encoder.finish(rcode);
+        }
+    }
+}
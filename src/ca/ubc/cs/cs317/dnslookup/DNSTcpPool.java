@@ -0,0 +1,264 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/** TCP connections to name servers, used to repeat queries whose UDP reply was truncated. One
+ * connection is kept per server and reused by every query to that server. Queries are pipelined
+ * (RFC 7766): each is written as soon as it is sent, without waiting for the replies to earlier
+ * ones, and replies, which may arrive in any order, are matched by query ID and question.
+ *
+ * A connection is closed once it has been idle for IDLE_TIMEOUT, or when the server closes it or
+ * fails; the next query to that server opens a new one. Queries are written by a small pool of
+ * threads, so send never blocks its caller, not even while connecting. Connections to different
+ * servers are opened independently: a server that cannot be reached only delays the queries to
+ * that server.
+ */
+public class DNSTcpPool implements AutoCloseable {
+
+    private static final int CONNECT_TIMEOUT = 3000;
+    private static final int IDLE_TIMEOUT = 10000;
+    private static final int POLL_INTERVAL = 1000;
+
+    private final Map<InetAddress, CompletableFuture<Connection>> connections = new ConcurrentHashMap<>();
+    private final ExecutorService writers;
+    private final DNSQueryEncoder encoder = DNSQueryEncoder.getInstance();
+    private final long timeout;
+    private final int port;
+
+    /**
+     * @param timeout Time to wait for a reply over TCP, in milliseconds.
+     * @param port    Port name servers listen on.
+     */
+    public DNSTcpPool(long timeout, int port) {
+        this.timeout = timeout;
+        this.port = port;
+        this.writers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "dns-tcp-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Sends a query to a server over TCP.
+     *
+     * @param query  Query to be sent.
+     * @param server Address of the server the query is sent to.
+     * @return A future completed with the reply, or exceptionally if the connection fails or no
+     *         reply arrives in time.
+     */
+    public CompletableFuture<DNSResponse> send(DNSQuery query, InetAddress server) {
+        CompletableFuture<DNSResponse> future = new CompletableFuture<>();
+        try {
+            writers.execute(() -> {
+                try {
+                    connectionTo(server).send(query, future);
+                } catch (IOException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new IOException("TCP pool closed"));
+        }
+        return future.orTimeout(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    public int getOpenConnections() {
+        return connections.size();
+    }
+
+    // the open connection to a server; the first writer to find none connects, and the writers
+    // of queries to the same server wait for it
+    private Connection connectionTo(InetAddress server) throws IOException {
+        while (true) {
+            CompletableFuture<Connection> connection = connections.get(server);
+            if (connection == null) {
+                CompletableFuture<Connection> connecting = new CompletableFuture<>();
+                if (connections.putIfAbsent(server, connecting) != null)
+                    continue;
+                try {
+                    Connection opened = new Connection(server, connecting);
+                    connecting.complete(opened);
+                    return opened;
+                } catch (IOException | RuntimeException e) {
+                    connections.remove(server, connecting);
+                    connecting.completeExceptionally(e);
+                    throw e;
+                }
+            }
+            try {
+                Connection opened = connection.join();
+                if (opened.open)
+                    return opened;
+                connections.remove(server, connection);
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                        : new IOException("Cannot connect to " + server.getHostAddress(), e.getCause());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        writers.shutdownNow();
+        for (CompletableFuture<Connection> connection : connections.values())
+            if (connection.isDone() && !connection.isCompletedExceptionally())
+                connection.join().close(new IOException("TCP pool closed"));
+    }
+
+    // ID and question of a query written on a connection and waiting for its reply; two queries
+    // with the same ID but different questions wait for different replies
+    private static final class PendingKey {
+
+        private final int id;
+        private final DNSNode node;
+
+        PendingKey(int id, DNSNode node) {
+            this.id = id;
+            this.node = node;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            PendingKey key = (PendingKey) o;
+            return id == key.id && node.equals(key.node);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * id + node.hashCode();
+        }
+    }
+
+    // one connection, with the thread reading its replies
+    private class Connection {
+
+        private final InetAddress server;
+        private final CompletableFuture<Connection> handle;
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private final Map<PendingKey, CompletableFuture<DNSResponse>> pending = new ConcurrentHashMap<>();
+        private volatile boolean open = true;
+        private volatile long lastUsed = System.nanoTime();
+
+        Connection(InetAddress server, CompletableFuture<Connection> handle) throws IOException {
+            this.server = server;
+            this.handle = handle;
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(server, port), CONNECT_TIMEOUT);
+                socket.setSoTimeout(POLL_INTERVAL);
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            Thread reader = new Thread(this::readLoop, "dns-tcp-" + server.getHostAddress());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send(DNSQuery query, CompletableFuture<DNSResponse> future) {
+            PendingKey key = new PendingKey(query.queryID, query.node);
+            CompletableFuture<DNSResponse> existing = pending.putIfAbsent(key, future);
+            if (existing != null) {
+                // the same query (ID and question) sent again, e.g. a retransmission truncated
+                // again, shares the reply
+                existing.whenComplete((response, e) -> {
+                    if (response != null)
+                        future.complete(response);
+                    else
+                        future.completeExceptionally(e);
+                });
+                return;
+            }
+            future.whenComplete((response, e) -> pending.remove(key, future));
+            try {
+                byte[] message = encoder.toBytes(query.node, query.queryID, query.edns);
+                synchronized (out) {
+                    out.writeShort(message.length);
+                    out.write(message);
+                    out.flush();
+                }
+                lastUsed = System.nanoTime();
+            } catch (IOException e) {
+                close(e);
+            }
+            if (!open)
+                future.completeExceptionally(new IOException("Connection to " + server.getHostAddress() + " closed"));
+        }
+
+        // reads replies until the connection fails or goes idle; the connection is closed, and
+        // its pending queries failed, however the loop ends
+        private void readLoop() {
+            IOException failure = null;
+            try {
+                while (open) {
+                    int length;
+                    try {
+                        length = in.readUnsignedShort();
+                    } catch (SocketTimeoutException e) {
+                        if (pending.isEmpty() && System.nanoTime() - lastUsed > TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT))
+                            break;
+                        continue;
+                    }
+                    byte[] message = new byte[length];
+                    in.readFully(message);
+                    lastUsed = System.nanoTime();
+                    try {
+                        dispatch(message);
+                    } catch (RuntimeException e) {
+                        // one bad reply must not stop the reader of the connection
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                close(failure != null ? failure : new IOException("Idle connection closed"));
+            }
+        }
+
+        private void dispatch(byte[] message) {
+            DNSResponse response = new DNSResponse();
+            long start = System.nanoTime();
+            try {
+                response.decode(message, message.length);
+            } catch (Exception e) {
+                // malformed reply, the query it answers will time out
+                return;
+            }
+            Metrics.getInstance().decoded(System.nanoTime() - start);
+            if (response.dnsQuestion.NAME == null)
+                return;
+            PendingKey key = new PendingKey(response.dnsHeader.ID,
+                    new DNSNode(response.dnsQuestion.NAME, RecordType.getByCode(response.dnsQuestion.TYPE)));
+            CompletableFuture<DNSResponse> future = pending.remove(key);
+            if (future != null)
+                future.complete(response);
+        }
+
+        void close(IOException cause) {
+            open = false;
+            connections.remove(server, handle);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing else to release
+            }
+            for (CompletableFuture<DNSResponse> future : pending.values())
+                future.completeExceptionally(cause);
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Non-blocking UDP transport shared by all resolutions of a resolver. Queries are spread over a
+ * small pool of DatagramChannels, and a single selector thread receives every reply and hands it
+ * to the caller waiting for it. Replies are matched by query ID, server address and question, so
+ * any number of queries may be outstanding on the same socket at the same time. Replies nobody is
+ * waiting for (e.g. late replies to a query that already timed out) are dropped.
+ *
+ * The receive buffer holds the largest possible UDP payload, so EDNS replies of any advertised
+ * size are received whole. A reply with the TC (truncated) bit set is not handed to the caller:
+ * the query is repeated over TCP (see DNSTcpPool) and the caller gets the complete TCP reply, or
+ * the truncated one if TCP fails.
+ */
+public class DNSTransport implements AutoCloseable {
+
+    public static final int DEFAULT_DNS_PORT = 53;
+    private static final int RECEIVE_BUFFER_SIZE = 65535;
+    private static final int TCP_TIMEOUT = 5000;
+
+    private final Selector selector;
+    private final DatagramChannel[] channels;
+    private final AtomicInteger nextChannel = new AtomicInteger();
+    private final Map<PendingKey, PendingQuery> pending = new ConcurrentHashMap<>();
+    private final DNSTcpPool tcpPool;
+    private final int port;
+    private final Thread selectorThread;
+    private final DNSQueryEncoder encoder = DNSQueryEncoder.getInstance();
+
+    // only ever used by the selector thread
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+
+    public DNSTransport(int sockets) throws IOException {
+        this(sockets, DEFAULT_DNS_PORT);
+    }
+
+    /**
+     * @param sockets Number of UDP sockets queries are spread over.
+     * @param port    Port name servers listen on (53, except for tests and benchmarks).
+     * @throws IOException If the sockets cannot be opened.
+     */
+    public DNSTransport(int sockets, int port) throws IOException {
+        this.port = port;
+        this.tcpPool = new DNSTcpPool(TCP_TIMEOUT, port);
+        selector = Selector.open();
+        channels = new DatagramChannel[sockets];
+        for (int i = 0; i < sockets; i++) {
+            channels[i] = DatagramChannel.open();
+            channels[i].configureBlocking(false);
+            channels[i].bind(null);
+            channels[i].register(selector, SelectionKey.OP_READ);
+        }
+        selectorThread = new Thread(this::receiveLoop, "dns-transport");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /** Sends a query to a server and returns a future completed with the matching reply. If an
+     * identical query (same ID, server and question) is already outstanding, for example because
+     * the query is being retransmitted, the packet is sent again and the existing future is
+     * returned.
+     *
+     * @param query  Query to be sent.
+     * @param server Address of the server the query is sent to.
+     * @return A future completed with the reply to this query.
+     */
+    public CompletableFuture<DNSResponse> send(DNSQuery query, InetAddress server) {
+        PendingKey key = new PendingKey(query.queryID, server, query.dnsQuestion.NAME, query.dnsQuestion.TYPE);
+        PendingQuery future = pending.computeIfAbsent(key, k -> new PendingQuery(query));
+        ByteBuffer packet = null;
+        try {
+            packet = encoder.encode(query.node, query.queryID, query.edns);
+            DatagramChannel channel = channels[Math.floorMod(nextChannel.getAndIncrement(), channels.length)];
+            channel.send(packet, new InetSocketAddress(server, port));
+        } catch (Exception e) {
+            pending.remove(key, future);
+            future.completeExceptionally(e);
+        } finally {
+            if (packet != null)
+                encoder.release(packet);
+        }
+        return future;
+    }
+
+    /** Sends a query to a server and blocks until the matching reply arrives or the timeout
+     * expires.
+     *
+     * @param query   Query to be sent.
+     * @param server  Address of the server the query is sent to.
+     * @param timeout Maximum time to wait for the reply, in milliseconds.
+     * @return The reply to the query.
+     * @throws SocketTimeoutException If no reply arrived in time.
+     * @throws Exception              If the query could not be sent.
+     */
+    public DNSResponse query(DNSQuery query, InetAddress server, int timeout) throws Exception {
+        CompletableFuture<DNSResponse> future = send(query, server);
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("No reply from " + server.getHostAddress());
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            cancel(query, server, future);
+        }
+    }
+
+    /** Stops waiting for the reply to a query. Replies that arrive afterwards are dropped.
+     *
+     * @param query  Query previously sent with send.
+     * @param server Address of the server the query was sent to.
+     * @param future Future returned by send for this query.
+     */
+    public void cancel(DNSQuery query, InetAddress server, CompletableFuture<DNSResponse> future) {
+        pending.remove(new PendingKey(query.queryID, server, query.dnsQuestion.NAME, query.dnsQuestion.TYPE), future);
+    }
+
+    public int getOutstandingQueries() {
+        return pending.size();
+    }
+
+    public DNSTcpPool getTcpPool() {
+        return tcpPool;
+    }
+
+    private void receiveLoop() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey selectionKey = keys.next();
+                    keys.remove();
+                    if (selectionKey.isValid() && selectionKey.isReadable())
+                        drain((DatagramChannel) selectionKey.channel());
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // transport closed
+        }
+    }
+
+    // read every datagram currently queued on the channel
+    private void drain(DatagramChannel channel) throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress sender = channel.receive(receiveBuffer);
+            if (sender == null)
+                return;
+            receiveBuffer.flip();
+            try {
+                dispatch(receiveBuffer, ((InetSocketAddress) sender).getAddress());
+            } catch (RuntimeException e) {
+                // one bad datagram must not stop the only receiving thread
+            }
+        }
+    }
+
+    // decodes straight from the receive buffer; the response keeps no reference to it
+    private void dispatch(ByteBuffer packet, InetAddress sender) {
+        DNSResponse response = new DNSResponse();
+        long start = System.nanoTime();
+        try {
+            response.decode(packet);
+        } catch (Exception e) {
+            // malformed packet, nobody can be waiting for it
+            return;
+        }
+        Metrics.getInstance().decoded(System.nanoTime() - start);
+        // queries, and replies without a question (e.g. some FORMERR), cannot be matched
+        if (response.dnsHeader.QR == 0 || response.dnsHeader.QDCOUNT == 0 || response.dnsQuestion.NAME == null)
+            return;
+        PendingKey key = new PendingKey(response.dnsHeader.ID, sender, response.dnsQuestion.NAME,
+                response.dnsQuestion.TYPE);
+        PendingQuery future = pending.remove(key);
+        if (future == null)
+            return;
+        if (response.dnsHeader.TC == 0) {
+            future.complete(response);
+            return;
+        }
+        Metrics.getInstance().tcpFallback();
+        tcpPool.send(future.query, sender).whenComplete((tcpResponse, e) ->
+                future.complete(tcpResponse != null ? tcpResponse : response));
+    }
+
+    @Override
+    public void close() {
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // nothing else to release
+        }
+        for (DatagramChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing else to release
+            }
+        }
+        tcpPool.close();
+        IOException closed = new IOException("Transport closed");
+        pending.values().forEach(future -> future.completeExceptionally(closed));
+        pending.clear();
+    }
+
+    // the future of an outstanding query, with the query itself in case it must be repeated over TCP
+    private static final class PendingQuery extends CompletableFuture<DNSResponse> {
+
+        private final DNSQuery query;
+
+        PendingQuery(DNSQuery query) {
+            this.query = query;
+        }
+    }
+
+    // (query ID, server, question) triple used to match a reply to the query waiting for it
+    private static final class PendingKey {
+
+        private final int id;
+        private final InetAddress server;
+        private final String name;
+        private final int type;
+
+        PendingKey(int id, InetAddress server, String name, int type) {
+            this.id = id;
+            this.server = server;
+            this.name = name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            PendingKey key = (PendingKey) o;
+            return id == key.id && type == key.type && server.equals(key.server) && name.equalsIgnoreCase(key.name);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = id;
+            result = 31 * result + server.hashCode();
+            result = 31 * result + type;
+            return result;
+        }
+    }
+}
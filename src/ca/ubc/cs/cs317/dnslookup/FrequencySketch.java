@@ -0,0 +1,61 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** Approximate access frequency of cache keys (a count-min sketch, as used by TinyLFU). Each key
+ * is counted in four saturating counters picked by different hash functions, and its frequency
+ * is the smallest of the four. Once the number of increments reaches ten times the size of the
+ * table, every counter is halved so that the sketch favours recent popularity.
+ *
+ * Counters are updated without synchronization; lost updates only make the estimate slightly
+ * less accurate, which is acceptable for an admission policy.
+ */
+class FrequencySketch {
+
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0xb8b4a26b, 0x5f356495, 0x2c1fbb4f};
+
+    private final int[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /** Creates a sketch able to tell apart the popularity of roughly the given number of keys.
+     *
+     * @param expectedKeys Number of keys expected to be tracked (the size of the cache).
+     */
+    FrequencySketch(long expectedKeys) {
+        int size = Integer.highestOneBit((int) Math.max(16, Math.min(expectedKeys, 1 << 22)) - 1) << 1;
+        table = new int[size];
+        mask = size - 1;
+        sampleSize = 10 * size;
+    }
+
+    int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        for (int seed : SEEDS)
+            frequency = Math.min(frequency, table[indexOf(hash, seed)]);
+        return frequency;
+    }
+
+    void increment(int hash) {
+        for (int seed : SEEDS) {
+            int index = indexOf(hash, seed);
+            if (table[index] < MAX_COUNT)
+                table[index]++;
+        }
+        if (++additions >= sampleSize)
+            reset();
+    }
+
+    // age all counters so that keys that were popular a long time ago can be evicted
+    private void reset() {
+        for (int i = 0; i < table.length; i++)
+            table[i] >>>= 1;
+        additions = 0;
+    }
+
+    private int indexOf(int hash, int seed) {
+        int h = hash * seed;
+        h += h >>> 16;
+        return h & mask;
+    }
+}
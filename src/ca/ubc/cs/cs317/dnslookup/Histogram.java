@@ -0,0 +1,124 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Concurrent histogram of non-negative long values (latencies in nanoseconds, counts), laid out
+ * like an HdrHistogram: values below 2 * SUB_BUCKETS are counted exactly, and every larger power
+ * of two is split into SUB_BUCKETS linear sub-buckets, so any recorded value is known to within
+ * 1/SUB_BUCKETS (about 3%) of its magnitude, at a fixed cost of under two thousand counters.
+ *
+ * Recording a value is a few shifts and one atomic increment. The counters are striped by
+ * thread, so threads recording at the same time rarely touch the same cache line; reading the
+ * histogram sums the stripes and is meant for occasional reporting, not the hot path.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final int STRIPES =
+            Math.min(8, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors())));
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new AtomicLongArray(BUCKETS);
+    }
+
+    /** Records one occurrence of a value. Negative values are recorded as 0.
+     *
+     * @param value Value to be recorded.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        stripes[stripe].incrementAndGet(bucketOf(value));
+        sum.add(value);
+    }
+
+    /** Takes a consistent-enough copy of the counters, from which any number of statistics can
+     * be computed without the recorders changing them in between.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes)
+            for (int i = 0; i < BUCKETS; i++)
+                counts[i] += stripe.get(i);
+        return new Snapshot(counts, sum.sum());
+    }
+
+    public void reset() {
+        for (AtomicLongArray stripe : stripes)
+            for (int i = 0; i < BUCKETS; i++)
+                stripe.set(i, 0);
+        sum.reset();
+    }
+
+    // values below 2 * SUB_BUCKETS map to themselves; above, the top SUB_BUCKET_BITS + 1 bits do
+    private static int bucketOf(long value) {
+        if (value < 2 * SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    // highest value that maps to a bucket
+    private static long highestValueOf(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /** Counters of a histogram at one point in time. */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long sum;
+        private final long count;
+
+        private Snapshot(long[] counts, long sum) {
+            this.counts = counts;
+            this.sum = sum;
+            long count = 0;
+            for (long bucketCount : counts)
+                count += bucketCount;
+            this.count = count;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /** Returns the value below which a percentage of the recorded values fall, rounded up to
+         * the highest value of its bucket, or 0 if nothing was recorded.
+         *
+         * @param percentile Percentage between 0 and 100.
+         */
+        public long getValueAtPercentile(double percentile) {
+            long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return highestValueOf(i);
+            }
+            return 0;
+        }
+
+        public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--)
+                if (counts[i] != 0)
+                    return highestValueOf(i);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/** Table of resolutions currently in progress, used to coalesce concurrent cache misses for the
+ * same node ("singleflight"). The first resolution that misses a node becomes its leader and
+ * performs the upstream queries; resolutions that miss the same node while the leader is still
+ * working wait for the leader's result instead of walking the hierarchy themselves.
+ *
+ * A follower waits only for a bounded time. If the leader takes longer (or fails), the follower
+ * resolves the node on its own, so a cycle of resolutions waiting for each other (e.g. two zones
+ * whose name servers are only named in the other zone) cannot deadlock. Followers also resolve
+ * the node on their own if the leader reached its deadline, since the leader's results are then
+ * truncated, or empty, and the follower's deadline may be further away.
+ */
+public class InFlightTable {
+
+    private final Map<DNSNode, CompletableFuture<Set<ResourceRecord>>> inFlight = new ConcurrentHashMap<>();
+
+    /** Resolves a node, sharing the work with any other resolution of the same node already in
+     * progress.
+     *
+     * @param node       Host name and record type being resolved.
+     * @param context    State of the resolution asking for the node.
+     * @param resolution Performs the resolution if this caller becomes the leader.
+     * @param maxWait    Maximum time to wait for another resolution's result, in milliseconds.
+     * @return The results of the resolution.
+     */
+    public Set<ResourceRecord> resolve(DNSNode node, ResolutionContext context,
+                                       Supplier<Set<ResourceRecord>> resolution, long maxWait) {
+        // the same resolution asking again for a node it is resolving means a referral cycle
+        if (context.isResolving(node))
+            return Collections.emptySet();
+
+        CompletableFuture<Set<ResourceRecord>> future = new CompletableFuture<>();
+        CompletableFuture<Set<ResourceRecord>> leader = inFlight.putIfAbsent(node, future);
+        if (leader != null) {
+            try {
+                return leader.get(maxWait, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                return lead(node, context, resolution, null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Collections.emptySet();
+            }
+        }
+        return lead(node, context, resolution, future);
+    }
+
+    public int size() {
+        return inFlight.size();
+    }
+
+    private Set<ResourceRecord> lead(DNSNode node, ResolutionContext context,
+                                     Supplier<Set<ResourceRecord>> resolution,
+                                     CompletableFuture<Set<ResourceRecord>> future) {
+        context.startResolving(node);
+        try {
+            Set<ResourceRecord> results = resolution.get();
+            if (future != null) {
+                if (context.hasExceededDeadline())
+                    future.completeExceptionally(new TimeoutException("Leader reached its deadline"));
+                else
+                    future.complete(results);
+            }
+            return results;
+        } catch (RuntimeException | Error e) {
+            if (future != null)
+                future.completeExceptionally(e);
+            throw e;
+        } finally {
+            context.stopResolving(node);
+            if (future != null)
+                inFlight.remove(node, future);
+        }
+    }
+}
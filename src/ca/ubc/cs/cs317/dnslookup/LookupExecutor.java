@@ -0,0 +1,211 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/** Runs the lookups of a Resolver, and the name server address lookups they fork, on threads
+ * that block while waiting for name servers. A resolution is plain blocking code (getResults
+ * calls retrieveResultsFromServers, which waits for a StaggeredQuery, which calls
+ * processResponse, ...), so every lookup in progress holds a thread for its whole duration.
+ *
+ * In PLATFORM mode, lookups run on a fixed pool of platform threads, as many as the maximum
+ * number of concurrent lookups, and address lookups on a cached pool. In VIRTUAL mode, every
+ * lookup and address lookup gets a virtual thread of its own (Java 21+), which unmounts from its
+ * carrier while it waits, so thousands of lookups can wait for name servers at the same time
+ * with the same synchronous code; the maximum number of concurrent lookups is then enforced by
+ * a semaphore, and lookups beyond it wait for a permit (up to their deadline) on their own
+ * virtual thread. Virtual threads are created through reflection, so that the resolver still
+ * builds and runs on Java 17; there, VIRTUAL mode falls back to a platform thread per lookup,
+ * with the same cap (see isVirtual).
+ *
+ * Address lookups and background refreshes are bounded too, by GLUE_THREADS_PER_LOOKUP times
+ * the maximum number of concurrent lookups. Once that many are running, a new address lookup
+ * runs on the thread of the lookup that needs it (see getGlueExecutor), and a new background
+ * refresh is refused (see getBackgroundExecutor).
+ */
+public class LookupExecutor implements AutoCloseable {
+
+    public enum Mode {
+        PLATFORM, VIRTUAL
+    }
+
+    /** Address lookups and background refreshes that may run at the same time, per lookup. */
+    public static final int GLUE_THREADS_PER_LOOKUP = 3;
+
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutor();
+
+    private final Mode mode;
+    private final int maxConcurrentLookups;
+    private final boolean virtual;
+    private final ExecutorService lookupExecutor;
+    private final ExecutorService glueExecutor;
+    private final Semaphore permits;
+    private final Semaphore glueSlots;
+
+    /**
+     * @param mode                 Kind of threads the lookups run on.
+     * @param maxConcurrentLookups Maximum number of lookups running at the same time.
+     */
+    public LookupExecutor(Mode mode, int maxConcurrentLookups) {
+        if (maxConcurrentLookups < 1)
+            throw new IllegalArgumentException("At least one concurrent lookup is needed");
+        this.mode = mode;
+        this.maxConcurrentLookups = maxConcurrentLookups;
+        ExecutorService virtualExecutor = mode == Mode.VIRTUAL ? newVirtualThreadExecutor() : null;
+        this.virtual = virtualExecutor != null;
+        if (mode == Mode.PLATFORM) {
+            this.lookupExecutor = Executors.newFixedThreadPool(maxConcurrentLookups, daemonThreads("resolver"));
+            this.permits = null;
+        } else {
+            this.lookupExecutor = virtual ? virtualExecutor
+                    : Executors.newCachedThreadPool(daemonThreads("resolver"));
+            this.permits = new Semaphore(maxConcurrentLookups);
+        }
+        // address lookups block while waiting for replies, so they are never queued behind
+        // other tasks: a slot is taken before a thread is, and the caller runs the lookup itself
+        // if there is none
+        this.glueExecutor = virtual ? virtualExecutor : Executors.newCachedThreadPool(daemonThreads("resolver-glue"));
+        this.glueSlots = new Semaphore(maxConcurrentLookups * GLUE_THREADS_PER_LOOKUP);
+    }
+
+    /** Returns true if virtual threads are available on this JVM. */
+    public static boolean isVirtualThreadsSupported() {
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /** Returns true if lookups actually run on virtual threads, i.e., in VIRTUAL mode on a JVM
+     * that supports them.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public int getMaxConcurrentLookups() {
+        return maxConcurrentLookups;
+    }
+
+    /** Number of lookups submitted but not yet started (PLATFORM mode) or waiting for a permit
+     * (VIRTUAL mode), as far as it can be told. */
+    public int getWaitingCount() {
+        if (permits != null)
+            return permits.getQueueLength();
+        return lookupExecutor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) lookupExecutor).getQueue().size()
+                : 0;
+    }
+
+    /** Runs a lookup once fewer than the maximum number of lookups are running.
+     *
+     * @param lookup   Lookup to be run.
+     * @param context  State of the resolution the lookup is for, whose deadline bounds the wait.
+     * @param fallback Result of the lookup if its deadline passes before it can start.
+     * @return A future completed with the result of the lookup.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> lookup, ResolutionContext context, Supplier<T> fallback) {
+        if (permits == null)
+            return CompletableFuture.supplyAsync(() -> context.isPastDeadline() ? fallback.get() : lookup.get(),
+                    lookupExecutor);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                if (!permits.tryAcquire(context.getRemainingNanos(), TimeUnit.NANOSECONDS))
+                    return fallback.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return fallback.get();
+            }
+            try {
+                return lookup.get();
+            } finally {
+                permits.release();
+            }
+        }, lookupExecutor);
+    }
+
+    /** Executor of the lookups forked by running lookups. They are never queued behind the
+     * lookups that wait for them: if all glue threads are busy, a task runs on the thread that
+     * submits it.
+     */
+    public Executor getGlueExecutor() {
+        return task -> {
+            if (!tryExecuteGlue(task))
+                task.run();
+        };
+    }
+
+    /** Executor of background refreshes, which share the glue threads. If all of them are busy,
+     * a task is refused with a RejectedExecutionException: it only refreshes records that a
+     * later lookup can still refresh.
+     */
+    public Executor getBackgroundExecutor() {
+        return task -> {
+            if (!tryExecuteGlue(task))
+                throw new RejectedExecutionException("All glue threads are busy");
+        };
+    }
+
+    private boolean tryExecuteGlue(Runnable task) {
+        if (!glueSlots.tryAcquire())
+            return false;
+        try {
+            glueExecutor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    glueSlots.release();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            // shut down: the task is refused, as by any other executor
+            glueSlots.release();
+            throw e;
+        }
+    }
+
+    /** Stops accepting lookups. Lookups in progress keep running, so that a resolver can
+     * switch executors without failing them.
+     */
+    public void shutdown() {
+        lookupExecutor.shutdown();
+        glueExecutor.shutdown();
+    }
+
+    /** Stops accepting lookups and interrupts the lookups in progress. */
+    @Override
+    public void close() {
+        lookupExecutor.shutdownNow();
+        glueExecutor.shutdownNow();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor, or null before Java 21
+    private static Method findVirtualThreadExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        if (NEW_VIRTUAL_THREAD_EXECUTOR == null)
+            return null;
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // e.g. virtual threads disabled as a preview feature on Java 19 and 20
+            return null;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counters and histograms of the resolver's hot paths: queries sent (per server),
+ * retransmissions and timeouts, EDNS and TCP fallbacks, lookups that reached their deadline, the
+ * time spent decoding responses, and for every lookup its end-to-end latency, the number of
+ * referrals followed and the number of CNAMEs followed. Cache hits, misses and expirations are
+ * counted by the cache of the resolver (see setCache) and reported here.
+ *
+ * Queries are counted separately for at most MAX_SERVERS servers; queries to servers beyond
+ * those are counted together, as "other", so that the metrics of a long-running resolver do not
+ * grow with the number of servers it ever talked to.
+ *
+ * Everything is recorded with striped counters (LongAdder and Histogram), so recording costs a
+ * few nanoseconds and does not contend between threads. The metrics can be read through JMX
+ * (see MetricsMXBean) or printed with the metrics command of DNSLookupService.
+ */
+public class Metrics implements MetricsMXBean {
+
+    public static final String OBJECT_NAME = "ca.ubc.cs.cs317.dnslookup:type=Metrics";
+
+    /** Maximum number of servers whose queries are counted separately. */
+    public static final int MAX_SERVERS = 256;
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private static final Metrics instance = new Metrics();
+
+    private final LongAdder queriesSent = new LongAdder();
+    private final Map<InetAddress, LongAdder> queriesPerServer = new ConcurrentHashMap<>();
+    private final LongAdder queriesToOtherServers = new LongAdder();
+    private final LongAdder retransmissions = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder ednsFallbacks = new LongAdder();
+    private final LongAdder tcpFallbacks = new LongAdder();
+    private final LongAdder deadlinesExceeded = new LongAdder();
+    private final Histogram lookupLatency = new Histogram();
+    private final Histogram decodeTime = new Histogram();
+    private final Histogram referralDepth = new Histogram();
+    private final Histogram cNameHops = new Histogram();
+
+    private volatile DNSCache cache;
+
+    private Metrics() {
+    }
+
+    /** Singleton retrieval method. All resolvers of the process record into the same metrics.
+     *
+     * @return The metrics instance.
+     */
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    /** Changes the cache whose counters are reported. Every Resolver sets its own cache when it
+     * is created, so the cache counters are those of the last resolver created.
+     *
+     * @param cache Cache whose hits, misses, expirations and evictions are reported.
+     */
+    public void setCache(DNSCache cache) {
+        this.cache = cache;
+    }
+
+    /** Registers the metrics with the platform MBean server, if not already registered.
+     *
+     * @throws JMException If the MBean cannot be registered.
+     */
+    public synchronized void registerMBean() throws JMException {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    }
+
+    void querySent(InetAddress server, boolean retransmission) {
+        queriesSent.increment();
+        LongAdder serverQueries = queriesPerServer.get(server);
+        if (serverQueries == null)
+            serverQueries = queriesPerServer.size() < MAX_SERVERS
+                    ? queriesPerServer.computeIfAbsent(server, s -> new LongAdder()) : queriesToOtherServers;
+        serverQueries.increment();
+        if (retransmission)
+            retransmissions.increment();
+    }
+
+    void timedOut() {
+        timeouts.increment();
+    }
+
+    void ednsFallback() {
+        ednsFallbacks.increment();
+    }
+
+    void tcpFallback() {
+        tcpFallbacks.increment();
+    }
+
+    void deadlineExceeded() {
+        deadlinesExceeded.increment();
+    }
+
+    void decoded(long nanos) {
+        decodeTime.record(nanos);
+    }
+
+    void lookupCompleted(long nanos) {
+        lookupLatency.record(nanos);
+    }
+
+    void resolutionCompleted(ResolutionContext context) {
+        referralDepth.record(context.getReferrals());
+        cNameHops.record(context.getCNameHops());
+    }
+
+    @Override
+    public long getLookups() {
+        return lookupLatency.snapshot().getCount();
+    }
+
+    @Override
+    public long getQueriesSent() {
+        return queriesSent.sum();
+    }
+
+    @Override
+    public Map<String, Long> getQueriesPerServer() {
+        Map<String, Long> counts = new TreeMap<>();
+        queriesPerServer.forEach((server, count) -> counts.put(server.getHostAddress(), count.sum()));
+        long others = queriesToOtherServers.sum();
+        if (others > 0)
+            counts.put("other", others);
+        return counts;
+    }
+
+    @Override
+    public long getRetransmissions() {
+        return retransmissions.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getEdnsFallbacks() {
+        return ednsFallbacks.sum();
+    }
+
+    @Override
+    public long getTcpFallbacks() {
+        return tcpFallbacks.sum();
+    }
+
+    @Override
+    public long getDeadlinesExceeded() {
+        return deadlinesExceeded.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        DNSCache cache = this.cache;
+        return cache == null ? 0 : cache.getHitCount();
+    }
+
+    @Override
+    public long getCacheNegativeHits() {
+        DNSCache cache = this.cache;
+        return cache == null ? 0 : cache.getNegativeHitCount();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        DNSCache cache = this.cache;
+        return cache == null ? 0 : cache.getMissCount();
+    }
+
+    @Override
+    public long getCacheExpirations() {
+        DNSCache cache = this.cache;
+        return cache == null ? 0 : cache.getExpirationCount();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        DNSCache cache = this.cache;
+        return cache == null ? 0 : cache.getEvictionCount();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = getCacheHits() + getCacheNegativeHits();
+        long lookups = hits + getCacheMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public Map<String, Long> getLookupLatencyMicros() {
+        return summarize(lookupLatency.snapshot(), TimeUnit.MICROSECONDS.toNanos(1));
+    }
+
+    @Override
+    public Map<String, Long> getDecodeTimeNanos() {
+        return summarize(decodeTime.snapshot(), 1);
+    }
+
+    @Override
+    public Map<String, Long> getReferralDepth() {
+        return summarize(referralDepth.snapshot(), 1);
+    }
+
+    @Override
+    public Map<String, Long> getCNameHops() {
+        return summarize(cNameHops.snapshot(), 1);
+    }
+
+    @Override
+    public void reset() {
+        queriesSent.reset();
+        queriesPerServer.clear();
+        queriesToOtherServers.reset();
+        retransmissions.reset();
+        timeouts.reset();
+        ednsFallbacks.reset();
+        tcpFallbacks.reset();
+        deadlinesExceeded.reset();
+        lookupLatency.reset();
+        decodeTime.reset();
+        referralDepth.reset();
+        cNameHops.reset();
+    }
+
+    /** Prints every metric as plain text, one metric per line.
+     *
+     * @param out Stream the metrics are printed on.
+     */
+    public void print(PrintStream out) {
+        out.printf("Lookups: %d  Queries sent: %d  Retransmissions: %d  Timeouts: %d\n", getLookups(),
+                getQueriesSent(), getRetransmissions(), getTimeouts());
+        out.printf("EDNS fallbacks: %d  TCP fallbacks: %d  Deadlines exceeded: %d\n", getEdnsFallbacks(),
+                getTcpFallbacks(), getDeadlinesExceeded());
+        out.printf("Cache hits: %d  Negative hits: %d  Misses: %d  Expirations: %d  Hit ratio: %.1f%%\n",
+                getCacheHits(), getCacheNegativeHits(), getCacheMisses(), getCacheExpirations(),
+                getCacheHitRatio() * 100);
+        printSummary(out, "Lookup latency (us)", getLookupLatencyMicros());
+        printSummary(out, "Decode time (ns)", getDecodeTimeNanos());
+        printSummary(out, "Referral depth", getReferralDepth());
+        printSummary(out, "CNAME hops", getCNameHops());
+        for (Map.Entry<String, Long> server : getQueriesPerServer().entrySet())
+            out.printf("Queries to %-15s %d\n", server.getKey(), server.getValue());
+    }
+
+    private static void printSummary(PrintStream out, String title, Map<String, Long> summary) {
+        StringBuilder line = new StringBuilder(title).append(':');
+        summary.forEach((statistic, value) -> line.append("  ").append(statistic).append(' ').append(value));
+        out.println(line);
+    }
+
+    // count, mean, percentiles and maximum of a histogram, with values divided by a unit
+    private static Map<String, Long> summarize(Histogram.Snapshot snapshot, long unit) {
+        Map<String, Long> summary = new LinkedHashMap<>();
+        summary.put("count", snapshot.getCount());
+        summary.put("mean", Math.round(snapshot.getMean() / unit));
+        for (double percentile : PERCENTILES)
+            summary.put("p" + String.valueOf(percentile).replace(".0", "").replace(".", ""),
+                    snapshot.getValueAtPercentile(percentile) / unit);
+        summary.put("max", snapshot.getMax() / unit);
+        return summary;
+    }
+}
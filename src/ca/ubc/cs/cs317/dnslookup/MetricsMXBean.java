@@ -0,0 +1,49 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Map;
+
+/** Management interface of the resolver's Metrics, registered with the platform MBean server as
+ * ca.ubc.cs.cs317.dnslookup:type=Metrics. Latency distributions are reported as maps from
+ * statistic (count, mean, p50, p90, p99, p999, max) to value.
+ */
+public interface MetricsMXBean {
+
+    long getLookups();
+
+    long getQueriesSent();
+
+    Map<String, Long> getQueriesPerServer();
+
+    long getRetransmissions();
+
+    long getTimeouts();
+
+    long getEdnsFallbacks();
+
+    long getTcpFallbacks();
+
+    long getDeadlinesExceeded();
+
+    long getCacheHits();
+
+    long getCacheNegativeHits();
+
+    long getCacheMisses();
+
+    long getCacheExpirations();
+
+    long getCacheEvictions();
+
+    double getCacheHitRatio();
+
+    Map<String, Long> getLookupLatencyMicros();
+
+    Map<String, Long> getDecodeTimeNanos();
+
+    Map<String, Long> getReferralDepth();
+
+    Map<String, Long> getCNameHops();
+
+    /** Clears every counter and histogram, except the cache's own statistics. */
+    void reset();
+}
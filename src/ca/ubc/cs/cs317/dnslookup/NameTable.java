@@ -0,0 +1,83 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/** Table of canonical domain names. A canonical name is lowercase (DNS names compare without
+ * regard to ASCII case, RFC 4343) and has no trailing dot, so the root is "", and there is only
+ * one instance of each canonical name in use at any time: every DNSNode of a name shares the
+ * same string, so repeated names from responses cost no memory, and names can be compared by
+ * reference.
+ *
+ * Names are held weakly, so names no longer used by any node are dropped from the table. The
+ * table is split into stripes to keep contention low when many threads decode responses.
+ */
+public class NameTable {
+
+    private static final int STRIPES = 64;
+
+    private static final NameTable instance = new NameTable();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Map<String, WeakReference<String>>[] stripes = new Map[STRIPES];
+
+    private NameTable() {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new WeakHashMap<>();
+    }
+
+    public static NameTable getInstance() {
+        return instance;
+    }
+
+    /** Returns the canonical instance of a name.
+     *
+     * @param name Domain name, in any case, with or without a trailing dot.
+     * @return The lowercase name without a trailing dot, shared by all callers.
+     */
+    public String canonicalize(String name) {
+        String canonical = toCanonicalForm(name);
+        int hash = canonical.hashCode();
+        Map<String, WeakReference<String>> stripe = stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+        synchronized (stripe) {
+            WeakReference<String> reference = stripe.get(canonical);
+            String shared = reference == null ? null : reference.get();
+            if (shared == null) {
+                shared = canonical;
+                stripe.put(shared, new WeakReference<>(shared));
+            }
+            return shared;
+        }
+    }
+
+    /** Returns the canonical instance of a name if the name is already in canonical form, or
+     * the name itself otherwise. Used for names kept for display, such as CNAME targets.
+     *
+     * @param name Domain name.
+     * @return A string equal to the name.
+     */
+    public String share(String name) {
+        String canonical = canonicalize(name);
+        return canonical.equals(name) ? canonical : name;
+    }
+
+    // lowercase name without trailing dot (so "" for the root, spelled "." or ""); the name
+    // itself if already in that form
+    private static String toCanonicalForm(String name) {
+        int length = name.length();
+        if (length > 0 && name.charAt(length - 1) == '.')
+            length--;
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                char[] chars = name.substring(0, length).toCharArray();
+                for (int j = i; j < length; j++)
+                    if (chars[j] >= 'A' && chars[j] <= 'Z')
+                        chars[j] += 'a' - 'A';
+                return new String(chars);
+            }
+        }
+        return length == name.length() ? name : name.substring(0, length);
+    }
+}
@@ -0,0 +1,101 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/** Refreshes popular cache entries before they expire ("refresh-ahead"). When a node that was
+ * looked up at least minHits times recently is served from the cache within the last percent of
+ * its TTL, a background resolution of the node is started, so that fresh records replace the
+ * cached ones before they expire and callers of hot names never wait for an iterative
+ * resolution. Names that are rarely used are left to expire.
+ *
+ * At most one refresh per node, and at most MAX_REFRESHES in total, run at any time.
+ */
+public class RefreshAhead {
+
+    public static final int DEFAULT_PERCENT = 10;
+    public static final int DEFAULT_MIN_HITS = 4;
+    private static final int MAX_REFRESHES = 64;
+
+    private final DNSCache cache;
+    private final Executor executor;
+    private final Consumer<DNSNode> refresh;
+    private final Set<DNSNode> refreshing = ConcurrentHashMap.newKeySet();
+
+    private volatile int percent = DEFAULT_PERCENT;
+    private volatile int minHits = DEFAULT_MIN_HITS;
+
+    /**
+     * @param cache    Cache the results are served from.
+     * @param executor Runs the refreshes.
+     * @param refresh  Resolves a node again and stores the results in the cache.
+     */
+    public RefreshAhead(DNSCache cache, Executor executor, Consumer<DNSNode> refresh) {
+        this.cache = cache;
+        this.executor = executor;
+        this.refresh = refresh;
+    }
+
+    /** Changes when entries are refreshed.
+     *
+     * @param percent Portion of the TTL, at the end of it, in which hits trigger a refresh
+     *                (0 disables refresh-ahead).
+     * @param minHits Number of recent lookups for a node to be considered popular.
+     */
+    public void setPolicy(int percent, int minHits) {
+        if (percent < 0 || percent > 100 || minHits < 1)
+            throw new IllegalArgumentException("Invalid refresh-ahead policy");
+        this.percent = percent;
+        this.minHits = minHits;
+    }
+
+    public int getPercent() {
+        return percent;
+    }
+
+    public int getMinHits() {
+        return minHits;
+    }
+
+    /** Called on every cache hit; schedules a refresh of the node if it is popular and about to
+     * expire.
+     *
+     * @param node    Node served from the cache.
+     * @param results Records served for the node.
+     */
+    public void onHit(DNSNode node, Set<ResourceRecord> results) {
+        int percent = this.percent;
+        if (percent == 0 || !isExpiring(results, percent) || refreshing.contains(node)
+                || refreshing.size() >= MAX_REFRESHES || cache.getFrequency(node) < minHits)
+            return;
+        if (!refreshing.add(node))
+            return;
+        try {
+            executor.execute(() -> {
+                try {
+                    refresh.accept(node);
+                } finally {
+                    refreshing.remove(node);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(node);
+        }
+    }
+
+    public int getRefreshesInProgress() {
+        return refreshing.size();
+    }
+
+    // true if any record has less than percent of its original TTL left
+    private static boolean isExpiring(Set<ResourceRecord> results, int percent) {
+        long now = System.currentTimeMillis();
+        for (ResourceRecord record : results)
+            if ((record.getExpirationTime() - now) * 100 <= (long) record.getOriginalTTL() * 1000 * percent)
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,181 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/** Holds the state of a single resolution (one call to Resolver.getResults). Everything that
+ * used to live in static fields of DNSLookupService and only made sense for the lookup in
+ * progress is kept here, so that any number of resolutions can run at the same time. A context
+ * is only ever used by the thread running the resolution and is therefore not thread-safe.
+ *
+ * A resolution may have a deadline, shared with the sub-resolutions it forks. Once it passes,
+ * the resolution stops waiting for name servers and sends no more queries, and ends as if the
+ * name servers had failed (so stale records are served if the cache has any).
+ */
+public class ResolutionContext {
+
+    private final DNSNode originalNode;
+    private final Tracer tracer;
+    private final long traceId;
+    private final int timeout;
+    private final boolean hasDeadline;
+    private final long deadline;
+
+    private final Set<DNSNode> resolving = new HashSet<>();
+    private int queriesSent = 0;
+    private int referrals = 0;
+    private int cNameHops = 0;
+    private boolean upstreamFailed = false;
+    private boolean deadlineExceeded = false;
+
+    /** Creates the context of a new resolution, which the tracer may pick to be traced.
+     *
+     * @param originalNode Node whose resolution this context is for.
+     * @param tracer       Tracer of the resolver.
+     * @param timeout      Maximum time to wait for a name server, in milliseconds.
+     */
+    public ResolutionContext(DNSNode originalNode, Tracer tracer, int timeout) {
+        this(originalNode, tracer, timeout, 0);
+    }
+
+    /** Creates the context of a new resolution that must end within a deadline.
+     *
+     * @param originalNode Node whose resolution this context is for.
+     * @param tracer       Tracer of the resolver.
+     * @param timeout      Maximum time to wait for a name server, in milliseconds.
+     * @param deadline     Maximum time the resolution may take from now, in milliseconds, or 0
+     *                     for no limit.
+     */
+    public ResolutionContext(DNSNode originalNode, Tracer tracer, int timeout, long deadline) {
+        this(originalNode, tracer, tracer.sample(), timeout, deadline > 0,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline));
+    }
+
+    private ResolutionContext(DNSNode originalNode, Tracer tracer, long traceId, int timeout, boolean hasDeadline,
+                              long deadline) {
+        this.originalNode = originalNode;
+        this.tracer = tracer;
+        this.traceId = traceId;
+        this.timeout = timeout;
+        this.hasDeadline = hasDeadline;
+        this.deadline = deadline;
+    }
+
+    /** Creates a context for a sub-resolution run on another thread on behalf of this one (e.g.
+     * a name server address lookup). The new context knows which nodes this resolution is
+     * resolving, so referral cycles are still detected across threads, and is traced as part
+     * of this resolution, with the same deadline.
+     *
+     * @return A new context with the same settings as this one.
+     */
+    public ResolutionContext fork() {
+        ResolutionContext context = new ResolutionContext(originalNode, tracer, traceId, timeout, hasDeadline, deadline);
+        context.resolving.addAll(resolving);
+        return context;
+    }
+
+    public DNSNode getOriginalNode() {
+        return originalNode;
+    }
+
+    public RecordType getOriginalQueryType() {
+        return originalNode.getType();
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public boolean hasDeadline() {
+        return hasDeadline;
+    }
+
+    /** Time left before the deadline of this resolution, in nanoseconds: 0 once it has passed,
+     * and Long.MAX_VALUE if the resolution has no deadline.
+     */
+    public long getRemainingNanos() {
+        return hasDeadline ? Math.max(0, deadline - System.nanoTime()) : Long.MAX_VALUE;
+    }
+
+    /** Returns true if the deadline of this resolution has passed. The first time it is found
+     * to have passed, the resolution is marked as having exceeded it and as failed upstream.
+     */
+    public boolean isPastDeadline() {
+        if (!hasDeadline || deadline - System.nanoTime() > 0)
+            return false;
+        deadlineExceeded = true;
+        upstreamFailed = true;
+        return true;
+    }
+
+    /** Returns true if this resolution gave up on name servers because of its deadline. */
+    public boolean hasExceededDeadline() {
+        return deadlineExceeded;
+    }
+
+    /** Returns true if the steps of this resolution are recorded by the tracer. */
+    public boolean isTraced() {
+        return traceId != 0;
+    }
+
+    /** ID of this resolution in its trace events, or 0 if it is not traced. */
+    public long getTraceId() {
+        return traceId;
+    }
+
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    public int getQueriesSent() {
+        return queriesSent;
+    }
+
+    void querySent() {
+        queriesSent++;
+    }
+
+    /** Number of referrals to the name servers of a subzone followed so far. */
+    public int getReferrals() {
+        return referrals;
+    }
+
+    void referralFollowed() {
+        referrals++;
+    }
+
+    /** Number of CNAME records followed so far, from the original node to its canonical name. */
+    public int getCNameHops() {
+        return cNameHops;
+    }
+
+    void cNamesFollowed(int count) {
+        cNameHops += count;
+    }
+
+    /** Returns true if a name server of this resolution could not be reached, or replied with
+     * a server failure or refusal. */
+    public boolean hasUpstreamFailed() {
+        return upstreamFailed;
+    }
+
+    void upstreamFailed() {
+        upstreamFailed = true;
+    }
+
+    /** Returns true if this resolution is already resolving a node further up its call chain
+     * (i.e., it is the leader of that node in the InFlightTable).
+     */
+    public boolean isResolving(DNSNode node) {
+        return resolving.contains(node);
+    }
+
+    void startResolving(DNSNode node) {
+        resolving.add(node);
+    }
+
+    void stopResolving(DNSNode node) {
+        resolving.remove(node);
+    }
+}
@@ -0,0 +1,632 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Iterative DNS resolver. Unlike the original static implementation in DNSLookupService, a
+ * resolver holds no per-lookup state: every call to getResults creates its own
+ * ResolutionContext, so any number of threads may resolve names at the same time through the
+ * same instance and share its cache. Queries of all resolutions are multiplexed over a single
+ * non-blocking DNSTransport, and concurrent misses for the same node are coalesced into a
+ * single resolution through an InFlightTable. Each resolution starts at the closest enclosing
+ * zone whose name servers are cached (see ZoneCutIndex) rather than at the root server.
+ *
+ * The name servers of a delegation are queried in parallel with a staggered start (see
+ * StaggeredQuery), and the addresses of name servers missing from a referral's glue are
+ * resolved concurrently, so a slow or dead server does not stall the whole resolution. Servers
+ * are ranked, paced and timed out according to their measured round-trip times (see RttTable).
+ * Popular entries are resolved again in the background shortly before they expire (see
+ * RefreshAhead).
+ *
+ * When the cache keeps expired records for a while (see DNSCache.setStaleWindow), the resolver
+ * serves them stale, as in RFC 8767, if the name servers fail or the fresh resolution takes
+ * longer than the stale answer budget. The fresh resolution then continues in the background
+ * and refreshes the cache.
+ *
+ * Negative answers (NXDOMAIN, and NODATA: no records of the type) are cached for the TTL given by
+ * the SOA record of the answer (RFC 2308), so repeated lookups of names that do not exist are
+ * answered from the cache.
+ *
+ * CNAME chains are flattened: once an alias is resolved, the records at the end of its chain are
+ * also cached under the alias itself, expiring with the first record of the chain to expire, so
+ * the next lookup of the alias is a single cache hit. Target records that come in the same
+ * answer as the CNAME are used directly, and a cached CNAME is followed without querying the
+ * alias's name servers again.
+ *
+ * Lookups run as plain blocking code on the threads of a LookupExecutor: a fixed pool of
+ * platform threads, or a virtual thread per lookup where the JVM supports them, with a cap on
+ * the number of concurrent lookups either way. A lookup may be given a deadline, after which it
+ * stops querying and returns what it has (stale records, if any).
+ *
+ * The latency, referral depth and CNAME hops of every lookup, and the queries, retransmissions
+ * and timeouts behind it, are recorded in the Metrics.
+ */
+public class Resolver implements AutoCloseable {
+
+    public static final int MAX_INDIRECTION_LEVEL = 10;
+    public static final int DEFAULT_TIMEOUT = 5000;
+    public static final int DEFAULT_SOCKETS = 4;
+    public static final int DEFAULT_STALE_BUDGET = 1800;
+    private static final int MAX_PARALLEL_GLUE_LOOKUPS = 3;
+
+    private final DNSCache cache;
+    private final DNSTransport transport;
+    private final InFlightTable inFlight = new InFlightTable();
+    private final ZoneCutIndex zoneCuts;
+    private final int timeout;
+    private final RttTable rttTable;
+    private final RefreshAhead refreshAhead;
+    private final Tracer tracer = new Tracer();
+
+    private volatile InetAddress rootServer;
+    private volatile long staleBudget = DEFAULT_STALE_BUDGET;
+    private volatile long lookupDeadline = 0;
+    private volatile LookupExecutor lookupExecutor;
+
+    // lookups forked by resolutions, and refreshes, always go to the current lookup executor
+    private final Executor glueExecutor = task -> lookupExecutor.getGlueExecutor().execute(task);
+    private final Executor backgroundExecutor = task -> lookupExecutor.getBackgroundExecutor().execute(task);
+
+    public Resolver(InetAddress rootServer, DNSCache cache, int threads, int timeout) {
+        this(rootServer, cache, threads, timeout, DNSTransport.DEFAULT_DNS_PORT);
+    }
+
+    /** Creates a resolver whose name servers listen on a port other than 53, e.g. a fake
+     * server in tests and benchmarks.
+     *
+     * @param rootServer Address of the server resolutions start at.
+     * @param cache      Cache shared by all resolutions.
+     * @param threads    Number of threads running asynchronous resolutions.
+     * @param timeout    Maximum time to wait for a name server, in milliseconds.
+     * @param port       Port every name server listens on.
+     */
+    public Resolver(InetAddress rootServer, DNSCache cache, int threads, int timeout, int port) {
+        this(rootServer, cache, threads, timeout, port, LookupExecutor.Mode.PLATFORM);
+    }
+
+    /** Creates a resolver whose asynchronous resolutions run on platform or virtual threads.
+     *
+     * @param rootServer Address of the server resolutions start at.
+     * @param cache      Cache shared by all resolutions.
+     * @param maxLookups Maximum number of asynchronous resolutions running at the same time.
+     * @param timeout    Maximum time to wait for a name server, in milliseconds.
+     * @param port       Port every name server listens on.
+     * @param mode       Kind of threads resolutions run on.
+     */
+    public Resolver(InetAddress rootServer, DNSCache cache, int maxLookups, int timeout, int port,
+                    LookupExecutor.Mode mode) {
+        this.rootServer = rootServer;
+        this.cache = cache;
+        Metrics.getInstance().setCache(cache);
+        this.zoneCuts = new ZoneCutIndex(cache);
+        this.timeout = timeout;
+        this.rttTable = new RttTable(timeout);
+        try {
+            this.transport = new DNSTransport(DEFAULT_SOCKETS, port);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.lookupExecutor = new LookupExecutor(mode, maxLookups);
+        this.refreshAhead = new RefreshAhead(cache, backgroundExecutor, this::refresh);
+    }
+
+    public Resolver(InetAddress rootServer) {
+        this(rootServer, DNSCache.getInstance(), Runtime.getRuntime().availableProcessors() * 4, DEFAULT_TIMEOUT);
+    }
+
+    public InetAddress getRootServer() {
+        return rootServer;
+    }
+
+    public void setRootServer(InetAddress rootServer) {
+        this.rootServer = rootServer;
+    }
+
+    public boolean isVerboseTracing() {
+        return tracer.getSampleRate() > 0;
+    }
+
+    /** Turns tracing of every resolution on, or tracing off. See getTracer for sampling and
+     * output options.
+     */
+    public void setVerboseTracing(boolean verboseTracing) {
+        tracer.setSampleRate(verboseTracing ? 1 : 0);
+    }
+
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    public long getStaleBudget() {
+        return staleBudget;
+    }
+
+    /** Changes how long a resolution may take before stale records are returned instead, when
+     * the cache has some for the node.
+     *
+     * @param staleBudget Time to wait for a fresh answer, in milliseconds.
+     */
+    public void setStaleBudget(long staleBudget) {
+        this.staleBudget = staleBudget;
+    }
+
+    public long getLookupDeadline() {
+        return lookupDeadline;
+    }
+
+    /** Changes how long a lookup may take by default before it stops querying name servers.
+     *
+     * @param lookupDeadline Maximum time per lookup, in milliseconds, or 0 for no limit.
+     */
+    public void setLookupDeadline(long lookupDeadline) {
+        this.lookupDeadline = lookupDeadline;
+    }
+
+    public LookupExecutor getLookupExecutor() {
+        return lookupExecutor;
+    }
+
+    /** Changes the threads asynchronous resolutions run on. Resolutions already running finish
+     * on the previous threads.
+     *
+     * @param mode       Kind of threads resolutions run on.
+     * @param maxLookups Maximum number of asynchronous resolutions running at the same time.
+     */
+    public synchronized void setLookupExecutor(LookupExecutor.Mode mode, int maxLookups) {
+        LookupExecutor previous = lookupExecutor;
+        lookupExecutor = new LookupExecutor(mode, maxLookups);
+        previous.shutdown();
+    }
+
+    public RttTable getRttTable() {
+        return rttTable;
+    }
+
+    public DNSCache getCache() {
+        return cache;
+    }
+
+    public RefreshAhead getRefreshAhead() {
+        return refreshAhead;
+    }
+
+    /** Finds all the results for a specific node, blocking the calling thread until the
+     * resolution finishes or its default deadline (see setLookupDeadline) passes. Safe to call
+     * from any number of threads at the same time.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A set of resource records corresponding to the specific query requested.
+     */
+    public Set<ResourceRecord> getResults(DNSNode node) {
+        return getResults(node, lookupDeadline);
+    }
+
+    /** Finds all the results for a specific node, blocking the calling thread until the
+     * resolution finishes or its deadline passes.
+     *
+     * @param node     Host and record type to be used for search.
+     * @param deadline Maximum time the lookup may take, in milliseconds, or 0 for no limit.
+     * @return A set of resource records corresponding to the specific query requested; when
+     *         the deadline passes, the records found so far, or stale records if any.
+     */
+    public Set<ResourceRecord> getResults(DNSNode node, long deadline) {
+        return lookup(new ResolutionContext(node, tracer, timeout, deadline));
+    }
+
+    // a lookup from start to end, recorded in the metrics
+    private Set<ResourceRecord> lookup(ResolutionContext context) {
+        long start = System.nanoTime();
+        try {
+            return getFreshOrStaleResults(context);
+        } finally {
+            Metrics.getInstance().lookupCompleted(System.nanoTime() - start);
+        }
+    }
+
+    private Set<ResourceRecord> getFreshOrStaleResults(ResolutionContext context) {
+        DNSNode node = context.getOriginalNode();
+        Set<ResourceRecord> stale;
+        if (!cache.peekCachedResults(node).isEmpty() || (stale = cache.getStaleResults(node)).isEmpty())
+            return resolve(context, node);
+
+        // only stale records are cached: give the fresh resolution a bounded time, and let it
+        // finish in the background if it takes longer (or skip it if the background is busy)
+        try {
+            return CompletableFuture.supplyAsync(() -> resolve(context, node), backgroundExecutor)
+                    .get(staleBudget, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException | RejectedExecutionException e) {
+            // fall back to the stale records
+        }
+        return stale;
+    }
+
+    // a whole resolution, recorded in the metrics once its context is no longer used
+    private Set<ResourceRecord> resolve(ResolutionContext context, DNSNode node) {
+        try {
+            return getResults(context, node, 0);
+        } finally {
+            Metrics.getInstance().resolutionCompleted(context);
+            if (context.hasExceededDeadline())
+                Metrics.getInstance().deadlineExceeded();
+        }
+    }
+
+    /** Returns the results of a node if they can be given without querying any name server,
+     * i.e., if the node is cached or negatively cached. Never blocks, so it is meant for callers
+     * that must not wait for a resolution, such as the receive loops of a DNSServer.
+     *
+     * @param node Host and record type to be used for search.
+     * @return The cached records (an empty set for a negatively cached node), or null if the
+     *         node has to be resolved.
+     */
+    public Set<ResourceRecord> getCachedResults(DNSNode node) {
+        long start = System.nanoTime();
+        // peek first, so that a miss is only counted once, by the resolution that follows
+        if (cache.peekCachedResults(node).isEmpty() && !cache.isNegativelyCached(node))
+            return null;
+        Set<ResourceRecord> results = cache.getCachedResults(node);
+        if (!results.isEmpty())
+            refreshAhead.onHit(node, results);
+        else if (!cache.isNegativelyCached(node))
+            return null;
+        Metrics.getInstance().lookupCompleted(System.nanoTime() - start);
+        return results;
+    }
+
+    /** Starts the resolution of a node on the resolver's LookupExecutor, with the default
+     * deadline (see setLookupDeadline).
+     *
+     * @param node Host and record type to be used for search.
+     * @return A future completed with the results of the resolution.
+     */
+    public CompletableFuture<Set<ResourceRecord>> resolveAsync(DNSNode node) {
+        return resolveAsync(node, lookupDeadline);
+    }
+
+    /** Starts the resolution of a node on the resolver's LookupExecutor. The deadline includes
+     * the time spent waiting for the resolution to start, if the maximum number of concurrent
+     * resolutions are already running.
+     *
+     * @param node     Host and record type to be used for search.
+     * @param deadline Maximum time the lookup may take, in milliseconds, or 0 for no limit.
+     * @return A future completed with the results of the resolution.
+     */
+    public CompletableFuture<Set<ResourceRecord>> resolveAsync(DNSNode node, long deadline) {
+        ResolutionContext context = new ResolutionContext(node, tracer, timeout, deadline);
+        return lookupExecutor.submit(() -> lookup(context), context, () -> {
+            // the deadline passed before the lookup could start
+            Metrics.getInstance().deadlineExceeded();
+            return cache.getStaleResults(node);
+        });
+    }
+
+    /**
+     * Finds all the result for a specific node.
+     *
+     * @param context          State of the resolution in progress.
+     * @param node             Host and record type to be used for search.
+     * @param indirectionLevel Control to limit the number of recursive calls due to
+     *                         CNAME redirection. The initial call should be made
+     *                         with 0 (zero), while recursive calls for regarding
+     *                         CNAME results should increment this value by 1. Once
+     *                         this value reaches MAX_INDIRECTION_LEVEL, the
+     *                         function prints an error message and returns an empty
+     *                         set.
+     * @return A set of resource records corresponding to the specific query
+     *         requested.
+     */
+    private Set<ResourceRecord> getResults(ResolutionContext context, DNSNode node, int indirectionLevel) {
+        if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
+            System.err.println("Maximum number of indirection levels reached.");
+            return Collections.emptySet();
+        }
+
+        Set<ResourceRecord> results = cache.getCachedResults(node);
+        if (!results.isEmpty()) {
+            refreshAhead.onHit(node, results);
+            return results;
+        }
+        if (cache.isNegativelyCached(node))
+            return results;
+
+        long maxWait = Math.min((long) context.getTimeout() * 4,
+                TimeUnit.NANOSECONDS.toMillis(context.getRemainingNanos()));
+        return inFlight.resolve(node, context, () -> resolveUncached(context, node, indirectionLevel), maxWait);
+    }
+
+    // resolution of a node that missed the cache, run by the leader of the node in the in-flight table
+    private Set<ResourceRecord> resolveUncached(ResolutionContext context, DNSNode node, int indirectionLevel) {
+        // an alias already cached is followed without asking the name servers of the alias
+        ResourceRecord cName = findCachedCName(node);
+        if (cName == null) {
+            // the answer is used as received: it may not have been admitted into the cache
+            Set<ResourceRecord> results = retrieveFromClosestZone(context, node, indirectionLevel);
+            cName = answeredCName(results, node);
+            if (cName == null) {
+                if (!results.isEmpty())
+                    return results;
+                if (cache.isNegativelyCached(node))
+                    return Collections.emptySet();
+                cName = findCachedCName(node);
+            }
+        }
+        if (cName != null) {
+            DNSNode target = new DNSNode(cName.getTextResult(), node.getType());
+            context.cNamesFollowed(1);
+            return cacheFlattened(node, Collections.singletonList(cName), getResults(context, target, indirectionLevel + 1));
+        }
+        return context.hasUpstreamFailed() ? cache.getStaleResults(node) : Collections.emptySet();
+    }
+
+    // the CNAME record of an answer that did not come with the records at the end of its chain
+    private static ResourceRecord answeredCName(Set<ResourceRecord> answer, DNSNode node) {
+        if (answer.size() != 1 || node.getType() == RecordType.CNAME)
+            return null;
+        ResourceRecord record = answer.iterator().next();
+        return record.getType() == RecordType.CNAME ? record : null;
+    }
+
+    // the CNAME record cached for the name of a node, if any
+    private ResourceRecord findCachedCName(DNSNode node) {
+        if (node.getType() == RecordType.CNAME)
+            return null;
+        DNSNode cNameNode = new DNSNode(node.getHostName(), RecordType.CNAME);
+        Iterator<ResourceRecord> cNames = cache.peekCachedResults(cNameNode).iterator();
+        return cNames.hasNext() ? cNames.next() : null;
+    }
+
+    // caches the records at the end of a CNAME chain under the alias at its start, so the next
+    // lookup of the alias takes a single cache hit; the copies expire with the first record of
+    // the chain to expire. Stale records are returned as they are.
+    private Set<ResourceRecord> cacheFlattened(DNSNode alias, List<ResourceRecord> chain, Set<ResourceRecord> targets) {
+        long expirationTime = Long.MAX_VALUE;
+        int ttl = Integer.MAX_VALUE;
+        for (ResourceRecord cName : chain) {
+            expirationTime = Math.min(expirationTime, cName.getExpirationTime());
+            ttl = Math.min(ttl, cName.getOriginalTTL());
+        }
+        Set<ResourceRecord> flattened = new HashSet<>();
+        for (ResourceRecord target : targets) {
+            if (!target.isStillValid() || expirationTime <= System.currentTimeMillis())
+                return targets;
+            ResourceRecord record = target.copyFor(alias, Math.min(ttl, target.getOriginalTTL()),
+                    Math.min(expirationTime, target.getExpirationTime()));
+            cache.addResult(record);
+            flattened.add(record);
+        }
+        return Collections.unmodifiableSet(flattened);
+    }
+
+    // the CNAME records of the answer that lead from the node to its canonical name, in order
+    private static List<ResourceRecord> answeredChain(DNSResponse response, DNSNode node) {
+        List<ResourceRecord> chain = new ArrayList<>();
+        if (node.getType() == RecordType.CNAME)
+            return chain;
+        String name = node.getCanonicalName();
+        for (int i = 0; i <= MAX_INDIRECTION_LEVEL; i++) {
+            ResourceRecord next = null;
+            for (ResourceRecord record : response.answers)
+                if (record.getType() == RecordType.CNAME && record.getNode().getCanonicalName().equals(name))
+                    next = record;
+            if (next == null)
+                break;
+            chain.add(next);
+            name = new DNSNode(next.getTextResult(), node.getType()).getCanonicalName();
+        }
+        return chain;
+    }
+
+    // end of a CNAME chain, or the node itself if the chain is empty
+    private static DNSNode chainTarget(List<ResourceRecord> chain, DNSNode node) {
+        return chain.isEmpty() ? node : new DNSNode(chain.get(chain.size() - 1).getTextResult(), node.getType());
+    }
+
+    // the records a response answers for a node: its own records, or the flattened records at the
+    // end of a CNAME chain in the answer, or else the first CNAME of a chain whose end did not come
+    // with the answer (to be followed with a new lookup)
+    private Set<ResourceRecord> useAnswer(ResolutionContext context, DNSResponse response, DNSNode node,
+                                          List<ResourceRecord> chain) {
+        DNSNode target = chainTarget(chain, node);
+        Set<ResourceRecord> targets = new HashSet<>();
+        for (ResourceRecord record : response.answers)
+            if (record.getNode().equals(target))
+                targets.add(record);
+        if (chain.isEmpty())
+            return targets;
+        if (targets.isEmpty())
+            return Collections.singleton(chain.get(0));
+        context.cNamesFollowed(chain.size());
+        return cacheFlattened(node, chain, targets);
+    }
+
+
+    // caches a response that says the node (or the end of a CNAME chain in the answer) does not
+    // exist or has no records of the type; without an SOA, negative answers are not cached
+    private void cacheNegativeAnswer(DNSResponse response, DNSNode node, List<ResourceRecord> chain) {
+        int rcode = response.dnsHeader.RCODE;
+        if (response.negativeTTL < 0 || (rcode != 0 && rcode != 3))
+            return;
+        DNSNode target = chainTarget(chain, node);
+        if (rcode == 3) {
+            cache.addNegativeResult(target, response.negativeTTL, true);
+            return;
+        }
+        // NODATA: no answer for the name and type, and not a referral
+        for (ResourceRecord record : response.answers)
+            if (record.getNode().equals(target))
+                return;
+        for (ResourceRecord record : response.nameServers)
+            if (record.getType() == RecordType.NS)
+                return;
+        cache.addNegativeResult(target, response.negativeTTL, false);
+    }
+
+    // queries the node again while it is still cached, so that fresh records replace the cached ones
+    private void refresh(DNSNode node) {
+        retrieveFromClosestZone(new ResolutionContext(node, tracer, timeout), node, 0);
+    }
+
+    // start the iterative walk at the deepest cached delegation, falling back to the root server
+    // if none of its name servers replies; returns the answer for the node (see useAnswer)
+    private Set<ResourceRecord> retrieveFromClosestZone(ResolutionContext context, DNSNode node,
+                                                        int indirectionLevel) {
+        ZoneCutIndex.Delegation delegation = zoneCuts.findClosestEnclosing(node.getHostName());
+        Set<ResourceRecord> results = delegation == null ? null
+                : retrieveResultsFromServers(context, node, delegation.getZone(), delegation.getServers(),
+                indirectionLevel);
+        if (results == null)
+            results = retrieveResultsFromServers(context, node, "", Collections.singletonList(rootServer),
+                    indirectionLevel);
+        return results == null ? Collections.emptySet() : results;
+    }
+
+    // IPs of the name server, from the glue of the response if it has any, or else from the cache
+    private List<InetAddress> findNameServerAddresses(DNSResponse response, String nsName) {
+        DNSNode nsNode = new DNSNode(nsName, RecordType.A);
+        List<InetAddress> addresses = new ArrayList<>();
+        for (ResourceRecord record : response.additional)
+            if (record.getNode().equals(nsNode))
+                addresses.add(record.getInetResult());
+        if (addresses.isEmpty())
+            addresses.addAll(addressesOf(cache.peekCachedResults(nsNode)));
+        return addresses;
+    }
+
+    private static List<InetAddress> addressesOf(Set<ResourceRecord> records) {
+        List<InetAddress> addresses = new ArrayList<>();
+        for (ResourceRecord record : records)
+            if (record.getType() == RecordType.A)
+                addresses.add(record.getInetResult());
+        return addresses;
+    }
+
+    // follows a referral, and returns the answer it leads to (empty if there is none)
+    private Set<ResourceRecord> processResponse(ResolutionContext context, DNSResponse response, DNSNode node,
+                                                int indirectionLevel) {
+        if (!response.answers.isEmpty())
+            return Collections.emptySet();
+
+        // just NS, of the zone being referred to (the records are already in bailiwick)
+        List<String> nsNames = new ArrayList<>();
+        DNSNode zone = null;
+        for (ResourceRecord rec : response.nameServers) {
+            if (rec.getType() == RecordType.NS && (zone == null || zone.equals(rec.getNode()))) {
+                zone = rec.getNode();
+                nsNames.add(rec.getTextResult());
+            }
+        }
+        if (nsNames.isEmpty())
+            return Collections.emptySet();
+
+        // addresses of all name servers that have one
+        List<InetAddress> addresses = new ArrayList<>();
+        for (String nsName : nsNames)
+            addresses.addAll(findNameServerAddresses(response, nsName));
+
+        if (addresses.isEmpty())
+            addresses = resolveNameServers(context, nsNames, indirectionLevel);
+        if (addresses.isEmpty())
+            return Collections.emptySet();
+        context.referralFollowed();
+        Set<ResourceRecord> results =
+                retrieveResultsFromServers(context, node, zone.getHostName(), addresses, indirectionLevel);
+        return results == null ? Collections.emptySet() : results;
+    }
+
+    /** Resolves the addresses of name servers that had no glue in a referral. Up to
+     * MAX_PARALLEL_GLUE_LOOKUPS names are resolved concurrently, and the addresses of the first
+     * one to resolve are returned. The other lookups keep going in the background and leave
+     * their results in the cache.
+     */
+    private List<InetAddress> resolveNameServers(ResolutionContext context, List<String> nsNames,
+                                                 int indirectionLevel) {
+        CompletionService<List<InetAddress>> lookups = new ExecutorCompletionService<>(glueExecutor);
+        int count = Math.min(nsNames.size(), MAX_PARALLEL_GLUE_LOOKUPS);
+        for (int i = 0; i < count; i++) {
+            String nsName = nsNames.get(i);
+            ResolutionContext lookupContext = context.fork();
+            lookups.submit(() -> {
+                return addressesOf(getResults(lookupContext, new DNSNode(nsName, RecordType.A), indirectionLevel + 1));
+            });
+        }
+        try {
+            for (int i = 0; i < count; i++) {
+                Future<List<InetAddress>> lookup = lookups.poll(context.getRemainingNanos(), TimeUnit.NANOSECONDS);
+                if (lookup == null)
+                    break;
+                try {
+                    List<InetAddress> addresses = lookup.get();
+                    if (!addresses.isEmpty())
+                        return addresses;
+                } catch (ExecutionException e) {
+                    // try the next name server
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Retrieves DNS results from the name servers of a zone. Queries are sent in
+     * iterative mode to the servers in a staggered fashion (see StaggeredQuery), and
+     * the query is repeated with a new server if the server that replied is
+     * non-authoritative. Results are stored in the cache, and the answer is returned.
+     *
+     * @param context          State of the resolution in progress.
+     * @param node             Host name and record type to be used for the query.
+     * @param zone             Zone the servers are authoritative for ("" for the root); records
+     *                         of the response outside of it are not cached.
+     * @param servers          Addresses of the servers to be used for the query.
+     * @param indirectionLevel Indirection level of the resolution this query is part of.
+     * @return The records the answer gives for the node (see useAnswer), empty if there are none,
+     *         or null if all servers timed out or the query failed.
+     */
+    private Set<ResourceRecord> retrieveResultsFromServers(ResolutionContext context, DNSNode node, String zone,
+                                               List<InetAddress> servers, int indirectionLevel) {
+        if (context.isPastDeadline())
+            return null;
+        DNSQuery query = new DNSQuery(node, ThreadLocalRandom.current().nextInt(65536));
+        DNSResponse response = new StaggeredQuery(transport, context, query, rttTable.rank(servers), rttTable).run();
+        if (response != null && response.dnsHeader.RCODE == 1 && query.edns) {
+            // FORMERR to a query with an OPT record: the server does not support EDNS (RFC 6891)
+            Metrics.getInstance().ednsFallback();
+            query = new DNSQuery(node, ThreadLocalRandom.current().nextInt(65536), false);
+            response = new StaggeredQuery(transport, context, query, rttTable.rank(servers), rttTable).run();
+        }
+        if (response == null) {
+            context.upstreamFailed();
+            return null;
+        }
+        if (response.dnsHeader.RCODE == 2 || response.dnsHeader.RCODE == 5)
+            context.upstreamFailed();
+
+        if (context.isTraced())
+            tracer.responseReceived(context, query, response);
+        response.dropOutOfBailiwick(zone);
+        response.addToCache(cache);
+        List<ResourceRecord> chain = answeredChain(response, node);
+        Set<ResourceRecord> answer = useAnswer(context, response, node, chain);
+        cacheNegativeAnswer(response, node, chain);
+        if (response.dnsHeader.RCODE == 3 || response.dnsHeader.RCODE == 5) {
+            // do not process
+            return Collections.emptySet();
+        }
+        if (!answer.isEmpty())
+            return answer;
+        return processResponse(context, response, node, indirectionLevel);
+    }
+
+    @Override
+    public void close() {
+        lookupExecutor.close();
+        transport.close();
+        tracer.close();
+    }
+}
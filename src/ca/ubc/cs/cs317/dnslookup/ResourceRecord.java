@@ -1,113 +1,256 @@
-package ca.ubc.cs.cs317.dnslookup;
-
-import java.io.Serializable;
-import java.net.InetAddress;
-import java.util.Date;
-
-/**
- * A resource record corresponds to each individual result returned by a DNS
- * response. It links a DNS node (host name and record type) to either an IP
- * address (e.g., A or AAAA records) or a textual response (e.g., CNAME or NS
- * records). A TTL (time-to-live) field is also specified, and is represented by
- * an expiration time calculated as a delta from the current time.
- */
-public class ResourceRecord implements Serializable {
-
-    private DNSNode node;
-    private Date expirationTime;
-    private String textResult;
-    private InetAddress inetResult;
-
-    public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
-        this.node = new DNSNode(hostName, type);
-        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
-        this.textResult = result;
-        this.inetResult = null;
-    }
-
-    public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
-        this(hostName, type, ttl, result.getHostAddress());
-        this.inetResult = result;
-    }
-
-    public DNSNode getNode() {
-        return node;
-    }
-
-    public String getHostName() {
-        return node.getHostName();
-    }
-
-    public RecordType getType() {
-        return node.getType();
-    }
-
-    /**
-     * The TTL for this record. It is returned based on the (ceiling of the) number
-     * of seconds remaining until this record expires. The TTL returned by this
-     * method will only match the TTL obtained from the DNS server in the first
-     * second from the time this record was created.
-     *
-     * @return The number of seconds, rounded up, until this record expires.
-     */
-    public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
-    }
-
-    /**
-     * Returns true if this record has not expired yet, and false otherwise. An
-     * expired record should not be maintained in cache, and should instead be
-     * retrieved again from an authoritative DNS server.
-     *
-     * @return true if this record has not expired yet, and false otherwise.
-     */
-    public boolean isStillValid() {
-        return expirationTime.after(new Date());
-    }
-
-    /**
-     * Returns true if this record expires before another record. This method may be
-     * used to identify if a newly acquired record should replace the one currently
-     * in the cache. It may also potentially be used, for example, to identify if a
-     * CNAME record expires before the equivalent A record it links to.
-     *
-     * @param record Another resource record whose expiration this record should be
-     *               compared with.
-     * @return true if this record expires before the parameter record, or false
-     *         otherwise.
-     */
-    public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
-    }
-
-    public String getTextResult() {
-        return textResult;
-    }
-
-    public InetAddress getInetResult() {
-        return inetResult;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-        if (this == o)
-            return true;
-        if (o == null || getClass() != o.getClass())
-            return false;
-
-        ResourceRecord record = (ResourceRecord) o;
-
-        if (!node.equals(record.node))
-            return false;
-        if (!textResult.equals(record.textResult))
-            return false;
-        return inetResult != null ? inetResult.equals(record.inetResult) : record.inetResult == null;
-    }
-
-    @Override
-    public int hashCode() {
-        int result = node.hashCode();
-        result = 31 * result + textResult.hashCode();
-        return result;
-    }
-}
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A resource record corresponds to each individual result returned by a DNS
+ * response. It links a DNS node (host name and record type) to either an IP
+ * address (e.g., A or AAAA records) or a textual response (e.g., CNAME or NS
+ * records). A TTL (time-to-live) field is also specified, and is represented by
+ * an expiration time calculated as a delta from the current time.
+ */
+public class ResourceRecord implements Serializable {
+
+    private static final byte KIND_TEXT = 0;
+    private static final byte KIND_IPV4 = 4;
+    private static final byte KIND_IPV6 = 6;
+
+    // Records are kept compact since the cache holds millions of them: the expiration time is a
+    // primitive, addresses are stored as raw bits (IPv4 in the low 32 bits of addressLow) and
+    // only formatted when displayed, and names are shared through the NameTable so that all
+    // records of a name use a single string.
+    private final DNSNode node;
+    private final long expirationTime;
+    private final int originalTTL;
+    private final String textResult;
+    private final long addressHigh;
+    private final long addressLow;
+    private final byte kind;
+
+    public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
+        this(new DNSNode(hostName, type), (int) ttl, System.currentTimeMillis() + (ttl * 1000),
+                NameTable.getInstance().share(result), 0, 0, KIND_TEXT);
+    }
+
+    public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
+        this(new DNSNode(hostName, type), (int) ttl, System.currentTimeMillis() + (ttl * 1000), result.getAddress());
+    }
+
+    /**
+     * Creates a record with an absolute expiration time, e.g. when decoding a
+     * response or restoring a record from a cache snapshot.
+     *
+     * @param node           Host name and record type of the record.
+     * @param ttl            TTL of the record when it was received, in seconds.
+     * @param expirationTime Expiration time, in milliseconds since the epoch.
+     * @param textResult     Textual result of the record.
+     */
+    ResourceRecord(DNSNode node, int ttl, long expirationTime, String textResult) {
+        this(node, ttl, expirationTime, NameTable.getInstance().share(textResult), 0, 0, KIND_TEXT);
+    }
+
+    /**
+     * Creates an address record from the raw bytes of an IPv4 or IPv6 address,
+     * without going through InetAddress.
+     *
+     * @param node           Host name and record type of the record.
+     * @param ttl            TTL of the record when it was received, in seconds.
+     * @param expirationTime Expiration time, in milliseconds since the epoch.
+     * @param address        4 or 16 bytes of address, in network order.
+     * @throws IllegalArgumentException If the address has an invalid length.
+     */
+    ResourceRecord(DNSNode node, int ttl, long expirationTime, byte[] address) {
+        this(node, ttl, expirationTime, null,
+                address.length == 16 ? bytesToLong(address, 0) : 0,
+                address.length == 16 ? bytesToLong(address, 8) : bytesToLong(address, 0) >>> 32,
+                address.length == 4 ? KIND_IPV4 : KIND_IPV6);
+        if (address.length != 4 && address.length != 16)
+            throw new IllegalArgumentException("Invalid address length " + address.length);
+    }
+
+    private ResourceRecord(DNSNode node, int ttl, long expirationTime, String textResult,
+                           long addressHigh, long addressLow, byte kind) {
+        this.node = node;
+        this.originalTTL = ttl;
+        this.expirationTime = expirationTime;
+        this.textResult = textResult;
+        this.addressHigh = addressHigh;
+        this.addressLow = addressLow;
+        this.kind = kind;
+    }
+
+    /**
+     * Creates a copy of this record for another node, e.g. to cache the records at
+     * the end of a CNAME chain under the alias at the start of the chain.
+     *
+     * @param node           Host name and record type of the copy.
+     * @param ttl            Original TTL of the copy, in seconds.
+     * @param expirationTime Expiration time of the copy, in milliseconds since the epoch.
+     * @return The copy.
+     */
+    ResourceRecord copyFor(DNSNode node, int ttl, long expirationTime) {
+        return new ResourceRecord(node, ttl, expirationTime, textResult, addressHigh, addressLow, kind);
+    }
+
+    public DNSNode getNode() {
+        return node;
+    }
+
+    public String getHostName() {
+        return node.getHostName();
+    }
+
+    public RecordType getType() {
+        return node.getType();
+    }
+
+    /**
+     * The TTL for this record. It is returned based on the (ceiling of the) number
+     * of seconds remaining until this record expires. The TTL returned by this
+     * method will only match the TTL obtained from the DNS server in the first
+     * second from the time this record was created.
+     *
+     * @return The number of seconds, rounded up, until this record expires.
+     */
+    public long getTTL() {
+        return (expirationTime - System.currentTimeMillis() + 999) / 1000;
+    }
+
+    /**
+     * The TTL of this record when it was received, in seconds.
+     *
+     * @return The original TTL of this record.
+     */
+    public int getOriginalTTL() {
+        return originalTTL;
+    }
+
+    /**
+     * The time at which this record expires, in milliseconds since the epoch.
+     *
+     * @return The expiration time of this record.
+     */
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    /**
+     * Returns true if this record has not expired yet, and false otherwise. An
+     * expired record should not be maintained in cache, and should instead be
+     * retrieved again from an authoritative DNS server.
+     *
+     * @return true if this record has not expired yet, and false otherwise.
+     */
+    public boolean isStillValid() {
+        return expirationTime > System.currentTimeMillis();
+    }
+
+    /**
+     * Returns true if this record expires before another record. This method may be
+     * used to identify if a newly acquired record should replace the one currently
+     * in the cache. It may also potentially be used, for example, to identify if a
+     * CNAME record expires before the equivalent A record it links to.
+     *
+     * @param record Another resource record whose expiration this record should be
+     *               compared with.
+     * @return true if this record expires before the parameter record, or false
+     *         otherwise.
+     */
+    public boolean expiresBefore(ResourceRecord record) {
+        return this.expirationTime < record.expirationTime;
+    }
+
+    /**
+     * The textual result of this record: the target name of CNAME and NS records,
+     * or the formatted address of A and AAAA records. Addresses are formatted on
+     * every call, so this method is meant for display.
+     *
+     * @return The textual result of this record.
+     */
+    public String getTextResult() {
+        if (kind == KIND_TEXT)
+            return textResult;
+        if (kind == KIND_IPV4)
+            return ((addressLow >>> 24) & 0xff) + "." + ((addressLow >>> 16) & 0xff) + "."
+                    + ((addressLow >>> 8) & 0xff) + "." + (addressLow & 0xff);
+        return getInetResult().getHostAddress();
+    }
+
+    /**
+     * The address of an A or AAAA record. A new InetAddress is created on every
+     * call.
+     *
+     * @return The address of this record, or null if this is not an address record.
+     */
+    public InetAddress getInetResult() {
+        byte[] address = getAddress();
+        if (address == null)
+            return null;
+        try {
+            return InetAddress.getByAddress(node.getHostName(), address);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // lengths are checked on creation
+        }
+    }
+
+    /**
+     * The raw address of an A or AAAA record, in network order.
+     *
+     * @return 4 or 16 bytes of address, or null if this is not an address record.
+     */
+    public byte[] getAddress() {
+        if (kind == KIND_TEXT)
+            return null;
+        byte[] address = new byte[kind == KIND_IPV4 ? 4 : 16];
+        if (kind == KIND_IPV4) {
+            longToBytes(addressLow << 32, address, 0, 4);
+        } else {
+            longToBytes(addressHigh, address, 0, 8);
+            longToBytes(addressLow, address, 8, 8);
+        }
+        return address;
+    }
+
+    boolean hasAddress() {
+        return kind != KIND_TEXT;
+    }
+
+    // big-endian value of up to eight bytes of an array, left-aligned
+    private static long bytesToLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (offset + i < bytes.length ? bytes[offset + i] & 0xff : 0);
+        return value;
+    }
+
+    // the first length bytes of a value, most significant first
+    private static void longToBytes(long value, byte[] bytes, int offset, int length) {
+        for (int i = 0; i < length; i++)
+            bytes[offset + i] = (byte) (value >>> (56 - 8 * i));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+
+        ResourceRecord record = (ResourceRecord) o;
+
+        if (!node.equals(record.node))
+            return false;
+        if (kind != record.kind || addressHigh != record.addressHigh || addressLow != record.addressLow)
+            return false;
+        return kind != KIND_TEXT || textResult.equals(record.textResult);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = node.hashCode();
+        result = 31 * result + (kind == KIND_TEXT ? textResult.hashCode() : Long.hashCode(addressHigh ^ addressLow));
+        return result;
+    }
+}
@@ -0,0 +1,193 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/** Encoded responses of a DNSServer, kept per node next to the DNSCache, so that answering a
+ * query for a cached node does not walk its record set and encode it again. An entry is the
+ * complete response message for the node (header, question and answers, without an OPT
+ * record), along with the offset and expiration time of the TTL of each answer. Answering from
+ * an entry copies the message, patches the query ID, the RD flag and the question (so the client
+ * sees its own capitalization), rewrites each TTL from the time its record has left, and appends
+ * an OPT record if the client sent one.
+ *
+ * Entries are only made of unexpired records the DNSCache still holds, and are dropped as soon as
+ * the DNSCache replaces, expires or evicts the node's record set (see
+ * DNSCache.addChangeListener), or when their first record expires. Responses that do not fit in
+ * the client's UDP payload size are left to the DNSServer, which truncates them. Hits are
+ * reported to the DNSCache and to refresh-ahead, as if the cache had served them.
+ */
+public class ResponseCache implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_ENTRIES = 65536;
+
+    private static final int OPT_LENGTH = 11;
+
+    private final DNSCache cache;
+    private final RefreshAhead refreshAhead;
+    private final int maxEntries;
+    private final ConcurrentHashMap<DNSNode, Entry> entries = new ConcurrentHashMap<>();
+    private final Consumer<DNSNode> invalidate = entries::remove;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param cache        Cache the encoded records come from.
+     * @param refreshAhead Refresh-ahead policy told about hits.
+     * @param maxEntries   Maximum number of encoded responses kept.
+     */
+    public ResponseCache(DNSCache cache, RefreshAhead refreshAhead, int maxEntries) {
+        this.cache = cache;
+        this.refreshAhead = refreshAhead;
+        this.maxEntries = maxEntries;
+        cache.addChangeListener(invalidate);
+    }
+
+    /** Returns the response to a query from its encoded form, if there is one.
+     *
+     * @param node            Node being queried.
+     * @param id              ID of the query.
+     * @param recursion       RD flag of the query.
+     * @param question        Question section of the query, as received.
+     * @param maxLength       Largest response the client accepts.
+     * @param ednsPayloadSize Payload size to advertise in an OPT record, or 0 if the query had
+     *                        no OPT record.
+     * @return The response, or null if it must be built from the DNSCache.
+     */
+    public byte[] answer(DNSNode node, int id, int recursion, byte[] question, int maxLength, int ednsPayloadSize) {
+        Entry entry = entries.get(node);
+        long now = System.currentTimeMillis();
+        int length = entry == null ? 0 : entry.message.length + (ednsPayloadSize > 0 ? OPT_LENGTH : 0);
+        if (entry == null || length > maxLength || question.length != entry.questionLength) {
+            misses.increment();
+            return null;
+        }
+        if (now >= entry.expiresAt) {
+            entries.remove(node, entry);
+            misses.increment();
+            return null;
+        }
+
+        byte[] response = Arrays.copyOf(entry.message, length);
+        response[0] = (byte) (id >>> 8);
+        response[1] = (byte) id;
+        if (recursion == 0)
+            response[2] &= ~0x01;
+        System.arraycopy(question, 0, response, DNSMessageReader.HEADER_LENGTH, question.length);
+        for (int i = 0; i < entry.ttlOffsets.length; i++)
+            putInt(response, entry.ttlOffsets[i], (int) ((entry.expirationTimes[i] - now + 999) / 1000));
+        if (ednsPayloadSize > 0) {
+            int opt = entry.message.length;
+            response[11] = 1;
+            response[opt + 2] = (byte) (DNSMessageReader.TYPE_OPT);
+            response[opt + 3] = (byte) (ednsPayloadSize >>> 8);
+            response[opt + 4] = (byte) ednsPayloadSize;
+        }
+
+        hits.increment();
+        cache.recordHit(node);
+        refreshAhead.onHit(node, entry.records);
+        return response;
+    }
+
+    /** Encodes the records served for a node, so that the next queries for it are answered by
+     * answer. Nothing is kept if a record has expired or does not fit in a TCP response, or if
+     * the records are no longer those the DNSCache holds for the node.
+     *
+     * @param node     Node the records were served for.
+     * @param question Question section of the query they answered.
+     * @param records  Records served, all from the answer section.
+     */
+    public void put(DNSNode node, byte[] question, Set<ResourceRecord> records) {
+        if (records.isEmpty())
+            return;
+        DNSHeader header = new DNSHeader();
+        header.RD = 1;
+        DNSResponseEncoder encoder = new DNSResponseEncoder(header, question, node.getCanonicalName(), 65535, 0);
+        long[] expirationTimes = new long[records.size()];
+        long expiresAt = Long.MAX_VALUE;
+        int count = 0;
+        try {
+            for (ResourceRecord record : records) {
+                if (!record.isStillValid() || !encoder.addAnswer(record))
+                    return;
+                expirationTimes[count++] = record.getExpirationTime();
+                expiresAt = Math.min(expiresAt, record.getExpirationTime());
+            }
+        } catch (RuntimeException e) {
+            // a record that cannot be encoded, the server answers SERVFAIL anyway
+            return;
+        }
+        Entry entry = new Entry(encoder.finish(0), question.length, encoder.getTtlOffsets(), expirationTimes,
+                expiresAt, records);
+
+        if (entries.size() >= maxEntries)
+            trim();
+        entries.put(node, entry);
+        // the record set may have changed (and the entry been invalidated) while it was encoded
+        if (!cache.peekCachedResults(node).equals(records))
+            entries.remove(node, entry);
+    }
+
+    public int getSize() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    // drops about an eighth of the entries, in no particular order
+    private void trim() {
+        int toRemove = Math.max(1, maxEntries / 8);
+        Iterator<DNSNode> nodes = entries.keySet().iterator();
+        while (toRemove-- > 0 && nodes.hasNext()) {
+            nodes.next();
+            nodes.remove();
+        }
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /** Stops following the changes of the DNSCache and drops every entry. */
+    @Override
+    public void close() {
+        cache.removeChangeListener(invalidate);
+        entries.clear();
+    }
+
+    // the encoded response for one node
+    private static final class Entry {
+
+        private final byte[] message;
+        private final int questionLength;
+        private final int[] ttlOffsets;
+        private final long[] expirationTimes;
+        private final long expiresAt;
+        private final Set<ResourceRecord> records;
+
+        Entry(byte[] message, int questionLength, int[] ttlOffsets, long[] expirationTimes, long expiresAt,
+              Set<ResourceRecord> records) {
+            this.message = message;
+            this.questionLength = questionLength;
+            this.ttlOffsets = ttlOffsets;
+            this.expirationTimes = expirationTimes;
+            this.expiresAt = expiresAt;
+            this.records = records;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** Round-trip time estimates of the name servers a resolver talks to, kept per server address
+ * the way TCP does (RFC 6298): a smoothed RTT (SRTT) and its mean deviation (RTTVAR) give each
+ * server its own retransmission timeout, RTO = SRTT + 4 * RTTVAR. Every timeout doubles the
+ * server's RTO, and a server that times out several times in a row is held down for a while so
+ * that it is only tried after every other candidate.
+ *
+ * The estimates are used to rank the name servers of a delegation (fastest first, servers never
+ * measured get a small random estimate so they are explored, held-down servers last) and to
+ * pace a StaggeredQuery.
+ */
+public class RttTable {
+
+    private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(1000);
+    private static final long UNKNOWN_SRTT = TimeUnit.MILLISECONDS.toNanos(30);
+    private static final long HOLD_DOWN = TimeUnit.SECONDS.toNanos(30);
+    private static final int HOLD_DOWN_TIMEOUTS = 3;
+
+    private final long maxRto;
+    private final Map<InetAddress, ServerEstimate> servers = new ConcurrentHashMap<>();
+
+    /** @param maxRto Largest retransmission timeout of any server, in milliseconds. */
+    public RttTable(long maxRto) {
+        this.maxRto = TimeUnit.MILLISECONDS.toNanos(maxRto);
+    }
+
+    /** Records the round-trip time of a reply to a query that was not retransmitted.
+     *
+     * @param server   Address of the server that replied.
+     * @param rttNanos Time between sending the query and receiving the reply.
+     */
+    public void replied(InetAddress server, long rttNanos) {
+        estimateFor(server).sample(rttNanos);
+    }
+
+    /** Records that a server did not reply within its retransmission timeout.
+     *
+     * @param server Address of the server that timed out.
+     */
+    public void timedOut(InetAddress server) {
+        estimateFor(server).timeout();
+    }
+
+    /** Retransmission timeout of a server, in nanoseconds. */
+    public long getRto(InetAddress server) {
+        ServerEstimate estimate = servers.get(server);
+        return estimate == null ? Math.min(INITIAL_RTO, maxRto) : estimate.getRto();
+    }
+
+    /** Smoothed round-trip time of a server in nanoseconds (its RTO if it never replied), or -1
+     * if it was never queried. */
+    public long getSrtt(InetAddress server) {
+        ServerEstimate estimate = servers.get(server);
+        return estimate == null ? -1 : estimate.getSrtt();
+    }
+
+    public boolean isHeldDown(InetAddress server) {
+        ServerEstimate estimate = servers.get(server);
+        return estimate != null && estimate.isHeldDown();
+    }
+
+    /** How long to wait for a server before also trying the next candidate, in nanoseconds. A
+     * healthy server replies well within twice its SRTT; servers never measured get a quarter of
+     * the initial RTO.
+     */
+    public long getStaggerDelay(InetAddress server) {
+        ServerEstimate estimate = servers.get(server);
+        if (estimate == null)
+            return getRto(server) / 4;
+        return Math.min(estimate.getRto(), Math.max(MIN_RTO / 2, 2 * estimate.getSrtt()));
+    }
+
+    /** Orders candidate servers from most to least promising: servers not held down before
+     * held-down ones, and by smoothed RTT within each group.
+     *
+     * @param candidates Addresses of the name servers of a zone.
+     * @return A list with the same addresses, best first.
+     */
+    public List<InetAddress> rank(List<InetAddress> candidates) {
+        if (candidates.size() < 2)
+            return candidates;
+        Map<InetAddress, Long> keys = new HashMap<>();
+        for (InetAddress server : candidates) {
+            ServerEstimate estimate = servers.get(server);
+            long srtt = estimate == null ? ThreadLocalRandom.current().nextLong(UNKNOWN_SRTT) : estimate.getSrtt();
+            keys.put(server, estimate != null && estimate.isHeldDown() ? Long.MAX_VALUE / 2 + srtt : srtt);
+        }
+        List<InetAddress> ranked = new ArrayList<>(keys.keySet());
+        ranked.sort(Comparator.comparing(keys::get));
+        return ranked;
+    }
+
+    public int size() {
+        return servers.size();
+    }
+
+    private ServerEstimate estimateFor(InetAddress server) {
+        return servers.computeIfAbsent(server, s -> new ServerEstimate());
+    }
+
+    // SRTT, RTTVAR and backoff state of one server
+    private class ServerEstimate {
+
+        private long srtt = -1;
+        private long rttvar;
+        private long rto = Math.min(INITIAL_RTO, maxRto);
+        private int consecutiveTimeouts = 0;
+        private long heldDownUntil;
+
+        synchronized void sample(long rtt) {
+            if (srtt < 0) {
+                srtt = rtt;
+                rttvar = rtt / 2;
+            } else {
+                rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+                srtt = (7 * srtt + rtt) / 8;
+            }
+            rto = Math.max(MIN_RTO, Math.min(maxRto, srtt + 4 * rttvar));
+            consecutiveTimeouts = 0;
+        }
+
+        synchronized void timeout() {
+            rto = Math.min(maxRto, rto * 2);
+            if (++consecutiveTimeouts >= HOLD_DOWN_TIMEOUTS)
+                heldDownUntil = System.nanoTime() + HOLD_DOWN;
+        }
+
+        synchronized long getSrtt() {
+            // a server that never replied is treated as slow as its timeout
+            return srtt < 0 ? rto : srtt;
+        }
+
+        synchronized long getRto() {
+            return rto;
+        }
+
+        synchronized boolean isHeldDown() {
+            return consecutiveTimeouts >= HOLD_DOWN_TIMEOUTS && System.nanoTime() - heldDownUntil < 0;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/** Sends one question to the name servers of a delegation in a staggered, "happy eyeballs"
+ * fashion. The query goes to the first (best) server; if no reply arrives within that server's
+ * stagger delay, it also goes to the next server, and so on, and the first useful reply wins. A
+ * server that replies with an error (SERVFAIL, NOTIMP or REFUSED) or cannot be reached makes the
+ * next server start right away. Every server is retransmitted once, with the same query ID, if
+ * it has not replied within its retransmission timeout, and is given twice that long to reply
+ * to the retransmission. Delays and timeouts come from the resolver's RttTable, which is
+ * updated with the outcome of every query. Nothing is sent, and no reply waited for, past the
+ * deadline of the resolution (see ResolutionContext).
+ *
+ * A StaggeredQuery is used once, by the thread resolving the question.
+ */
+public class StaggeredQuery {
+
+    private static final int MAX_ATTEMPTS = 2;
+
+    private final DNSTransport transport;
+    private final ResolutionContext context;
+    private final DNSQuery query;
+    private final List<InetAddress> servers;
+    private final RttTable rttTable;
+
+    private final BlockingQueue<Attempt> completed = new LinkedBlockingQueue<>();
+    private final Map<InetAddress, Attempt> attempts = new HashMap<>();
+
+    public StaggeredQuery(DNSTransport transport, ResolutionContext context, DNSQuery query,
+                          List<InetAddress> servers, RttTable rttTable) {
+        this.transport = transport;
+        this.context = context;
+        this.query = query;
+        this.servers = new ArrayList<>(new LinkedHashSet<>(servers));
+        this.rttTable = rttTable;
+    }
+
+    /** Sends the query and waits for the first useful reply.
+     *
+     * @return The first reply that is not an error, the last error reply if all servers
+     *         replied with an error, or null if no server replied.
+     */
+    public DNSResponse run() {
+        DNSResponse errorResponse = null;
+        int next = 0;
+        int total = servers.size() * MAX_ATTEMPTS;
+        boolean expedite = true;
+        long nextStagger = System.nanoTime();
+        long lastReplyBy = nextStagger;
+        try {
+            while (true) {
+                // skip retransmissions to servers that already replied
+                while (next >= servers.size() && next < total && !isPending(serverAt(next)))
+                    next++;
+                boolean hasNext = next < total;
+
+                if (context.isPastDeadline())
+                    break;
+                long now = System.nanoTime();
+                long sendAt = !hasNext ? lastReplyBy
+                        : next >= servers.size() ? attempts.get(serverAt(next)).retransmitAt()
+                        : expedite ? now : nextStagger;
+                if (hasNext && now - sendAt >= 0) {
+                    InetAddress server = serverAt(next);
+                    Attempt attempt = send(server, next >= servers.size());
+                    next++;
+                    nextStagger = now + rttTable.getStaggerDelay(server);
+                    long replyBy = now + (attempt.retransmitted ? 2 * attempt.rto : attempt.rto);
+                    if (replyBy - lastReplyBy > 0)
+                        lastReplyBy = replyBy;
+                    expedite = false;
+                    continue;
+                }
+                if (!hasNext && (now - lastReplyBy >= 0 || !anyPending()))
+                    break;
+
+                long wait = Math.min(Math.max(sendAt - now, 0), context.getRemainingNanos());
+                Attempt attempt = completed.poll(wait, TimeUnit.NANOSECONDS);
+                if (attempt == null || attempt.done)
+                    continue;
+                attempt.done = true;
+
+                DNSResponse response = attempt.future.getNow(null);
+                if (response != null && !attempt.retransmitted)
+                    rttTable.replied(attempt.server, System.nanoTime() - attempt.firstSent);
+                if (response != null && !isErrorResponse(response))
+                    return response;
+                if (response != null)
+                    errorResponse = response;
+                // this server is out, move on to the next one right away
+                expedite = true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            long now = System.nanoTime();
+            for (Attempt attempt : attempts.values()) {
+                transport.cancel(query, attempt.server, attempt.future);
+                // servers that only lost the race to a faster one did not time out
+                if (!attempt.done && now - attempt.retransmitAt() >= 0) {
+                    rttTable.timedOut(attempt.server);
+                    Metrics.getInstance().timedOut();
+                    if (context.isTraced())
+                        context.getTracer().timedOut(context, query, attempt.server);
+                }
+            }
+        }
+        return errorResponse;
+    }
+
+    private InetAddress serverAt(int index) {
+        return servers.get(index % servers.size());
+    }
+
+    private Attempt send(InetAddress server, boolean retransmission) {
+        if (context.isTraced())
+            context.getTracer().querySent(context, query, server, retransmission);
+        context.querySent();
+        Metrics.getInstance().querySent(server, retransmission);
+        CompletableFuture<DNSResponse> future = transport.send(query, server);
+        Attempt attempt = attempts.get(server);
+        if (attempt == null) {
+            attempt = new Attempt(server, future, System.nanoTime(), rttTable.getRto(server));
+            attempts.put(server, attempt);
+        } else {
+            attempt.future = future;
+            attempt.retransmitted = retransmission;
+        }
+        Attempt completedAttempt = attempt;
+        future.whenComplete((response, e) -> completed.offer(completedAttempt));
+        return attempt;
+    }
+
+    private boolean isPending(InetAddress server) {
+        Attempt attempt = attempts.get(server);
+        return attempt == null || !attempt.done;
+    }
+
+    private boolean anyPending() {
+        for (Attempt attempt : attempts.values())
+            if (!attempt.done)
+                return true;
+        return false;
+    }
+
+    // server failure, not implemented or refused: another server of the zone may do better
+    private static boolean isErrorResponse(DNSResponse response) {
+        int rcode = response.dnsHeader.RCODE;
+        return rcode == 2 || rcode == 4 || rcode == 5;
+    }
+
+    // the query sent to one server, possibly retransmitted
+    private static class Attempt {
+
+        private final InetAddress server;
+        private final long firstSent;
+        private final long rto;
+        private CompletableFuture<DNSResponse> future;
+        private boolean retransmitted = false;
+        private boolean done = false;
+
+        Attempt(InetAddress server, CompletableFuture<DNSResponse> future, long firstSent, long rto) {
+            this.server = server;
+            this.future = future;
+            this.firstSent = firstSent;
+            this.rto = rto;
+        }
+
+        long retransmitAt() {
+            return firstSent + rto;
+        }
+    }
+}
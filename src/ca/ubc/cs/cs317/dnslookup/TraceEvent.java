@@ -0,0 +1,35 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+
+/** One step of a traced resolution, as recorded by the Tracer: a query sent to a name server,
+ * a referral or answer received, or a name server that did not reply in time. Events only hold
+ * references to the query and response involved; they are formatted later, by the trace writer.
+ */
+public class TraceEvent {
+
+    public enum Kind {
+        QUERY, REFERRAL, ANSWER, TIMEOUT
+    }
+
+    public final Kind kind;
+    public final long time;
+    public final long resolutionId;
+    public final DNSQuery query;
+    // null for responses, which are not tied to a server by the time they are traced
+    public final InetAddress server;
+    // null except for REFERRAL and ANSWER
+    public final DNSResponse response;
+    public final boolean retransmission;
+
+    public TraceEvent(Kind kind, long resolutionId, DNSQuery query, InetAddress server, DNSResponse response,
+                      boolean retransmission) {
+        this.kind = kind;
+        this.time = System.currentTimeMillis();
+        this.resolutionId = resolutionId;
+        this.query = query;
+        this.server = server;
+        this.response = response;
+        this.retransmission = retransmission;
+    }
+}
@@ -0,0 +1,83 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Bounded lock-free ring buffer with many producers and a single consumer (after Dmitry
+ * Vyukov's bounded queue). Each slot carries a sequence number telling whether it is free for
+ * the producer of a given position or holds the element of that position for the consumer, so
+ * producers only contend on one compare-and-set of the head. A producer never waits: when the
+ * ring is full, offer fails and the element is dropped.
+ *
+ * @param <E> Type of the elements.
+ */
+public class TraceRing<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail = 0;
+
+    /** @param capacity Maximum number of elements, rounded up to a power of two. */
+    public TraceRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+    }
+
+    /** Adds an element, unless the ring is full. Safe to call from any thread.
+     *
+     * @param element Element to be added.
+     * @return true if the element was added, false if it was dropped.
+     */
+    public boolean offer(E element) {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    slots.set(index, element);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    /** Removes the oldest element. Must only be called by the consumer thread.
+     *
+     * @return The oldest element, or null if the ring is empty.
+     */
+    public E poll() {
+        long position = tail;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1)
+            return null;
+        E element = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, position + mask + 1);
+        tail = position + 1;
+        return element;
+    }
+
+    /** Number of elements added so far. */
+    public long getProduced() {
+        return head.get();
+    }
+
+    /** Number of elements removed so far. */
+    public long getConsumed() {
+        return tail;
+    }
+}
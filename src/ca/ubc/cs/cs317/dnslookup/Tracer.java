@@ -0,0 +1,277 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/** Asynchronous tracing of resolutions. A sampled fraction of resolutions (all of them with
+ * "trace on") record their steps as TraceEvents into a lock-free TraceRing; a background writer
+ * thread drains the ring and formats the events, either as the classic verbose text (queries and
+ * responses as printed by DNSQuery and DNSResponse) or as JSON lines for machines. Resolutions
+ * never format or print anything themselves, and never wait for the writer: if the writer falls
+ * behind and the ring fills up, events are dropped and counted. The writer sleeps while the ring
+ * is empty, and is woken up by the first event recorded after it went idle, so it costs nothing
+ * while tracing is off.
+ *
+ * Every traced resolution gets an ID, shared with the resolutions it forks (e.g. name server
+ * address lookups), which is written with each JSON event so that the events of concurrent
+ * resolutions can be told apart.
+ */
+public class Tracer implements AutoCloseable {
+
+    public enum Format {
+        TEXT, JSON
+    }
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static final long FLUSH_WAIT = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final TraceRing<TraceEvent> ring;
+    private final AtomicLong resolutionIds = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile double sampleRate = 0;
+    private volatile Format format = Format.TEXT;
+    private volatile PrintStream out = System.out;
+    private volatile long written = 0;
+    private volatile boolean running = true;
+    private volatile boolean idle = false;
+    private volatile Thread writer;
+
+    public Tracer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** @param capacity Number of events buffered before events are dropped. */
+    public Tracer(int capacity) {
+        this.ring = new TraceRing<>(capacity);
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /** Changes the fraction of resolutions that are traced. The writer thread is started the
+     * first time tracing is turned on.
+     *
+     * @param sampleRate Fraction between 0 (tracing off) and 1 (every resolution).
+     */
+    public synchronized void setSampleRate(double sampleRate) {
+        if (!(sampleRate >= 0 && sampleRate <= 1))
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1");
+        if (sampleRate > 0 && writer == null) {
+            writer = new Thread(this::drain, "dns-trace-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
+    public PrintStream getOutput() {
+        return out;
+    }
+
+    /** Changes where events are written. The previous stream is flushed, and closed unless it is
+     * the standard output.
+     *
+     * @param out Stream the writer thread writes events to.
+     */
+    public synchronized void setOutput(PrintStream out) {
+        flush();
+        PrintStream previous = this.out;
+        this.out = out;
+        if (previous != System.out)
+            previous.close();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /** Decides whether a new resolution is traced.
+     *
+     * @return A new resolution ID if the resolution is traced, or 0 if it is not.
+     */
+    public long sample() {
+        double rate = sampleRate;
+        if (rate <= 0 || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate))
+            return 0;
+        return resolutionIds.incrementAndGet();
+    }
+
+    /** Records that a query was sent (or retransmitted) to a name server. */
+    public void querySent(ResolutionContext context, DNSQuery query, InetAddress server, boolean retransmission) {
+        record(new TraceEvent(TraceEvent.Kind.QUERY, context.getTraceId(), query, server, null, retransmission));
+    }
+
+    /** Records that a name server did not reply to a query within its retransmission timeout. */
+    public void timedOut(ResolutionContext context, DNSQuery query, InetAddress server) {
+        record(new TraceEvent(TraceEvent.Kind.TIMEOUT, context.getTraceId(), query, server, null, false));
+    }
+
+    /** Records the response a resolution uses for a query, as a referral (no answer and name
+     * servers in the authority section) or as an answer (anything else, errors included).
+     */
+    public void responseReceived(ResolutionContext context, DNSQuery query, DNSResponse response) {
+        TraceEvent.Kind kind = TraceEvent.Kind.ANSWER;
+        if (response.dnsHeader.RCODE == 0 && response.answers.isEmpty())
+            for (ResourceRecord record : response.nameServers)
+                if (record.getType() == RecordType.NS)
+                    kind = TraceEvent.Kind.REFERRAL;
+        record(new TraceEvent(kind, context.getTraceId(), query, null, response, false));
+    }
+
+    private void record(TraceEvent event) {
+        if (!ring.offer(event))
+            dropped.increment();
+        else if (idle)
+            LockSupport.unpark(writer);
+    }
+
+    /** Waits until the events recorded so far are written, e.g. so that the trace of an
+     * interactive lookup is printed before its results.
+     */
+    public void flush() {
+        long target = ring.getProduced();
+        while (written < target && running && writer != null && writer.isAlive())
+            LockSupport.parkNanos(FLUSH_WAIT);
+    }
+
+    // body of the writer thread: formats events as long as there are any, then flushes and sleeps
+    // until record (or close) wakes it up
+    private void drain() {
+        while (true) {
+            TraceEvent event = ring.poll();
+            if (event == null) {
+                long consumed = ring.getConsumed();
+                if (written != consumed) {
+                    out.flush();
+                    written = consumed;
+                }
+                if (!running)
+                    return;
+                idle = true;
+                // an event recorded before idle was set did not wake the writer up
+                event = ring.poll();
+                if (event == null && running)
+                    LockSupport.park(this);
+                idle = false;
+                if (event == null)
+                    continue;
+            }
+            PrintStream stream = out;
+            try {
+                if (format == Format.JSON)
+                    stream.println(toJson(event));
+                else
+                    printText(stream, event);
+            } catch (RuntimeException e) {
+                // a broken event must not stop the writer
+            }
+        }
+    }
+
+    private static void printText(PrintStream out, TraceEvent event) {
+        switch (event.kind) {
+            case QUERY:
+                event.query.print(out, event.server);
+                break;
+            case TIMEOUT:
+                out.println("Query ID     " + event.query.queryID + " " + event.query.node.getHostName() + "  "
+                        + event.query.node.getType() + " --> " + event.server.getHostAddress() + " timed out");
+                break;
+            default:
+                event.response.print(out);
+        }
+    }
+
+    // one JSON object per event, with the records of responses as received
+    static String toJson(TraceEvent event) {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"time\":").append(event.time)
+                .append(",\"resolution\":").append(event.resolutionId)
+                .append(",\"event\":\"").append(event.kind.name().toLowerCase()).append('"')
+                .append(",\"id\":").append(event.query.queryID)
+                .append(",\"name\":");
+        appendString(json, event.query.node.getHostName());
+        json.append(",\"type\":\"").append(event.query.node.getType()).append('"');
+        if (event.server != null)
+            json.append(",\"server\":\"").append(event.server.getHostAddress()).append('"');
+        if (event.kind == TraceEvent.Kind.QUERY)
+            json.append(",\"retransmission\":").append(event.retransmission)
+                    .append(",\"edns\":").append(event.query.edns);
+        if (event.response != null) {
+            json.append(",\"rcode\":").append(event.response.dnsHeader.RCODE)
+                    .append(",\"authoritative\":").append(event.response.dnsHeader.AA == 1);
+            appendRecords(json, "answers", event.response.answers);
+            appendRecords(json, "authority", event.response.nameServers);
+            appendRecords(json, "additional", event.response.additional);
+        }
+        return json.append('}').toString();
+    }
+
+    private static void appendRecords(StringBuilder json, String section, Set<ResourceRecord> records) {
+        json.append(",\"").append(section).append("\":[");
+        boolean first = true;
+        for (ResourceRecord record : records) {
+            json.append(first ? "{\"name\":" : ",{\"name\":");
+            appendString(json, record.getHostName());
+            json.append(",\"type\":\"").append(record.getType())
+                    .append("\",\"ttl\":").append(record.getOriginalTTL())
+                    .append(",\"data\":");
+            appendString(json, record.getTextResult());
+            json.append('}');
+            first = false;
+        }
+        json.append(']');
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c < 0x20 || c > 0x7e)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        json.append('"');
+    }
+
+    /** Writes the events still buffered and stops the writer thread. */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            thread = writer;
+        }
+        flush();
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (out != System.out)
+            out.close();
+    }
+}
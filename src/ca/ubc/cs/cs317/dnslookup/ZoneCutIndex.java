@@ -0,0 +1,82 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Finds the deepest delegation (zone cut) known for a name, so that an iterative resolution
+ * can start at the closest enclosing zone instead of at the root server. Referrals leave the NS
+ * records of each zone in the cache keyed by the zone name, and their glue under the name of
+ * each name server, so the cache itself serves as the index: the closest enclosing zone of
+ * www.cs.ubc.ca is found by looking up the NS records of www.cs.ubc.ca, cs.ubc.ca, ubc.ca and
+ * ca, in that order, and keeping the first zone with at least one name server address cached.
+ */
+public class ZoneCutIndex {
+
+    private final DNSCache cache;
+
+    public ZoneCutIndex(DNSCache cache) {
+        this.cache = cache;
+    }
+
+    /** A zone and the addresses of its name servers known to the cache. */
+    public static class Delegation {
+
+        private final String zone;
+        private final List<InetAddress> servers;
+
+        Delegation(String zone, List<InetAddress> servers) {
+            this.zone = zone;
+            this.servers = Collections.unmodifiableList(servers);
+        }
+
+        public String getZone() {
+            return zone;
+        }
+
+        public List<InetAddress> getServers() {
+            return servers;
+        }
+
+        @Override
+        public String toString() {
+            return zone + " " + servers;
+        }
+    }
+
+    /** Returns the deepest zone enclosing a name (possibly the name itself) for which the cache
+     * has both NS records and the address of at least one of those name servers.
+     *
+     * @param hostName Fully qualified domain name being resolved.
+     * @return The closest known delegation, or null if the resolution must start at the root.
+     */
+    public Delegation findClosestEnclosing(String hostName) {
+        String zone = hostName.endsWith(".") ? hostName.substring(0, hostName.length() - 1) : hostName;
+        while (!zone.isEmpty()) {
+            Delegation delegation = getDelegation(zone);
+            if (delegation != null)
+                return delegation;
+            int dot = zone.indexOf('.');
+            zone = dot < 0 ? "" : zone.substring(dot + 1);
+        }
+        return null;
+    }
+
+    /** Returns the name server addresses cached for a zone, or null if none are known.
+     *
+     * @param zone Name of the zone.
+     * @return The delegation of the zone, or null if none is known.
+     */
+    public Delegation getDelegation(String zone) {
+        List<InetAddress> servers = null;
+        for (ResourceRecord ns : cache.peekCachedResults(new DNSNode(zone, RecordType.NS))) {
+            for (ResourceRecord glue : cache.peekCachedResults(new DNSNode(ns.getTextResult(), RecordType.A))) {
+                if (servers == null)
+                    servers = new ArrayList<>();
+                servers.add(glue.getInetResult());
+            }
+        }
+        return servers == null ? null : new Delegation(zone, servers);
+    }
+}
@@ -0,0 +1,65 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Objects;
+
+/** Assertions of the unit tests (see TestRunner). Each throws an AssertionError describing the
+ * mismatch when it does not hold.
+ */
+public final class Assert {
+
+    /** Code expected to throw. */
+    public interface Block {
+        void run() throws Exception;
+    }
+
+    private Assert() {
+    }
+
+    public static void fail(String message) {
+        throw new AssertionError(message);
+    }
+
+    public static void assertTrue(boolean condition, String message) {
+        if (!condition)
+            fail(message);
+    }
+
+    public static void assertFalse(boolean condition, String message) {
+        assertTrue(!condition, message);
+    }
+
+    public static void assertEquals(Object expected, Object actual) {
+        if (!Objects.equals(expected, actual))
+            fail("expected <" + expected + "> but was <" + actual + ">");
+    }
+
+    public static void assertEquals(long expected, long actual) {
+        if (expected != actual)
+            fail("expected <" + expected + "> but was <" + actual + ">");
+    }
+
+    public static void assertNotEquals(Object unexpected, Object actual) {
+        if (Objects.equals(unexpected, actual))
+            fail("expected a value other than <" + actual + ">");
+    }
+
+    public static void assertSame(Object expected, Object actual) {
+        if (expected != actual)
+            fail("expected the same instance as <" + expected + "> but was <" + actual + ">");
+    }
+
+    /** Runs a block and checks that it throws an exception of a type (or a subtype).
+     *
+     * @return The exception thrown.
+     */
+    public static <T extends Throwable> T assertThrows(Class<T> expected, Block block) {
+        try {
+            block.run();
+        } catch (Throwable e) {
+            if (expected.isInstance(e))
+                return expected.cast(e);
+            throw new AssertionError("expected " + expected.getSimpleName() + " but " + e + " was thrown", e);
+        }
+        throw new AssertionError("expected " + expected.getSimpleName() + " but nothing was thrown");
+    }
+}
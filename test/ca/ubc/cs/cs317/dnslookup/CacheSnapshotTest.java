@@ -0,0 +1,232 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static ca.ubc.cs.cs317.dnslookup.Assert.*;
+
+/** Tests of CacheSnapshot: records written from the cache read back unchanged, expired records
+ * are skipped, nodes of a previous snapshot are carried over or merged, and corrupt files are
+ * rejected. Previous and corrupt snapshots are built byte by byte, following the file layout
+ * documented in CacheSnapshot.
+ */
+public class CacheSnapshotTest {
+
+    private static final int MAGIC = 0x444e5343;
+    private static final int VERSION = 3;
+    private static final int HEADER_LENGTH = 24;
+
+    private final DNSCache cache = DNSCache.getInstance();
+    private final long now = System.currentTimeMillis();
+
+    private static ResourceRecord record(DNSNode node, long expirationTime, int... octets) {
+        byte[] address = new byte[octets.length];
+        for (int i = 0; i < octets.length; i++)
+            address[i] = (byte) octets[i];
+        return new ResourceRecord(node, 60, expirationTime, address);
+    }
+
+    // runs a test against a fresh temporary file, deleted afterwards with its snapshot
+    private interface FileTest {
+        void run(Path file) throws Exception;
+    }
+
+    private static void withFile(FileTest test) throws Exception {
+        Path file = Files.createTempFile("dnscache", ".snapshot");
+        try {
+            test.run(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // encodes a snapshot of the given nodes, with 16 slots and the entries in insertion order
+    private static ByteBuffer encode(Map<DNSNode, List<ResourceRecord>> nodes) {
+        int slots = 16;
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(slots).putInt(nodes.size()).putLong(System.currentTimeMillis());
+        buffer.position(HEADER_LENGTH + 4 * slots);
+        for (Map.Entry<DNSNode, List<ResourceRecord>> entry : nodes.entrySet()) {
+            DNSNode node = entry.getKey();
+            int slot = CachePolicy.hash(node) & (slots - 1);
+            while (buffer.getInt(HEADER_LENGTH + 4 * slot) != 0)
+                slot = (slot + 1) & (slots - 1);
+            buffer.putInt(HEADER_LENGTH + 4 * slot, buffer.position());
+
+            byte[] name = node.getCanonicalName().getBytes(StandardCharsets.ISO_8859_1);
+            buffer.putShort((short) name.length).put(name);
+            buffer.putShort((short) node.getType().getCode()).putShort((short) entry.getValue().size());
+            for (ResourceRecord record : entry.getValue()) {
+                byte[] data = record.getAddress();
+                buffer.putLong(record.getExpirationTime()).putInt(record.getOriginalTTL());
+                buffer.put((byte) (data.length == 4 ? 4 : 6)).putShort((short) data.length).put(data);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void write(Path file, ByteBuffer buffer) throws IOException {
+        Files.write(file, Arrays.copyOf(buffer.array(), buffer.limit()));
+    }
+
+    public void testRecordsReadBackAsWritten() throws Exception {
+        DNSNode address = new DNSNode("www.snapshot.test", RecordType.A);
+        DNSNode address6 = new DNSNode("www.snapshot.test", RecordType.AAAA);
+        DNSNode alias = new DNSNode("alias.snapshot.test", RecordType.CNAME);
+        byte[] ipv6 = new byte[16];
+        ipv6[0] = 0x20;
+        ipv6[1] = 0x01;
+        ipv6[15] = 1;
+        ResourceRecord a1 = record(address, now + 60_000, 10, 5, 0, 1);
+        ResourceRecord a2 = record(address, now + 90_000, 10, 5, 0, 2);
+        ResourceRecord aaaa = new ResourceRecord(address6, 60, now + 60_000, ipv6);
+        ResourceRecord cname = new ResourceRecord(alias, 300, now + 300_000, "www.snapshot.test");
+        for (ResourceRecord record : List.of(a1, a2, aaaa, cname))
+            cache.addResult(record);
+
+        withFile(file -> {
+            CacheSnapshot.write(cache, null, file);
+            try (CacheSnapshot snapshot = CacheSnapshot.open(file)) {
+                assertTrue(snapshot.getNodeCount() >= 3, "snapshot holds " + snapshot.getNodeCount() + " nodes");
+                assertEquals(Set.of(a1, a2), new HashSet<>(snapshot.getRecords(address)));
+                for (ResourceRecord record : snapshot.getRecords(address))
+                    assertEquals(record.equals(a1) ? a1.getExpirationTime() : a2.getExpirationTime(),
+                            record.getExpirationTime());
+                List<ResourceRecord> aaaaRecords = snapshot.getRecords(address6);
+                assertEquals(List.of(aaaa), aaaaRecords);
+                assertTrue(Arrays.equals(ipv6, aaaaRecords.get(0).getAddress()), "IPv6 address changed");
+                List<ResourceRecord> cnameRecords = snapshot.getRecords(alias);
+                assertEquals(List.of(cname), cnameRecords);
+                assertEquals("www.snapshot.test", cnameRecords.get(0).getTextResult());
+                assertEquals(300, cnameRecords.get(0).getOriginalTTL());
+                assertEquals(0, snapshot.getRecords(new DNSNode("missing.snapshot.test", RecordType.A)).size());
+            }
+        });
+    }
+
+    public void testExpiredRecordsAreSkipped() throws Exception {
+        DNSNode partly = new DNSNode("partly.expired.snapshot.test", RecordType.A);
+        DNSNode expired = new DNSNode("expired.snapshot.test", RecordType.A);
+        ResourceRecord valid = record(partly, now + 60_000, 10, 6, 0, 1);
+        Map<DNSNode, List<ResourceRecord>> nodes = new LinkedHashMap<>();
+        nodes.put(partly, List.of(record(partly, now - 1000, 10, 6, 0, 2), valid));
+        nodes.put(expired, List.of(record(expired, now - 1000, 10, 6, 0, 3)));
+
+        withFile(file -> {
+            write(file, encode(nodes));
+            try (CacheSnapshot snapshot = CacheSnapshot.open(file)) {
+                assertEquals(List.of(valid), snapshot.getRecords(partly));
+                assertEquals(0, snapshot.getRecords(expired).size());
+                List<DNSNode> decoded = new ArrayList<>();
+                snapshot.forEachNode((node, records) -> decoded.add(node));
+                assertEquals(List.of(partly), decoded);
+            }
+        });
+    }
+
+    public void testPreviousSnapshotIsCarriedOverAndMerged() throws Exception {
+        DNSNode unloaded = new DNSNode("unloaded.snapshot.test", RecordType.A);
+        DNSNode merged = new DNSNode("merged.snapshot.test", RecordType.A);
+        ResourceRecord old = record(unloaded, now + 60_000, 10, 7, 0, 1);
+        ResourceRecord longer = record(merged, now + 120_000, 10, 7, 1, 1);
+        ResourceRecord onlyPrevious = record(merged, now + 60_000, 10, 7, 1, 2);
+        ResourceRecord onlyCache = record(merged, now + 60_000, 10, 7, 1, 3);
+        Map<DNSNode, List<ResourceRecord>> nodes = new LinkedHashMap<>();
+        nodes.put(unloaded, List.of(old));
+        nodes.put(merged, List.of(longer, onlyPrevious));
+        // the cache holds the first record with a shorter expiration, and a record of its own
+        cache.addResult(record(merged, now + 30_000, 10, 7, 1, 1));
+        cache.addResult(onlyCache);
+
+        withFile(previousFile -> withFile(file -> {
+            write(previousFile, encode(nodes));
+            try (CacheSnapshot previous = CacheSnapshot.open(previousFile)) {
+                CacheSnapshot.write(cache, previous, file);
+            }
+            try (CacheSnapshot snapshot = CacheSnapshot.open(file)) {
+                assertEquals(List.of(old), snapshot.getRecords(unloaded));
+                List<ResourceRecord> records = snapshot.getRecords(merged);
+                assertEquals(Set.of(longer, onlyPrevious, onlyCache), new HashSet<>(records));
+                for (ResourceRecord record : records)
+                    if (record.equals(longer))
+                        assertEquals(now + 120_000, record.getExpirationTime());
+            }
+        }));
+    }
+
+    public void testCorruptHeadersAreRejectedAtOpen() throws Exception {
+        DNSNode node = new DNSNode("corrupt.snapshot.test", RecordType.A);
+        ByteBuffer valid = encode(Map.of(node, List.of(record(node, now + 60_000, 10, 8, 0, 1))));
+        withFile(file -> {
+            write(file, valid.duplicate().limit(HEADER_LENGTH - 4));
+            assertThrows(IOException.class, () -> CacheSnapshot.open(file).close());
+
+            ByteBuffer magic = valid.duplicate();
+            magic.putInt(0, 0x12345678);
+            write(file, magic);
+            assertThrows(IOException.class, () -> CacheSnapshot.open(file).close());
+
+            ByteBuffer oddSlots = valid.duplicate();
+            oddSlots.putInt(8, 15);
+            write(file, oddSlots);
+            assertThrows(IOException.class, () -> CacheSnapshot.open(file).close());
+
+            ByteBuffer hugeSlots = valid.duplicate();
+            hugeSlots.putInt(8, 1 << 20);
+            write(file, hugeSlots);
+            assertThrows(IOException.class, () -> CacheSnapshot.open(file).close());
+
+            ByteBuffer noEntries = valid.duplicate();
+            noEntries.limit(HEADER_LENGTH + 4 * 16);
+            write(file, noEntries);
+            assertThrows(IOException.class, () -> CacheSnapshot.open(file).close());
+        });
+    }
+
+    public void testCorruptEntriesFailLookups() throws Exception {
+        DNSNode node = new DNSNode("corrupt.snapshot.test", RecordType.A);
+        ByteBuffer valid = encode(Map.of(node, List.of(record(node, now + 60_000, 10, 8, 0, 1))));
+        int slotPosition = HEADER_LENGTH + 4 * (CachePolicy.hash(node) & 15);
+        withFile(file -> {
+            ByteBuffer badOffset = valid.duplicate();
+            badOffset.putInt(slotPosition, valid.limit() + 100);
+            write(file, badOffset);
+            try (CacheSnapshot snapshot = CacheSnapshot.open(file)) {
+                assertThrows(UncheckedIOException.class, () -> snapshot.getRecords(node));
+                assertThrows(UncheckedIOException.class, () -> snapshot.forEachNode((n, records) -> { }));
+            }
+
+            write(file, valid.duplicate().limit(valid.limit() - 3));
+            try (CacheSnapshot snapshot = CacheSnapshot.open(file)) {
+                assertThrows(UncheckedIOException.class, () -> snapshot.getRecords(node));
+            }
+        });
+    }
+
+    public void testCacheDetachesCorruptSnapshot() throws Exception {
+        DNSNode node = new DNSNode("detached.snapshot.test", RecordType.A);
+        ByteBuffer corrupt = encode(Map.of(node, List.of(record(node, now + 60_000, 10, 9, 0, 1))));
+        // every slot points past the end of the file
+        for (int slot = 0; slot < 16; slot++)
+            corrupt.putInt(HEADER_LENGTH + 4 * slot, corrupt.limit() + 100);
+        withFile(file -> {
+            write(file, corrupt);
+            CacheSnapshot snapshot = CacheSnapshot.open(file);
+            try {
+                cache.attachSnapshot(snapshot);
+                assertEquals(0, cache.getCachedResults(node).size());
+                assertEquals(null, cache.getSnapshot());
+                assertEquals(0, cache.getCachedResults(node).size());
+            } finally {
+                cache.attachSnapshot(null);
+                snapshot.close();
+            }
+        });
+    }
+}
@@ -0,0 +1,96 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static ca.ubc.cs.cs317.dnslookup.Assert.*;
+
+/** Tests of the concurrent DNSCache: striped writes and expiration by the reaper. The cache is a
+ * singleton, so every test uses names of its own.
+ */
+public class DNSCacheTest {
+
+    private final DNSCache cache = DNSCache.getInstance();
+
+    private static ResourceRecord address(DNSNode node, int last, long expirationTime) {
+        return new ResourceRecord(node, 60, expirationTime, new byte[]{10, 3, 0, (byte) last});
+    }
+
+    // waits up to two seconds for the reaper
+    private static void awaitTrue(BooleanSupplier condition, String message) throws Exception {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline)
+                fail(message);
+            Thread.sleep(10);
+        }
+    }
+
+    public void testConcurrentWritesToOneNodeKeepEveryRecord() throws Exception {
+        DNSNode node = new DNSNode("concurrent.cache.test", RecordType.A);
+        long expirationTime = System.currentTimeMillis() + 60_000;
+        Thread[] writers = new Thread[8];
+        for (int t = 0; t < writers.length; t++) {
+            int first = t * 25;
+            writers[t] = new Thread(() -> {
+                for (int i = first; i < first + 25; i++)
+                    cache.addResult(address(node, i, expirationTime));
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers)
+            writer.join();
+        assertEquals(200, cache.getCachedResults(node).size());
+    }
+
+    public void testLaterExpirationReplacesEarlierOne() {
+        DNSNode node = new DNSNode("replace.cache.test", RecordType.A);
+        long now = System.currentTimeMillis();
+        cache.addResult(address(node, 1, now + 60_000));
+        cache.addResult(address(node, 1, now + 30_000));
+        Set<ResourceRecord> results = cache.getCachedResults(node);
+        assertEquals(1, results.size());
+        assertEquals(now + 60_000, results.iterator().next().getExpirationTime());
+    }
+
+    public void testExpiredNodeIsReapedAndReported() throws Exception {
+        DNSNode node = new DNSNode("expire.cache.test", RecordType.A);
+        List<DNSNode> changes = new CopyOnWriteArrayList<>();
+        Consumer<DNSNode> listener = changes::add;
+        cache.addChangeListener(listener);
+        try {
+            long expirations = cache.getExpirationCount();
+            cache.addResult(address(node, 1, System.currentTimeMillis() + 150));
+            assertTrue(cache.containsNode(node), "record cached");
+            awaitTrue(() -> cache.getCachedResults(node).isEmpty(), "expired record still returned");
+            awaitTrue(() -> cache.getExpirationCount() > expirations, "expired node not reaped");
+            awaitTrue(() -> changes.stream().filter(node::equals).count() == 2, "expiration not reported");
+        } finally {
+            cache.removeChangeListener(listener);
+        }
+    }
+
+    public void testNodeOutlivesTheExpirationOfItsFirstRecord() throws Exception {
+        DNSNode node = new DNSNode("outlive.cache.test", RecordType.A);
+        long now = System.currentTimeMillis();
+        cache.addResult(address(node, 1, now + 100));
+        cache.addResult(address(node, 2, now + 60_000));
+        Thread.sleep(400);
+        Set<ResourceRecord> results = cache.getCachedResults(node);
+        assertEquals(1, results.size());
+        assertEquals(now + 60_000, results.iterator().next().getExpirationTime());
+    }
+
+    public void testNegativeAnswerReadsAsEmpty() {
+        DNSNode node = new DNSNode("nxdomain.cache.test", RecordType.A);
+        long negativeHits = cache.getNegativeHitCount();
+        cache.addNegativeResult(node, 60, true);
+        assertTrue(cache.isNegativelyCached(node), "negative answer cached");
+        assertTrue(cache.isNxDomain(node), "NXDOMAIN remembered");
+        assertTrue(cache.getCachedResults(node).isEmpty(), "negative answer has no records");
+        assertEquals(negativeHits + 1, cache.getNegativeHitCount());
+    }
+}
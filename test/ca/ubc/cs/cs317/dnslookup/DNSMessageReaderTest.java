@@ -0,0 +1,174 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static ca.ubc.cs.cs317.dnslookup.Assert.*;
+
+/** Tests of DNSMessageReader, mostly of name decompression on hand-built messages. */
+public class DNSMessageReaderTest {
+
+    // header of a response with one question and the given number of answers
+    private static ByteArrayOutputStream header(int answers) {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        writeShort(message, 0x1234);
+        writeShort(message, 0x8400);
+        writeShort(message, 1);
+        writeShort(message, answers);
+        writeShort(message, 0);
+        writeShort(message, 0);
+        return message;
+    }
+
+    private static void writeShort(ByteArrayOutputStream message, int value) {
+        message.write(value >>> 8);
+        message.write(value);
+    }
+
+    private static void writeLabels(ByteArrayOutputStream message, String labels) {
+        for (String label : labels.split("\\."))
+            if (!label.isEmpty()) {
+                message.write(label.length());
+                message.write(label.getBytes(), 0, label.length());
+            }
+    }
+
+    private static void writeName(ByteArrayOutputStream message, String name) {
+        writeLabels(message, name);
+        message.write(0);
+    }
+
+    private static void writePointer(ByteArrayOutputStream message, int offset) {
+        writeShort(message, 0xC000 | offset);
+    }
+
+    // type A, class IN
+    private static void writeTypeAndClass(ByteArrayOutputStream message) {
+        writeShort(message, 1);
+        writeShort(message, 1);
+    }
+
+    private static DNSMessageReader reader(ByteArrayOutputStream message) {
+        return new DNSMessageReader(ByteBuffer.wrap(message.toByteArray()));
+    }
+
+    public void testHeaderFields() {
+        DNSMessageReader reader = reader(header(0));
+        assertEquals(0x1234, reader.getID());
+        assertTrue(reader.isResponse(), "QR flag");
+        assertTrue(reader.isAuthoritative(), "AA flag");
+        assertFalse(reader.isTruncated(), "TC flag");
+        assertEquals(0, reader.getRCODE());
+        assertEquals(1, reader.getQDCOUNT());
+    }
+
+    public void testReadsUncompressedName() {
+        ByteArrayOutputStream message = header(0);
+        writeName(message, "www.Example.com");
+        writeTypeAndClass(message);
+        DNSMessageReader reader = reader(message);
+        assertEquals("www.Example.com", reader.readName(reader.getQuestionNameOffset()));
+        assertEquals(1, reader.getQuestionType());
+    }
+
+    public void testRootIsEmptyName() {
+        ByteArrayOutputStream message = header(0);
+        writeName(message, "");
+        writeTypeAndClass(message);
+        assertEquals("", reader(message).readName(DNSMessageReader.HEADER_LENGTH));
+    }
+
+    public void testFollowsPointersToEarlierNames() {
+        ByteArrayOutputStream message = header(2);
+        writeName(message, "www.example.com");
+        writeTypeAndClass(message);
+        // answer owned by the question name, then one owned by mail + suffix of the question
+        writePointer(message, DNSMessageReader.HEADER_LENGTH);
+        writeTypeAndClass(message);
+        message.write(new byte[]{0, 0, 0, 60, 0, 4, 10, 0, 0, 1}, 0, 10);
+        writeLabels(message, "mail");
+        writePointer(message, DNSMessageReader.HEADER_LENGTH + 4);
+        writeTypeAndClass(message);
+        message.write(new byte[]{0, 0, 0, 60, 0, 4, 10, 0, 0, 2}, 0, 10);
+
+        DNSMessageReader reader = reader(message);
+        assertTrue(reader.nextRecord(), "first answer");
+        assertEquals("www.example.com", reader.getRecordName());
+        assertEquals(60, reader.getRecordTTL());
+        assertTrue(reader.nextRecord(), "second answer");
+        assertEquals("mail.example.com", reader.getRecordName());
+        assertEquals(4, reader.getRDataLength());
+        assertFalse(reader.nextRecord(), "no third answer");
+    }
+
+    public void testRejectsPointerToItself() {
+        ByteArrayOutputStream message = header(0);
+        writePointer(message, DNSMessageReader.HEADER_LENGTH);
+        writeTypeAndClass(message);
+        DNSMessageReader reader = reader(message);
+        assertThrows(IllegalArgumentException.class, () -> reader.readName(DNSMessageReader.HEADER_LENGTH));
+    }
+
+    public void testRejectsPointerLoop() {
+        // a label followed by a pointer back to itself: each jump lands on the same offset
+        ByteArrayOutputStream message = header(0);
+        writeLabels(message, "loop");
+        writePointer(message, DNSMessageReader.HEADER_LENGTH);
+        writeTypeAndClass(message);
+        DNSMessageReader reader = reader(message);
+        assertThrows(IllegalArgumentException.class, () -> reader.readName(DNSMessageReader.HEADER_LENGTH));
+    }
+
+    public void testRejectsForwardPointer() {
+        ByteArrayOutputStream message = header(0);
+        writePointer(message, DNSMessageReader.HEADER_LENGTH + 6);
+        writeTypeAndClass(message);
+        writeName(message, "later.com");
+        DNSMessageReader reader = reader(message);
+        assertThrows(IllegalArgumentException.class, () -> reader.readName(DNSMessageReader.HEADER_LENGTH));
+    }
+
+    public void testRejectsPointerPastTheEnd() {
+        ByteArrayOutputStream message = header(0);
+        writeLabels(message, "www");
+        message.write(0xC0);
+        DNSMessageReader reader = reader(message);
+        assertThrows(IllegalArgumentException.class, () -> reader.readName(DNSMessageReader.HEADER_LENGTH));
+    }
+
+    public void testRejectsNameLongerThan255Bytes() {
+        ByteArrayOutputStream message = header(0);
+        writeName(message, String.join(".", Collections.nCopies(4, repeat('a', 63))));
+        writeTypeAndClass(message);
+        DNSMessageReader reader = reader(message);
+        assertThrows(IllegalArgumentException.class, () -> reader.readName(DNSMessageReader.HEADER_LENGTH));
+    }
+
+    public void testRejectsReservedLabelType() {
+        ByteArrayOutputStream message = header(0);
+        message.write(0x40);
+        message.write(0);
+        writeTypeAndClass(message);
+        DNSMessageReader reader = reader(message);
+        assertThrows(IllegalArgumentException.class, () -> reader.readName(DNSMessageReader.HEADER_LENGTH));
+    }
+
+    public void testRejectsRecordDataPastTheEnd() {
+        ByteArrayOutputStream message = header(1);
+        writeName(message, "a.com");
+        writeTypeAndClass(message);
+        writePointer(message, DNSMessageReader.HEADER_LENGTH);
+        writeTypeAndClass(message);
+        message.write(new byte[]{0, 0, 0, 60, 0, 16, 10, 0}, 0, 8);
+        DNSMessageReader reader = reader(message);
+        assertThrows(IllegalArgumentException.class, reader::nextRecord);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
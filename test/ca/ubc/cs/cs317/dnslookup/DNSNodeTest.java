@@ -0,0 +1,71 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+
+import static ca.ubc.cs.cs317.dnslookup.Assert.*;
+
+/** Tests of DNSNode equality: nodes compare by canonical name and type, consistently across
+ * equals, hashCode and compareTo, while keeping the name as it was spelled for display.
+ */
+public class DNSNodeTest {
+
+    private static void assertEquivalent(DNSNode a, DNSNode b) {
+        assertEquals(a, b);
+        assertEquals(b, a);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertEquals(0, a.compareTo(b));
+        assertEquals(0, b.compareTo(a));
+    }
+
+    private static void assertDistinct(DNSNode a, DNSNode b) {
+        assertNotEquals(a, b);
+        assertTrue(a.compareTo(b) != 0, a + " and " + b + " compare as equal");
+        assertEquals(Integer.signum(a.compareTo(b)), -Integer.signum(b.compareTo(a)));
+    }
+
+    public void testCaseAndTrailingDotAreIgnored() {
+        DNSNode node = new DNSNode("www.example.com", RecordType.A);
+        assertEquivalent(node, new DNSNode("WWW.EXAMPLE.COM", RecordType.A));
+        assertEquivalent(node, new DNSNode("www.example.com.", RecordType.A));
+        assertEquivalent(node, new DNSNode("Www.Example.Com.", RecordType.A));
+    }
+
+    public void testRootSpellingsAreEqual() {
+        assertEquivalent(new DNSNode(".", RecordType.NS), new DNSNode("", RecordType.NS));
+    }
+
+    public void testNamesAndTypesAreCompared() {
+        DNSNode node = new DNSNode("www.example.com", RecordType.A);
+        assertDistinct(node, new DNSNode("www.example.com", RecordType.AAAA));
+        assertDistinct(node, new DNSNode("www.example.org", RecordType.A));
+        assertDistinct(node, new DNSNode("ww.example.com", RecordType.A));
+    }
+
+    public void testCanonicalNameIsShared() {
+        DNSNode a = new DNSNode("Shared.DNSNode.Test.", RecordType.A);
+        DNSNode b = new DNSNode(new String("shared.dnsnode.test"), RecordType.AAAA);
+        assertEquals("shared.dnsnode.test", a.getCanonicalName());
+        assertSame(a.getCanonicalName(), b.getCanonicalName());
+        assertSame(b.getCanonicalName(), b.getHostName());
+    }
+
+    public void testHostNameKeepsOriginalSpelling() {
+        DNSNode node = new DNSNode("Www.Example.Com.", RecordType.A);
+        assertEquals("Www.Example.Com.", node.getHostName());
+        assertEquals("www.example.com", node.getCanonicalName());
+    }
+
+    public void testDeserializedNodeEqualsOriginal() throws Exception {
+        DNSNode node = new DNSNode("Serialized.DNSNode.Test", RecordType.CNAME);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(node);
+        }
+        DNSNode copy;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = (DNSNode) in.readObject();
+        }
+        assertEquivalent(node, copy);
+        assertEquals("Serialized.DNSNode.Test", copy.getHostName());
+    }
+}
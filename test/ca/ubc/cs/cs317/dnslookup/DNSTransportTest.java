@@ -0,0 +1,145 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static ca.ubc.cs.cs317.dnslookup.Assert.*;
+
+/** Tests of how DNSTransport matches replies to outstanding queries, against a server on the
+ * loopback interface that echoes queries back as replies (with the QR bit set), in whatever order
+ * and form each test decides.
+ */
+public class DNSTransportTest {
+
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    private static final int WAIT = 2000;
+
+    // receives queries on an ephemeral port and sends back whatever a test asks for
+    private static class EchoServer implements AutoCloseable {
+
+        private final DatagramSocket socket;
+
+        EchoServer() throws Exception {
+            socket = new DatagramSocket(0, LOOPBACK);
+            socket.setSoTimeout(WAIT);
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        DatagramPacket receive() throws Exception {
+            DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+            socket.receive(packet);
+            return packet;
+        }
+
+        void send(DatagramPacket query, byte[] reply) throws Exception {
+            socket.send(new DatagramPacket(reply, reply.length, query.getSocketAddress()));
+        }
+
+        // the query itself, flagged as a response
+        static byte[] echo(DatagramPacket query) {
+            byte[] reply = Arrays.copyOf(query.getData(), query.getLength());
+            reply[2] |= (byte) 0x80;
+            return reply;
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+        }
+    }
+
+    private static DNSQuery query(String name, int id) {
+        return new DNSQuery(new DNSNode(name, RecordType.A), id, false);
+    }
+
+    private static DNSResponse await(CompletableFuture<DNSResponse> future) throws Exception {
+        return future.get(WAIT, TimeUnit.MILLISECONDS);
+    }
+
+    public void testRepliesInAnyOrderReachTheirQueries() throws Exception {
+        try (EchoServer server = new EchoServer(); DNSTransport transport = new DNSTransport(2, server.getPort())) {
+            CompletableFuture<DNSResponse> first = transport.send(query("one.test", 1), LOOPBACK);
+            CompletableFuture<DNSResponse> second = transport.send(query("two.test", 2), LOOPBACK);
+            CompletableFuture<DNSResponse> third = transport.send(query("three.test", 3), LOOPBACK);
+            DatagramPacket[] queries = {server.receive(), server.receive(), server.receive()};
+            for (int i = queries.length - 1; i >= 0; i--)
+                server.send(queries[i], EchoServer.echo(queries[i]));
+
+            assertEquals("one.test", await(first).dnsQuestion.NAME);
+            assertEquals("two.test", await(second).dnsQuestion.NAME);
+            assertEquals("three.test", await(third).dnsQuestion.NAME);
+            assertEquals(3, await(third).dnsHeader.ID);
+            assertEquals(0, transport.getOutstandingQueries());
+        }
+    }
+
+    public void testQueriesWithTheSameIdAreToldApartByQuestion() throws Exception {
+        try (EchoServer server = new EchoServer(); DNSTransport transport = new DNSTransport(1, server.getPort())) {
+            CompletableFuture<DNSResponse> first = transport.send(query("one.test", 7), LOOPBACK);
+            CompletableFuture<DNSResponse> second = transport.send(query("two.test", 7), LOOPBACK);
+            DatagramPacket firstQuery = server.receive();
+            DatagramPacket secondQuery = server.receive();
+            server.send(secondQuery, EchoServer.echo(secondQuery));
+            server.send(firstQuery, EchoServer.echo(firstQuery));
+
+            assertEquals("one.test", await(first).dnsQuestion.NAME);
+            assertEquals("two.test", await(second).dnsQuestion.NAME);
+        }
+    }
+
+    public void testQuestionIsMatchedWithoutRegardToCase() throws Exception {
+        try (EchoServer server = new EchoServer(); DNSTransport transport = new DNSTransport(1, server.getPort())) {
+            CompletableFuture<DNSResponse> future = transport.send(query("mixed.test", 9), LOOPBACK);
+            DatagramPacket query = server.receive();
+            byte[] reply = EchoServer.echo(query);
+            reply[DNSMessageReader.HEADER_LENGTH + 1] = 'M';
+            server.send(query, reply);
+
+            assertEquals("Mixed.test", await(future).dnsQuestion.NAME);
+        }
+    }
+
+    public void testMismatchedAndMalformedRepliesAreDropped() throws Exception {
+        try (EchoServer server = new EchoServer(); DNSTransport transport = new DNSTransport(1, server.getPort())) {
+            CompletableFuture<DNSResponse> future = transport.send(query("real.test", 11), LOOPBACK);
+            DatagramPacket query = server.receive();
+
+            byte[] wrongId = EchoServer.echo(query);
+            wrongId[1]++;
+            byte[] wrongQuestion = EchoServer.echo(query);
+            wrongQuestion[DNSMessageReader.HEADER_LENGTH + 1] = 'f';
+            byte[] notAResponse = Arrays.copyOf(query.getData(), query.getLength());
+            byte[] noQuestion = Arrays.copyOf(EchoServer.echo(query), DNSMessageReader.HEADER_LENGTH);
+            noQuestion[5] = 0;
+            byte[] garbage = {1, 2, 3};
+            for (byte[] reply : new byte[][]{wrongId, wrongQuestion, notAResponse, noQuestion, garbage})
+                server.send(query, reply);
+            Thread.sleep(100);
+            assertFalse(future.isDone(), "completed by a reply to another query: " + future.getNow(null));
+
+            server.send(query, EchoServer.echo(query));
+            assertEquals("real.test", await(future).dnsQuestion.NAME);
+
+            // the receiving thread survived the bad replies
+            CompletableFuture<DNSResponse> next = transport.send(query("next.test", 12), LOOPBACK);
+            DatagramPacket nextQuery = server.receive();
+            server.send(nextQuery, EchoServer.echo(nextQuery));
+            assertEquals("next.test", await(next).dnsQuestion.NAME);
+        }
+    }
+
+    public void testQueryTimesOutAndForgetsThePendingReply() throws Exception {
+        try (EchoServer server = new EchoServer(); DNSTransport transport = new DNSTransport(1, server.getPort())) {
+            assertThrows(SocketTimeoutException.class, () -> transport.query(query("silent.test", 13), LOOPBACK, 100));
+            assertEquals(0, transport.getOutstandingQueries());
+        }
+    }
+}
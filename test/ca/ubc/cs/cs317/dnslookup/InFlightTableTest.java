@@ -0,0 +1,161 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static ca.ubc.cs.cs317.dnslookup.Assert.*;
+
+/** Tests of the InFlightTable: followers share the leader's result, and resolve the node on
+ * their own if the leader is too slow, fails or reaches its deadline.
+ */
+public class InFlightTableTest {
+
+    private static final DNSNode NODE = new DNSNode("www.inflight.test", RecordType.A);
+    private static final long WAIT = 5000;
+
+    private final InFlightTable table = new InFlightTable();
+    private final Tracer tracer = new Tracer();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private static Set<ResourceRecord> results(int last) {
+        return Set.of(new ResourceRecord(NODE, 60, System.currentTimeMillis() + 60_000,
+                new byte[]{10, 4, 0, (byte) last}));
+    }
+
+    private ResolutionContext context(long deadline) {
+        return new ResolutionContext(NODE, tracer, 1000, deadline);
+    }
+
+    // resolves NODE on another thread as the leader, which waits for the latch before returning
+    private Future<Set<ResourceRecord>> lead(ResolutionContext context, CountDownLatch release,
+                                             Supplier<Set<ResourceRecord>> resolution) throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        Future<Set<ResourceRecord>> leader = executor.submit(() -> table.resolve(NODE, context, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return resolution.get();
+        }, WAIT));
+        assertTrue(started.await(WAIT, TimeUnit.MILLISECONDS), "leader did not start");
+        return leader;
+    }
+
+    public void testFollowerSharesLeaderResult() throws Exception {
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            Set<ResourceRecord> leaderResults = results(1);
+            Future<Set<ResourceRecord>> leader = lead(context(0), release, () -> leaderResults);
+            AtomicInteger followerResolutions = new AtomicInteger();
+            Future<Set<ResourceRecord>> follower = executor.submit(() -> table.resolve(NODE, context(0), () -> {
+                followerResolutions.incrementAndGet();
+                return results(2);
+            }, WAIT));
+
+            Thread.sleep(50);
+            assertFalse(follower.isDone(), "follower did not wait for the leader");
+            release.countDown();
+            assertSame(leaderResults, follower.get(WAIT, TimeUnit.MILLISECONDS));
+            assertSame(leaderResults, leader.get(WAIT, TimeUnit.MILLISECONDS));
+            assertEquals(0, followerResolutions.get());
+            assertEquals(0, table.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testFollowerResolvesAloneAfterMaxWait() throws Exception {
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            Future<Set<ResourceRecord>> leader = lead(context(0), release, () -> results(1));
+            Set<ResourceRecord> followerResults = results(2);
+            long start = System.nanoTime();
+            Set<ResourceRecord> results = table.resolve(NODE, context(0), () -> followerResults, 100);
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertSame(followerResults, results);
+            assertTrue(waited >= 100, "follower returned before its maximum wait: " + waited + " ms");
+            assertFalse(leader.isDone(), "leader finished before the follower gave up");
+            release.countDown();
+            leader.get(WAIT, TimeUnit.MILLISECONDS);
+            assertEquals(0, table.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testFollowerResolvesAloneWhenLeaderFails() throws Exception {
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            Future<Set<ResourceRecord>> leader = lead(context(0), release, () -> {
+                throw new IllegalStateException("leader failed");
+            });
+            Set<ResourceRecord> followerResults = results(2);
+            Future<Set<ResourceRecord>> follower = executor.submit(() ->
+                    table.resolve(NODE, context(0), () -> followerResults, WAIT));
+
+            Thread.sleep(50);
+            release.countDown();
+            assertSame(followerResults, follower.get(WAIT, TimeUnit.MILLISECONDS));
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> leader.get(WAIT, TimeUnit.MILLISECONDS));
+            assertTrue(e.getCause() instanceof IllegalStateException, "leader failure was not rethrown");
+            assertEquals(0, table.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testFollowerResolvesAloneWhenLeaderReachesDeadline() throws Exception {
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            ResolutionContext leaderContext = context(1);
+            Future<Set<ResourceRecord>> leader = lead(leaderContext, release, () -> {
+                assertTrue(leaderContext.isPastDeadline(), "leader deadline has not passed");
+                return Set.of();
+            });
+            Set<ResourceRecord> followerResults = results(2);
+            Future<Set<ResourceRecord>> follower = executor.submit(() ->
+                    table.resolve(NODE, context(0), () -> followerResults, WAIT));
+
+            Thread.sleep(50);
+            release.countDown();
+            assertSame(followerResults, follower.get(WAIT, TimeUnit.MILLISECONDS));
+            assertEquals(0, leader.get(WAIT, TimeUnit.MILLISECONDS).size());
+            assertTrue(leaderContext.hasExceededDeadline(), "leader was not marked past its deadline");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testSameResolutionAskingAgainIsACycle() {
+        executor.shutdown();
+        ResolutionContext context = context(0);
+        AtomicInteger resolutions = new AtomicInteger();
+        Set<ResourceRecord> leaderResults = results(1);
+        Set<ResourceRecord> results = table.resolve(NODE, context, () -> {
+            resolutions.incrementAndGet();
+            assertTrue(context.isResolving(NODE), "leader is not marked as resolving the node");
+            // a referral that leads back to the node being resolved
+            assertEquals(0, table.resolve(NODE, context, () -> {
+                resolutions.incrementAndGet();
+                return results(2);
+            }, WAIT).size());
+            // a sub-resolution forked from the leader sees the cycle too
+            assertEquals(0, table.resolve(NODE, context.fork(), () -> {
+                resolutions.incrementAndGet();
+                return results(3);
+            }, WAIT).size());
+            return leaderResults;
+        }, WAIT);
+
+        assertSame(leaderResults, results);
+        assertEquals(1, resolutions.get());
+        assertFalse(context.isResolving(NODE), "leader is still marked as resolving the node");
+        assertEquals(0, table.size());
+    }
+}
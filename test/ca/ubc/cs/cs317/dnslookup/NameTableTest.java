@@ -0,0 +1,42 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import static ca.ubc.cs.cs317.dnslookup.Assert.*;
+
+/** Tests of the NameTable: names are lowercased and lose their trailing dot, the root has a
+ * single canonical form, and every caller gets the same instance of a canonical name.
+ */
+public class NameTableTest {
+
+    private final NameTable names = NameTable.getInstance();
+
+    public void testNamesAreLowercasedWithoutTrailingDot() {
+        assertEquals("www.example.com", names.canonicalize("www.example.com"));
+        assertEquals("www.example.com", names.canonicalize("WWW.Example.COM"));
+        assertEquals("www.example.com", names.canonicalize("www.example.com."));
+        assertEquals("www.example.com", names.canonicalize("Www.Example.Com."));
+    }
+
+    public void testOnlyAsciiLettersAreLowercased() {
+        assertEquals("a-b_c.0-9.\u00c9x", names.canonicalize("A-B_C.0-9.\u00c9X"));
+    }
+
+    public void testRootHasOneCanonicalForm() {
+        assertEquals("", names.canonicalize("."));
+        assertEquals("", names.canonicalize(""));
+        assertSame(names.canonicalize(""), names.canonicalize("."));
+    }
+
+    public void testCanonicalNamesAreShared() {
+        String canonical = names.canonicalize("Shared.NameTable.Test.");
+        assertSame(canonical, names.canonicalize("shared.nametable.test"));
+        assertSame(canonical, names.canonicalize(new String("SHARED.nametable.test")));
+        assertSame(canonical, names.canonicalize(new String("shared.nametable.test")));
+    }
+
+    public void testShareKeepsNamesNotInCanonicalForm() {
+        String canonical = names.canonicalize("share.nametable.test");
+        assertSame(canonical, names.share(new String("share.nametable.test")));
+        String spelled = "Share.NameTable.Test.";
+        assertSame(spelled, names.share(spelled));
+    }
+}
@@ -0,0 +1,67 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/** Minimal unit test runner in the spirit of JUnit (which is not available to this build): each
+ * public method without parameters whose name starts with "test" is run on a new instance of its
+ * test class, in name order. A test fails if it throws, e.g. an AssertionError from Assert. The
+ * runner prints every failure and a summary, and exits with status 1 if any test failed.
+ *
+ * Usage: TestRunner [test class name prefix ...]. Runs every test class by default.
+ */
+public class TestRunner {
+
+    private static final Class<?>[] TEST_CLASSES = {
+            CacheSnapshotTest.class,
+            DNSCacheTest.class,
+            DNSMessageReaderTest.class,
+            DNSNodeTest.class,
+            DNSTransportTest.class,
+            InFlightTableTest.class,
+            NameTableTest.class,
+    };
+
+    public static void main(String[] args) throws Exception {
+        int run = 0, failed = 0;
+        for (Class<?> testClass : TEST_CLASSES) {
+            if (!selected(testClass, args))
+                continue;
+            Method[] methods = testClass.getMethods();
+            Arrays.sort(methods, Comparator.comparing(Method::getName));
+            for (Method method : methods) {
+                if (!method.getName().startsWith("test") || method.getParameterCount() != 0
+                        || Modifier.isStatic(method.getModifiers()))
+                    continue;
+                run++;
+                String name = testClass.getSimpleName() + "." + method.getName();
+                try {
+                    method.invoke(testClass.getConstructor().newInstance());
+                } catch (InvocationTargetException e) {
+                    failed++;
+                    System.out.println("FAILED " + name + ": " + e.getCause());
+                    for (StackTraceElement element : e.getCause().getStackTrace()) {
+                        if (element.getClassName().equals(testClass.getName())) {
+                            System.out.println("\tat " + element);
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        System.out.printf("%d tests, %d failed%n", run, failed);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static boolean selected(Class<?> testClass, String[] filters) {
+        if (filters.length == 0)
+            return true;
+        for (String filter : filters)
+            if (testClass.getSimpleName().startsWith(filter))
+                return true;
+        return false;
+    }
+}